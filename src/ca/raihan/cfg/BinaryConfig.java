@@ -0,0 +1,695 @@
+/*******************************************************************************
+ * Copyright 2014 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package ca.raihan.cfg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A {@code Config} saved in a compact binary layout that is read through a
+ * memory mapping. Opening a file maps it and walks its key table; numbers
+ * and booleans are taken from their fixed size regions without parsing and
+ * strings stay in the mapping until they are first read, so the cost of
+ * opening grows with the number of keys rather than the size of the file.
+ * <p>
+ * The layout, all integers big endian:
+ * <pre>
+ * header       int magic "JCFG", int version, int entry count,
+ *              int number count, int boolean count, int heap length
+ * key table    per entry, sorted by the UTF-8 bytes of the key and then by
+ *              tag: int key offset, int key length, int tag,
+ *              int value index, int value length
+ * numbers      per primitive number, 8 bytes: the value of an integral
+ *              type, or the bits of a floating type as a double
+ * booleans     a bitset of 64 bit words
+ * heap         UTF-8 bytes of keys, strings and the text of BigInteger
+ *              and BigDecimal values
+ * </pre>
+ * The tag of an entry is its {@code Repository}, and for numbers its
+ * {@code NumberType}. Strings and big numbers index the heap with their
+ * offset and length, booleans the bitset and other numbers the number
+ * region.
+ * <p>
+ * Files are always replaced, never rewritten in place, so a file that is
+ * still mapped by another {@code Config} keeps its contents. The canonical
+ * representation, and what {@link BinaryConfigManager} parses from text, is
+ * the JSON one.
+ * 
+ * @author Pranjal Raihan
+ */
+public final strictfp class BinaryConfig extends PrivateConfigBase {
+    
+    /**
+     * "JCFG"
+     */
+    static final int MAGIC = 0x4a434647;
+    
+    static final int VERSION = 1;
+    
+    static final int HEADER_SIZE = 24;
+    
+    static final int ENTRY_SIZE = 20;
+    
+    /**
+     * Tags of the repositories, the low bits of a number tag hold the index
+     * of its {@code NumberType} in {@link #NUMBER_TYPES}
+     */
+    static final int BOOLEAN_TAG = 0x10;
+    
+    static final int NUMBER_TAG = 0x20;
+    
+    static final int STRING_TAG = 0x30;
+    
+    static final NumberType[] NUMBER_TYPES = {
+        NumberType.BYTE, NumberType.SHORT, NumberType.INT, NumberType.LONG,
+        NumberType.FLOAT, NumberType.DOUBLE, NumberType.BIG_INTEGER,
+        NumberType.BIG_DECIMAL,
+    };
+    
+    
+    
+    
+    private BinaryConfig() {
+    }
+    
+    static BinaryConfig uninitialized() {
+        return new BinaryConfig();
+    }
+    
+    static BinaryConfig naked() {
+        BinaryConfig rv = uninitialized();
+        
+        rv.flushedBooleanElements =
+                new ObjectRepository<Boolean>(ObjectRepository.BOOLEAN_DECODER);
+        rv.pendingBooleanElements = new HashMap<String, Boolean>();
+        rv.deletedBooleanKeys = new HashSet<String>();
+        
+        rv.flushedStringElements = new ObjectRepository<String>();
+        rv.pendingStringElements = new HashMap<String, String>();
+        rv.deletedStringKeys = new HashSet<String>();
+        
+        rv.flushedNumberElements = new NumberRepository();
+        rv.pendingNumberElements = new NumberRepository();
+        rv.deletedNumberKeys = new HashSet<String>();
+        
+        rv.booleanRepoEvent =
+                new ConfigEvent<BooleanRepoContext>(rv.eventKey);
+        rv.stringRepoEvent =
+                new ConfigEvent<StringRepoContext>(rv.eventKey);
+        rv.numberRepoEvent =
+                new ConfigEvent<NumberRepoContext>(rv.eventKey);
+        rv.commitEvent = new ConfigEvent<ConfigChangeSet>(rv.eventKey);
+        
+        return rv;
+    }
+    
+    static BinaryConfig empty() {
+        return naked();
+    }
+    
+    static BinaryConfig read(File file) throws ConfigException {
+        return read(map(file));
+    }
+    
+    static BinaryConfig read(InputStream in) throws ConfigException {
+        Contract.nonNull(in);
+        try {
+            
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1)
+                out.write(buffer, 0, n);
+            return read(ByteBuffer.wrap(out.toByteArray()));
+            
+        } catch (IOException ex) {
+            
+            throw new ConfigException(ex);
+            
+        } finally {
+            
+            try {
+                in.close();
+            } catch (IOException ex) {
+            }
+            
+        }
+    }
+    
+    static BinaryConfig read(Reader reader) throws ConfigException {
+        return fromJSON(JSONConfig.read(reader, LoadMode.EAGER));
+    }
+    
+    static BinaryConfig parse(String str) throws ConfigException {
+        return fromJSON(JSONConfig.parse(str, LoadMode.EAGER));
+    }
+    
+    /**
+     * Reads the entries of some keys from a file. The key table is binary
+     * searched in a mapping of the file, so only the pages holding the
+     * header, the probed entries and the values found are read.
+     * 
+     * @param file the {@code File} to read from
+     * @param keys the keys to read
+     * 
+     * @return a {@code BinaryConfig} holding the entries of the keys
+     * 
+     * @throws ConfigException if the reading failed
+     */
+    static BinaryConfig readKeys(File file, Set<String> keys)
+            throws ConfigException {
+        ByteBuffer image = map(file);
+        BinaryConfig rv = naked();
+        Layout layout = new Layout(image);
+        for (String key : keys) {
+            byte[] target = utf8(key);
+            // the first entry with a key not below the target
+            int low = 0;
+            int high = layout.count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compareKeys(layout.key(mid), target) < 0)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            for (; low < layout.count; ++low) {
+                if (compareKeys(layout.key(low), target) != 0)
+                    break;
+                layout.readEntry(rv, low, key);
+            }
+        }
+        return rv;
+    }
+    
+    /**
+     * Reads the layout from a buffer, which is kept for the strings that
+     * have not been read yet.
+     */
+    static BinaryConfig read(ByteBuffer image) throws ConfigException {
+        BinaryConfig rv = naked();
+        Layout layout = new Layout(image);
+        for (int i = 0; i < layout.count; ++i)
+            layout.readEntry(rv, i, layout.text(layout.keyOffset(i),
+                    layout.keyLength(i)));
+        return rv;
+    }
+    
+    /**
+     * Takes over the flushed repositories of a {@code JSONConfig}.
+     */
+    private static BinaryConfig fromJSON(JSONConfig json) {
+        BinaryConfig rv = naked();
+        rv.flushedBooleanElements = json.flushedBooleanElements;
+        rv.flushedStringElements = json.flushedStringElements;
+        rv.flushedNumberElements = json.flushedNumberElements;
+        return rv;
+    }
+    
+    
+    
+    
+    // entries are written from the repositories at save time, there is no
+    // document to keep in sync
+    
+    void _serializeBool(String key, boolean value) {
+    }
+    
+    void _deleteBool(String key) {
+    }
+    
+    void _serializeString(String key, String value) {
+    }
+    
+    void _deleteString(String key) {
+    }
+    
+    void _serializeNumber(String key, Number value) {
+    }
+    
+    void _deleteNumber(String key) {
+    }
+    
+    
+    
+    
+    /**
+     * Writes the binary layout.
+     */
+    @Override
+    public void save(OutputStream outputStream) throws ConfigException {
+        Contract.nonNull(outputStream);
+        List<Entry> entries = new ArrayList<Entry>(
+                flushedBooleanElements.size() + flushedNumberElements.size() +
+                flushedStringElements.size());
+        ByteArrayOutputStream heap = new ByteArrayOutputStream();
+        int numberCount = 0;
+        int booleanCount = 0;
+        long[] bitset = new long[(flushedBooleanElements.size() + 63) >>> 6];
+        long[] numbers = new long[flushedNumberElements.size()];
+        try {
+            
+            final ObjectRepository<Boolean> bools = flushedBooleanElements;
+            for (int slot = 0; slot < bools.limit; ++slot) {
+                if (bools.keys[slot] == null)
+                    continue;
+                if (bools.valueAt(slot).booleanValue())
+                    bitset[booleanCount >>> 6] |= 1L << (booleanCount & 63);
+                entries.add(new Entry(utf8(bools.keys[slot]), BOOLEAN_TAG,
+                        booleanCount++, 0));
+            }
+            
+            final NumberRepository nums = flushedNumberElements;
+            for (int slot = 0; slot < nums.limit; ++slot) {
+                if (nums.keys[slot] == null)
+                    continue;
+                nums.ensureDecoded(slot);
+                NumberType type = nums.types[slot];
+                int tag = NUMBER_TAG | typeIndex(type);
+                byte[] key = utf8(nums.keys[slot]);
+                if (nums.objects[slot] == null) {
+                    numbers[numberCount] = nums.bits[slot];
+                    entries.add(new Entry(key, tag, numberCount++, 0));
+                } else {
+                    byte[] value = utf8(nums.objects[slot].toString());
+                    entries.add(new Entry(key, tag, heap.size(),
+                            value.length));
+                    heap.write(value);
+                }
+            }
+            
+            final ObjectRepository<String> strs = flushedStringElements;
+            for (int slot = 0; slot < strs.limit; ++slot) {
+                if (strs.keys[slot] == null)
+                    continue;
+                byte[] value = utf8(strs.valueAt(slot));
+                entries.add(new Entry(utf8(strs.keys[slot]), STRING_TAG,
+                        heap.size(), value.length));
+                heap.write(value);
+            }
+            
+            Collections.sort(entries, Entry.ORDER);
+            for (Entry entry : entries) {
+                entry.keyOffset = heap.size();
+                heap.write(entry.key);
+            }
+            
+            DataOutputStream out = new DataOutputStream(outputStream);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            out.writeInt(numberCount);
+            out.writeInt(booleanCount);
+            out.writeInt(heap.size());
+            for (Entry entry : entries) {
+                out.writeInt(entry.keyOffset);
+                out.writeInt(entry.key.length);
+                out.writeInt(entry.tag);
+                out.writeInt(entry.index);
+                out.writeInt(entry.length);
+            }
+            for (int i = 0; i < numberCount; ++i)
+                out.writeLong(numbers[i]);
+            for (long word : bitset)
+                out.writeLong(word);
+            heap.writeTo(out);
+            out.flush();
+            
+        } catch (IOException ex) {
+            
+            throw new ConfigException(ex);
+            
+        } finally {
+            
+            try {
+                outputStream.close();
+            } catch (IOException ex) {
+            }
+            
+        }
+    }
+    
+    /**
+     * Replaces the file rather than writing into it, since it may be the
+     * mapped file the strings of this or another {@code Config} are still
+     * read from.
+     */
+    @Override
+    void _writeFile(File file) throws ConfigException {
+        Configs.writeAtomically(file, Configs.toBytes(this));
+    }
+    
+    /**
+     * Writes the canonical representation, the JSON layout.
+     */
+    void write(Writer writer) throws IOException {
+        JSONConfig.write(this, writer);
+    }
+    
+    public String toCanonical() {
+        StringWriter writer = new StringWriter();
+        try {
+            write(writer);
+        } catch (IOException ex) {
+            throw new ConfigException(ex);
+        }
+        return writer.toString();
+    }
+    
+    
+    
+    
+    private static int typeIndex(NumberType type) {
+        for (int i = 0; i < NUMBER_TYPES.length; ++i)
+            if (NUMBER_TYPES[i] == type)
+                return i;
+        throw new InternalError(String.valueOf(type));
+    }
+    
+    private static byte[] utf8(String text) {
+        try {
+            return text.getBytes(UTF_8);
+        } catch (UnsupportedEncodingException ex) {
+            throw new InternalError(String.valueOf(ex));
+        }
+    }
+    
+    /**
+     * Decodes UTF-8 text of the heap, copying nothing but the characters
+     * when the text is ASCII.
+     */
+    static String text(ByteBuffer image, int heap, int heapLength,
+            int offset, int length) {
+        checkRange(offset, length, heapLength);
+        int from = heap + offset;
+        char[] chars = new char[length];
+        for (int i = 0; i < length; ++i) {
+            byte b = image.get(from + i);
+            if (b < 0)
+                return decode(image, from, length);
+            chars[i] = (char) b;
+        }
+        return new String(chars);
+    }
+    
+    private static String decode(ByteBuffer image, int from, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; ++i)
+            bytes[i] = image.get(from + i);
+        try {
+            return new String(bytes, UTF_8);
+        } catch (UnsupportedEncodingException ex) {
+            throw new InternalError(String.valueOf(ex));
+        }
+    }
+    
+    private static void checkRange(int offset, int length, int heapLength) {
+        if (offset < 0 || length < 0 || offset > heapLength - length)
+            throw corrupt();
+    }
+    
+    private static ConfigException corrupt() {
+        return new ConfigException("Corrupt binary config");
+    }
+    
+    
+    
+    
+    /**
+     * Maps a file, read only.
+     */
+    private static ByteBuffer map(File file) throws ConfigException {
+        Contract.nonNull(file);
+        RandomAccessFile raf = null;
+        try {
+            
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            // the mapping outlives the channel
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0L,
+                    channel.size());
+                    
+        } catch (IOException ex) {
+            
+            throw new ConfigException(ex);
+            
+        } finally {
+            
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ex) {
+                }
+            }
+            
+        }
+    }
+    
+    
+    
+    
+    /**
+     * The regions of a layout, checked against the size of its buffer.
+     */
+    private static final class Layout {
+        
+        final ByteBuffer image;
+        
+        final int count;
+        
+        final int numberCount;
+        
+        final int booleanCount;
+        
+        final int heapLength;
+        
+        /**
+         * The offsets of the regions after the key table
+         */
+        final int numbers;
+        
+        final int booleans;
+        
+        final int heap;
+        
+        
+        
+        
+        Layout(ByteBuffer image) throws ConfigException {
+            this.image = image;
+            int limit = image.limit();
+            if (limit < HEADER_SIZE || image.getInt(0) != MAGIC)
+                throw new ConfigException("Not a binary config");
+            if (image.getInt(4) != VERSION)
+                throw new ConfigException("Unsupported binary config " +
+                        "version " + image.getInt(4));
+            count = image.getInt(8);
+            numberCount = image.getInt(12);
+            booleanCount = image.getInt(16);
+            heapLength = image.getInt(20);
+            if (count < 0 || numberCount < 0 || booleanCount < 0 ||
+                    heapLength < 0)
+                throw corrupt();
+            long numbers = HEADER_SIZE + (long) count * ENTRY_SIZE;
+            long booleans = numbers + (long) numberCount * 8L;
+            long heap = booleans + ((booleanCount + 63L) >>> 6) * 8L;
+            if (heap + heapLength > limit)
+                throw corrupt();
+            this.numbers = (int) numbers;
+            this.booleans = (int) booleans;
+            this.heap = (int) heap;
+        }
+        
+        
+        
+        
+        int keyOffset(int i) {
+            return image.getInt(HEADER_SIZE + i * ENTRY_SIZE);
+        }
+        
+        int keyLength(int i) {
+            return image.getInt(HEADER_SIZE + i * ENTRY_SIZE + 4);
+        }
+        
+        /**
+         * Returns the UTF-8 bytes of the key of an entry.
+         */
+        byte[] key(int i) {
+            int offset = keyOffset(i);
+            int length = keyLength(i);
+            checkRange(offset, length, heapLength);
+            byte[] bytes = new byte[length];
+            for (int j = 0; j < length; ++j)
+                bytes[j] = image.get(heap + offset + j);
+            return bytes;
+        }
+        
+        String text(int offset, int length) {
+            return BinaryConfig.text(image, heap, heapLength, offset, length);
+        }
+        
+        /**
+         * Reads entry {@code i} into the flushed repositories.
+         */
+        void readEntry(BinaryConfig rv, int i, String key)
+                throws ConfigException {
+            int entry = HEADER_SIZE + i * ENTRY_SIZE;
+            int tag = image.getInt(entry + 8);
+            int index = image.getInt(entry + 12);
+            int length = image.getInt(entry + 16);
+            if (tag == BOOLEAN_TAG) {
+                if (index < 0 || index >= booleanCount ||
+                        rv.flushedBooleanElements.containsKey(key))
+                    throw corrupt();
+                long word = image.getLong(booleans + (index >>> 6) * 8);
+                rv.flushedBooleanElements.putValue(key,
+                        Boolean.valueOf((word >>> (index & 63) & 1L) != 0));
+            } else if (tag == STRING_TAG) {
+                if (rv.flushedStringElements.containsKey(key))
+                    throw corrupt();
+                checkRange(index, length, heapLength);
+                rv.flushedStringElements.putDeferred(key,
+                        new MappedText(image, heap + index, length));
+            } else if ((tag & ~0xf) == NUMBER_TAG &&
+                    (tag & 0xf) < NUMBER_TYPES.length) {
+                if (rv.flushedNumberElements.containsKey(key))
+                    throw corrupt();
+                NumberType type = NUMBER_TYPES[tag & 0xf];
+                if (NumberRepository.isIntegral(type) ||
+                        NumberRepository.isFloating(type)) {
+                    if (index < 0 || index >= numberCount)
+                        throw corrupt();
+                    long bits = image.getLong(numbers + index * 8);
+                    if (NumberRepository.isIntegral(type))
+                        rv.flushedNumberElements.putLong(key, type, bits);
+                    else
+                        rv.flushedNumberElements.putDouble(key, type,
+                                Double.longBitsToDouble(bits));
+                } else {
+                    rv.flushedNumberElements.putRaw(key, type,
+                            text(index, length));
+                }
+            } else {
+                throw corrupt();
+            }
+        }
+        
+    }
+    
+    /**
+     * A {@code String} value still in the heap of a layout.
+     */
+    private static final class MappedText
+            implements ObjectRepository.Deferred<String> {
+        
+        private final ByteBuffer image;
+        
+        private final int offset;
+        
+        private final int length;
+        
+        
+        
+        
+        MappedText(ByteBuffer image, int offset, int length) {
+            this.image = image;
+            this.offset = offset;
+            this.length = length;
+        }
+        
+        
+        
+        
+        public String resolve() {
+            return text(image, offset, length, 0, length);
+        }
+        
+    }
+    
+    /**
+     * An entry of the key table being written.
+     */
+    private static final class Entry {
+        
+        /**
+         * Orders entries by the unsigned bytes of their keys, then by tag
+         */
+        static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                int c = compareKeys(a.key, b.key);
+                return c != 0 ? c : a.tag - b.tag;
+            }
+        };
+        
+        
+        final byte[] key;
+        
+        final int tag;
+        
+        final int index;
+        
+        final int length;
+        
+        int keyOffset;
+        
+        
+        
+        
+        Entry(byte[] key, int tag, int index, int length) {
+            this.key = key;
+            this.tag = tag;
+            this.index = index;
+            this.length = length;
+        }
+        
+    }
+    
+    /**
+     * Compares two UTF-8 keys by their unsigned bytes, the order of the key
+     * table.
+     */
+    static int compareKeys(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; ++i) {
+            int c = (a[i] & 0xff) - (b[i] & 0xff);
+            if (c != 0)
+                return c;
+        }
+        return a.length - b.length;
+    }
+    
+}
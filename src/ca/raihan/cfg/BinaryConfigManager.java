@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright 2014 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package ca.raihan.cfg;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.Reader;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Reads {@link BinaryConfig}s. Files are memory mapped, streams are read
+ * into memory first, and {@code Reader}s and strings hold the JSON layout.
+ * 
+ * @author Pranjal Raihan
+ */
+public class BinaryConfigManager implements ConfigManager<BinaryConfig> {
+    
+    public BinaryConfig newConfig() {
+        return BinaryConfig.empty();
+    }
+    
+    public BinaryConfig read(File file) {
+        JSONConfigManager.verifyFileIntegrity(file);
+        JSONConfigManager.verifyFileExistence(file);
+        return BinaryConfig.read(file);
+    }
+    
+    public BinaryConfig readKeys(File file, String... keys) {
+        JSONConfigManager.verifyFileIntegrity(file);
+        JSONConfigManager.verifyFileExistence(file);
+        return BinaryConfig.readKeys(file, 
+                new HashSet<String>(Arrays.asList(
+                        Contract.nonNull(keys, "keys"))));
+    }
+    
+    public BinaryConfig read(InputStream inputStream) {
+        return BinaryConfig.read(inputStream);
+    }
+    
+    public BinaryConfig read(Reader reader) {
+        return BinaryConfig.read(reader);
+    }
+    
+    public BinaryConfig parse(String str) {
+        return BinaryConfig.parse(str);
+    }
+    
+}
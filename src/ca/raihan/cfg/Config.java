@@ -154,6 +154,19 @@ public interface Config extends Iterable<Map.Entry<String, ?>> {
      */
     BigDecimal getBigDecimal(String key) throws ConfigException;
     
+    /**
+     * Returns a {@code Number} from the repository of {@code Number} values, 
+     * boxed to the {@code NumberType} it was put with.
+     * 
+     * @param key the key too look for
+     * 
+     * @return the found value for the key
+     * 
+     * @throws  ConfigException if the key could not be found in the 
+     *          repository of {@code Number} values
+     */
+    Number getNumber(String key) throws ConfigException;
+    
     /**
      * Returns a {@code String} from the repository of {@code String} values.
      * 
@@ -616,6 +629,99 @@ public interface Config extends Iterable<Map.Entry<String, ?>> {
     
     
     
+    /**
+     * Atomically adds one to a {@code long} in the repository of 
+     * {@code Number} values, taking a missing key as {@code 0}, and stores 
+     * the result as a {@code long}.
+     * <p>
+     * The atomic operations act on the flushed value and store their result 
+     * as flushed at once, replacing a pending put of the same key; they do 
+     * not wait for {@link #flushState()} and are not part of a commit. They 
+     * are atomic with respect to each other and to regular writes as far as 
+     * the implementation is thread-safe: 
+     * {@link Configs#concurrentConfig(Config)} performs them under its writer 
+     * lock, while its reads go on without blocking.
+     * 
+     * @param key the key
+     * 
+     * @return the incremented value
+     * 
+     * @throws ConfigException if the operation is disallowed by this 
+     *         implementation
+     */
+    long incrementLong(String key) throws ConfigException;
+    
+    /**
+     * Atomically adds to a {@code double} in the repository of 
+     * {@code Number} values, taking a missing key as {@code 0}, and stores 
+     * the result as a {@code double}.
+     * 
+     * @param key the key
+     * @param delta the value to add
+     * 
+     * @return the new value
+     * 
+     * @throws ConfigException if the operation is disallowed by this 
+     *         implementation
+     * 
+     * @see #incrementLong(String)
+     */
+    double addAndGetDouble(String key, double delta) throws ConfigException;
+    
+    /**
+     * Atomically sets a {@code String} if its current value equals the 
+     * expected one. A {@code null} expected value stands for a missing key, 
+     * and a {@code null} update deletes the key.
+     * 
+     * @param key the key
+     * @param expect the expected value
+     * @param update the new value
+     * 
+     * @return {@code true} if the value was set
+     * 
+     * @throws ConfigException if the operation is disallowed by this 
+     *         implementation
+     * 
+     * @see #incrementLong(String)
+     */
+    boolean compareAndSetString(String key, String expect, String update) 
+            throws ConfigException;
+    
+    /**
+     * Atomically replaces a {@code Number} by the result of a function of 
+     * its current value. The function receives {@code null} for a missing 
+     * key, and a {@code null} result deletes the key. It may be called more 
+     * than once when other threads update the same key, so it should be 
+     * free of side effects.
+     * 
+     * @param key the key
+     * @param function computes the new value from the current one
+     * 
+     * @return the new value, {@code null} if the key was deleted
+     * 
+     * @throws ConfigException if the operation is disallowed by this 
+     *         implementation
+     * 
+     * @see #incrementLong(String)
+     */
+    Number computeNumber(String key, NumberFunction function) 
+            throws ConfigException;
+    
+    /**
+     * Begins a batch of changes that are collected privately and published 
+     * together by {@link ConfigBatch#commit()}, or thrown away by 
+     * {@link ConfigBatch#rollback()}.
+     * 
+     * @return the new batch
+     * 
+     * @throws ConfigException if changes are disallowed by this 
+     *         implementation
+     */
+    ConfigBatch beginBatch() throws ConfigException;
+    
+    
+    
+    
     /**
      * Returns the {@code Event} for the {@code boolean} {@code Repository}.
      * 
@@ -637,6 +743,18 @@ public interface Config extends Iterable<Map.Entry<String, ?>> {
      */
     ConfigEvent<StringRepoContext> stringEvent();
     
+    /**
+     * Returns the {@code Event} raised once by every 
+     * {@link #flushState()} that changes anything, after the changes became 
+     * visible. Its {@link ConfigChangeSet} holds every key changed by the 
+     * flush, across all {@code Repository}, with its old and new value.
+     * Committed {@link ConfigBatch}es and atomic updates, which become 
+     * visible without a flush, raise it as well.
+     * 
+     * @return the {@code Event} for flushes
+     */
+    ConfigEvent<ConfigChangeSet> commitEvent();
+    
     
     
     
@@ -706,6 +824,61 @@ public interface Config extends Iterable<Map.Entry<String, ?>> {
      */
     Map<String, String> mapStrings();
     
+    /**
+     * Returns the changes that turn the flushed state of this {@code Config} 
+     * into the flushed state of {@code other}: keys only in {@code other} 
+     * with a {@code null} old value, keys only in this {@code Config} with a 
+     * {@code null} new value, and keys whose values differ with both. The 
+     * repositories of both instances are walked in place, nothing is copied.
+     * 
+     * @param other the {@code Config} to compare to
+     * 
+     * @return the changes, empty if both hold the same entries
+     * 
+     * @see Configs#diff(Config, Config, java.util.concurrent.ExecutorService)
+     */
+    ConfigChangeSet diff(Config other);
+    
+    /**
+     * Puts every change of a {@code ConfigChangeSet} with a new value and 
+     * deletes every key without one, through the regular {@code put} and 
+     * {@code delete} path, raising their events. The changes are pending 
+     * until the next {@link #flushState()}.
+     * 
+     * @param patch the changes, typically from {@link #diff(Config)}
+     * 
+     * @throws ConfigException if a change is disallowed by this 
+     *         implementation
+     */
+    void applyPatch(ConfigChangeSet patch) throws ConfigException;
+    
+    /**
+     * Returns the number of changes made to the flushed state so far. The 
+     * count grows with every flushed put or delete, batch and atomic update, 
+     * even one that leaves a value as it was; it never shrinks. Equal counts 
+     * read from the same instance mean that nothing changed in between.
+     * 
+     * @return the number of changes made to the flushed state
+     */
+    long getModCount();
+    
+    /**
+     * Returns a 64 bit fingerprint of the flushed state, usable like an 
+     * ETag: {@code Config}s holding the same entries, each with the same 
+     * {@code Repository} and value of the same type, have the same 
+     * fingerprint whatever their order or implementation, and a changed 
+     * fingerprint means a changed state. Different states almost always 
+     * have different fingerprints; an equal fingerprint is not a proof of 
+     * equality.
+     * <p>
+     * The first call hashes every entry; after that the built in 
+     * {@code Config}s keep the fingerprint up to date with every change, so 
+     * reading it again is cheap.
+     * 
+     * @return the fingerprint of the flushed state
+     */
+    long getFingerprint();
+    
     
     
     
@@ -719,7 +892,9 @@ public interface Config extends Iterable<Map.Entry<String, ?>> {
     
     /**
      * Saves all repositories to a {@code File} with a specified 
-     * {@link Access.WriteAccess}
+     * {@link Access.WriteAccess}. The built in {@code Config}s skip the 
+     * write if they saved to the same file before, the state is unchanged 
+     * since and the file was not touched by anyone else.
      * 
      * @param file the file to save to
      * @param fileMode the {@code WriteAccess}, if overwriting occurs or not
@@ -843,18 +1018,258 @@ public interface Config extends Iterable<Map.Entry<String, ?>> {
         ONLY_IF_NOT_EXISTS
     }
     
+    /**
+     * How values are decoded when a {@code Config} is read. With 
+     * {@code EAGER} every value is parsed while reading and malformed values 
+     * fail the read. With {@code LAZY} the text of each value is kept and 
+     * parsed the first time the value is read, so values that are never read 
+     * are never parsed; a malformed value then fails that first read.
+     */
+    static enum LoadMode {
+        EAGER,
+        LAZY
+    }
+    
+    /**
+     * The function of {@link Config#computeNumber(String, NumberFunction)}.
+     */
+    static interface NumberFunction {
+        
+        /**
+         * Computes the new value of a key.
+         * 
+         * @param key the key
+         * @param value the current value, {@code null} if the key is missing
+         * 
+         * @return the new value, {@code null} to delete the key
+         */
+        Number apply(String key, Number value);
+        
+    }
+    
     
     
     
     /**
-     * The change context used by {@link Repository#NUMBER}.
+     * The change context used by {@link Repository#NUMBER}. Besides the boxed 
+     * values, the old and new values can be read as primitives with 
+     * {@link #getOldLong()}, {@link #getNewDouble()} and so on; values are 
+     * only boxed when {@link #getOldValue()} or {@link #getNewValue()} is 
+     * called.
      */
     static final class NumberRepoContext extends 
             ConfigRepoContext<Number> {
         
+        /**
+         * The {@code NumberType} of the old value, {@code null} if none
+         */
+        private NumberType oldType;
+        
+        /**
+         * The primitive bits of the old value
+         */
+        private long oldBits;
+        
+        /**
+         * The {@code BigInteger} or {@code BigDecimal} old value
+         */
+        private Object oldObject;
+        
+        /**
+         * The {@code NumberType} of the new value, {@code null} if none
+         */
+        private NumberType newType;
+        
+        /**
+         * The primitive bits of the new value
+         */
+        private long newBits;
+        
+        /**
+         * The {@code BigInteger} or {@code BigDecimal} new value
+         */
+        private Object newObject;
+        
+        
+        
+        
         public NumberRepoContext(String name, Number oldValue, 
                 Number newValue, ChangeAction change) {
             super(name, oldValue, newValue, Repository.NUMBER, change);
+            unbox(oldValue, newValue);
+        }
+        
+        NumberRepoContext() {
+            super(Repository.NUMBER);
+        }
+        
+        
+        
+        
+        @Override
+        public Number getOldValue() {
+            if (oldValue == null && oldType != null)
+                oldValue = NumberRepository.box(oldType, oldBits, oldObject);
+            return oldValue;
+        }
+        
+        @Override
+        public Number getNewValue() {
+            if (newValue == null && newType != null)
+                newValue = NumberRepository.box(newType, newBits, newObject);
+            return newValue;
+        }
+        
+        /**
+         * Returns the {@code NumberType} of the old value, or {@code null} if 
+         * the key had no value.
+         * 
+         * @return the {@code NumberType} of the old value
+         */
+        public NumberType getOldType() {
+            return oldType;
+        }
+        
+        /**
+         * Returns the {@code NumberType} of the new value, or {@code null} if 
+         * the key was deleted.
+         * 
+         * @return the {@code NumberType} of the new value
+         */
+        public NumberType getNewType() {
+            return newType;
+        }
+        
+        /**
+         * Returns the old value as a {@code long}, without boxing.
+         * 
+         * @return the old value as a {@code long}
+         * 
+         * @throws IllegalStateException if the key had no value
+         */
+        public long getOldLong() {
+            if (oldType == null)
+                throw new IllegalStateException("no old value");
+            return NumberRepository.toLong(oldType, oldBits, oldObject);
+        }
+        
+        /**
+         * Returns the new value as a {@code long}, without boxing.
+         * 
+         * @return the new value as a {@code long}
+         * 
+         * @throws IllegalStateException if the key was deleted
+         */
+        public long getNewLong() {
+            if (newType == null)
+                throw new IllegalStateException("no new value");
+            return NumberRepository.toLong(newType, newBits, newObject);
+        }
+        
+        /**
+         * Returns the old value as a {@code double}, without boxing.
+         * 
+         * @return the old value as a {@code double}
+         * 
+         * @throws IllegalStateException if the key had no value
+         */
+        public double getOldDouble() {
+            if (oldType == null)
+                throw new IllegalStateException("no old value");
+            return NumberRepository.toDouble(oldType, oldBits, oldObject);
+        }
+        
+        /**
+         * Returns the new value as a {@code double}, without boxing.
+         * 
+         * @return the new value as a {@code double}
+         * 
+         * @throws IllegalStateException if the key was deleted
+         */
+        public double getNewDouble() {
+            if (newType == null)
+                throw new IllegalStateException("no new value");
+            return NumberRepository.toDouble(newType, newBits, newObject);
+        }
+        
+        
+        
+        
+        /**
+         * Takes the old value from a slot of a repository, or clears it if 
+         * {@code slot} is negative.
+         */
+        void setOld(NumberRepository repository, int slot) {
+            oldValue = null;
+            if (slot < 0) {
+                oldType = null;
+                oldObject = null;
+                return;
+            }
+            repository.ensureDecoded(slot);
+            oldType = repository.types[slot];
+            oldBits = repository.bits[slot];
+            oldObject = repository.objects[slot];
+        }
+        
+        /**
+         * Takes the new value from a slot of a repository, or clears it if 
+         * {@code slot} is negative.
+         */
+        void setNew(NumberRepository repository, int slot) {
+            newValue = null;
+            if (slot < 0) {
+                newType = null;
+                newObject = null;
+                return;
+            }
+            repository.ensureDecoded(slot);
+            newType = repository.types[slot];
+            newBits = repository.bits[slot];
+            newObject = repository.objects[slot];
+        }
+        
+        @Override
+        void clear() {
+            super.clear();
+            oldObject = null;
+            newObject = null;
+        }
+        
+        @Override
+        void reset(String key, Number oldValue, Number newValue, 
+                ChangeAction change) {
+            super.reset(key, oldValue, newValue, change);
+            unbox(oldValue, newValue);
+        }
+        
+        /**
+         * Fills the primitive form of boxed values.
+         */
+        private void unbox(Number oldValue, Number newValue) {
+            oldType = oldValue == null ? 
+                    null : Configs.resolveNumberType(oldValue);
+            oldBits = bitsOf(oldType, oldValue);
+            oldObject = objectOf(oldType, oldValue);
+            newType = newValue == null ? 
+                    null : Configs.resolveNumberType(newValue);
+            newBits = bitsOf(newType, newValue);
+            newObject = objectOf(newType, newValue);
+        }
+        
+        private static long bitsOf(NumberType type, Number value) {
+            if (NumberRepository.isIntegral(type))
+                return value.longValue();
+            if (NumberRepository.isFloating(type))
+                return Double.doubleToRawLongBits(value.doubleValue());
+            return 0L;
+        }
+        
+        private static Object objectOf(NumberType type, Number value) {
+            if (type == null || NumberRepository.isIntegral(type) || 
+                    NumberRepository.isFloating(type))
+                return null;
+            return value;
         }
         
     }
@@ -870,6 +1285,10 @@ public interface Config extends Iterable<Map.Entry<String, ?>> {
             super(name, oldValue, newValue, Repository.STRING, change);
         }
         
+        StringRepoContext() {
+            super(Repository.STRING);
+        }
+        
     }
     
     /**
@@ -883,6 +1302,10 @@ public interface Config extends Iterable<Map.Entry<String, ?>> {
             super(name, oldValue, newValue, Repository.BOOLEAN, change);
         }
         
+        BooleanRepoContext() {
+            super(Repository.BOOLEAN);
+        }
+        
     }
     
 }
@@ -0,0 +1,265 @@
+/*******************************************************************************
+ * Copyright 2014 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package ca.raihan.cfg;
+
+import java.io.Closeable;
+import java.io.File;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Saves a {@code Config} to its linked file in the background whenever it
+ * changes. Every change set reported by {@link Config#commitEvent()}
+ * schedules a save, and all changes made until that save runs are written
+ * by it, so a burst of flushes costs one save. Saves are at least the
+ * interval apart: the first change after a quiet period is saved right
+ * away, later ones wait for the rest of the interval.
+ * <p>
+ * The saver thread never reads the {@code Config} itself. It keeps a copy
+ * of the flushed state in the same format, taken when the autosaver is
+ * constructed, and brings it up to date with copies of the change sets
+ * queued by the committing threads. A save renders that copy into memory
+ * and then writes it to a temporary file that replaces the linked file in
+ * one step, so the file never holds a partial or torn document. Writers
+ * only copy their change set and never wait for the disk, and the
+ * {@code Config} needs no locking of its own for the sake of the saves. A
+ * save that fails is passed to the uncaught exception handler of the saver
+ * thread and tried again with the next change.
+ * 
+ * @author Pranjal Raihan
+ */
+public final class ConfigAutosaver implements Closeable {
+    
+    /**
+     * Numbers the saver threads
+     */
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    
+    
+    private final Config config;
+    
+    private final File file;
+    
+    private final long intervalNanos;
+    
+    /**
+     * The copy of the flushed state that is saved, only read and written on
+     * the saver thread or after it stopped
+     */
+    private final PrivateConfigBase copy;
+    
+    /**
+     * Copies of the change sets committed since the last save, in commit
+     * order
+     */
+    private final ConcurrentLinkedQueue<ConfigChangeSet> changeSets =
+            new ConcurrentLinkedQueue<ConfigChangeSet>();
+    
+    private final ScheduledThreadPoolExecutor executor;
+    
+    /**
+     * {@code true} while changes wait for a scheduled save
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    
+    /**
+     * The {@link System#nanoTime()} the last save started at
+     */
+    private volatile long lastSave;
+    
+    private final AtomicLong saveCount = new AtomicLong();
+    
+    /**
+     * The modification count of the state the last save wrote, only read 
+     * and written on the saver thread or after it stopped
+     */
+    private long savedModCount = -1L;
+    
+    private final Runnable saveTask = new Runnable() {
+        public void run() {
+            try {
+                save();
+            } catch (RuntimeException ex) {
+                Thread t = Thread.currentThread();
+                t.getUncaughtExceptionHandler().uncaughtException(t, ex);
+            }
+        }
+    };
+    
+    private final ConfigEventListener<ConfigChangeSet> listener =
+            new ConfigEventListener<ConfigChangeSet>() {
+                public void onEvent(Object sender, ConfigChangeSet changes) {
+                    // the committing thread may reuse its change set
+                    ConfigChangeSet set = new ConfigChangeSet(changes.size());
+                    set.addAll(changes);
+                    changeSets.add(set);
+                    schedule();
+                }
+            };
+    
+    private volatile boolean closed;
+    
+    
+    
+    
+    /**
+     * Constructs an autosaver and starts its thread. The flushed state of
+     * {@code config} is copied here, so it must not be written to by other
+     * threads until the constructor returns.
+     * 
+     * @param config the {@code Config} to save, linked to a file
+     * @param interval the least time between two saves
+     * @param unit the unit of {@code interval}
+     * 
+     * @throws IllegalArgumentException if {@code config} is not linked to a
+     *         file, or {@code interval} is negative
+     */
+    public ConfigAutosaver(Config config, long interval, TimeUnit unit) {
+        this.config = Contract.nonNull(config, "config");
+        Contract.nonNull(unit, "unit");
+        Contract.require(interval >= 0, "interval cannot be negative");
+        this.file = Configs.linkedFile(config);
+        Contract.require(file != null, "Config is not linked to a file");
+        this.intervalNanos = unit.toNanos(interval);
+        this.lastSave = System.nanoTime() - intervalNanos;
+        
+        // changes committed after the listener is added but already part of
+        // the copy are applied again, which leaves the same state
+        config.commitEvent().addListener(listener);
+        copy = Configs.emptyLike(config);
+        Configs.applyPatch(copy, copy.diff(config));
+        copy.flushState();
+        
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r,
+                        "ConfigAutosaver-" + THREAD_COUNT.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
+    
+    
+    
+    /**
+     * Returns the {@code Config} this autosaver saves.
+     * 
+     * @return the {@code Config}
+     */
+    public Config getConfig() {
+        return config;
+    }
+    
+    /**
+     * Returns the number of saves written so far.
+     * 
+     * @return the number of saves
+     */
+    public long getSaveCount() {
+        return saveCount.get();
+    }
+    
+    /**
+     * Returns {@code true} if changes are waiting for a save.
+     * 
+     * @return {@code true} if changes are waiting for a save
+     */
+    public boolean isPending() {
+        return scheduled.get();
+    }
+    
+    /**
+     * Stops saving in the background and writes the changes still waiting
+     * for a save, on the calling thread.
+     * 
+     * @throws ConfigException if the last save failed
+     */
+    public void close() throws ConfigException {
+        if (closed)
+            return;
+        closed = true;
+        config.commitEvent().removeListener(listener);
+        executor.shutdownNow();
+        try {
+            
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            
+        } catch (InterruptedException ex) {
+            
+            Thread.currentThread().interrupt();
+            
+        }
+        if (scheduled.get())
+            save();
+    }
+    
+    
+    
+    
+    /**
+     * Schedules a save unless one is already waiting, for the end of the
+     * interval that began with the last save.
+     */
+    private void schedule() {
+        if (closed || !scheduled.compareAndSet(false, true))
+            return;
+        long delay = lastSave + intervalNanos - System.nanoTime();
+        try {
+            
+            executor.schedule(saveTask, Math.max(delay, 0L),
+                    TimeUnit.NANOSECONDS);
+            
+        } catch (RejectedExecutionException ex) {
+            
+            // closing, close() writes what is still pending
+            
+        }
+    }
+    
+    /**
+     * Applies the queued change sets to the copy and writes it, unless it is
+     * the state already written. Changes committed from here on schedule the
+     * next save, so none is missed between rendering the copy and writing
+     * it.
+     */
+    private void save() {
+        scheduled.set(false);
+        ConfigChangeSet changes;
+        while ((changes = changeSets.poll()) != null) {
+            // flushed one by one, a delete only sees flushed keys
+            Configs.applyPatch(copy, changes);
+            copy.flushState();
+        }
+        long modCount = copy.getModCount();
+        if (modCount == savedModCount)
+            return;
+        lastSave = System.nanoTime();
+        Configs.writeAtomically(file, Configs.toBytes(copy));
+        savedModCount = modCount;
+        saveCount.incrementAndGet();
+    }
+    
+}
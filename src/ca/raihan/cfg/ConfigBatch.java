@@ -0,0 +1,336 @@
+/*******************************************************************************
+ * Copyright 2014 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package ca.raihan.cfg;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import ca.raihan.cfg.Config.Repository;
+
+/**
+ * A group of changes to a {@code Config} that are made visible together,
+ * acquired via {@link Config#beginBatch()}. Puts and deletes are collected
+ * in the batch only; the {@code Config} and its readers see none of them
+ * until {@link #commit()}, which publishes them all at once, raises the
+ * repository event once for each key that actually changed and then the
+ * commit event once for the whole batch. {@link #rollback()} throws them
+ * away. Later changes to a key replace earlier ones within a batch.
+ * <p>
+ * A committed batch takes effect at once, without waiting for
+ * {@link Config#flushState()}, and replaces any pending put or delete of
+ * the same keys; other pending changes are left alone. Once committed or
+ * rolled back, a batch cannot be used again. Batches are not thread-safe;
+ * the commit is as atomic as the {@code Config} it was begun on.
+ * 
+ * @author Pranjal Raihan
+ */
+public final class ConfigBatch {
+    
+    /**
+     * Publishes the changes of a batch to its {@code Config}.
+     */
+    static interface Committer {
+        
+        void commit(ConfigBatch batch);
+        
+    }
+    
+    
+    final Map<String, Boolean> booleans =
+            new LinkedHashMap<String, Boolean>();
+    
+    final Map<String, Number> numbers = new LinkedHashMap<String, Number>();
+    
+    final Map<String, String> strings = new LinkedHashMap<String, String>();
+    
+    final Set<String> deletedBooleans = new HashSet<String>();
+    
+    final Set<String> deletedNumbers = new HashSet<String>();
+    
+    final Set<String> deletedStrings = new HashSet<String>();
+    
+    private final Committer committer;
+    
+    /**
+     * {@code true} once committed or rolled back
+     */
+    private boolean done;
+    
+    
+    
+    
+    ConfigBatch(Committer committer) {
+        this.committer = committer;
+    }
+    
+    
+    
+    
+    /**
+     * Puts a {@code boolean} when the batch is committed.
+     * 
+     * @param key the key
+     * @param value the value
+     * 
+     * @return this batch
+     */
+    public ConfigBatch putBoolean(String key, boolean value) {
+        checkOpen(key);
+        booleans.put(key, Boolean.valueOf(value));
+        deletedBooleans.remove(key);
+        return this;
+    }
+    
+    /**
+     * Puts a {@code byte} when the batch is committed.
+     * 
+     * @param key the key
+     * @param value the value
+     * 
+     * @return this batch
+     */
+    public ConfigBatch putByte(String key, byte value) {
+        return number(key, Byte.valueOf(value));
+    }
+    
+    /**
+     * Puts a {@code short} when the batch is committed.
+     * 
+     * @param key the key
+     * @param value the value
+     * 
+     * @return this batch
+     */
+    public ConfigBatch putShort(String key, short value) {
+        return number(key, Short.valueOf(value));
+    }
+    
+    /**
+     * Puts an {@code int} when the batch is committed.
+     * 
+     * @param key the key
+     * @param value the value
+     * 
+     * @return this batch
+     */
+    public ConfigBatch putInt(String key, int value) {
+        return number(key, Integer.valueOf(value));
+    }
+    
+    /**
+     * Puts a {@code long} when the batch is committed.
+     * 
+     * @param key the key
+     * @param value the value
+     * 
+     * @return this batch
+     */
+    public ConfigBatch putLong(String key, long value) {
+        return number(key, Long.valueOf(value));
+    }
+    
+    /**
+     * Puts a {@code float} when the batch is committed.
+     * 
+     * @param key the key
+     * @param value the value
+     * 
+     * @return this batch
+     */
+    public ConfigBatch putFloat(String key, float value) {
+        return number(key, Float.valueOf(value));
+    }
+    
+    /**
+     * Puts a {@code double} when the batch is committed.
+     * 
+     * @param key the key
+     * @param value the value
+     * 
+     * @return this batch
+     */
+    public ConfigBatch putDouble(String key, double value) {
+        return number(key, Double.valueOf(value));
+    }
+    
+    /**
+     * Puts a {@code BigInteger} when the batch is committed.
+     * 
+     * @param key the key
+     * @param value the value
+     * 
+     * @return this batch
+     */
+    public ConfigBatch putBigInteger(String key, BigInteger value) {
+        return number(key, Contract.nonNull(value, "value"));
+    }
+    
+    /**
+     * Puts a {@code BigDecimal} when the batch is committed.
+     * 
+     * @param key the key
+     * @param value the value
+     * 
+     * @return this batch
+     */
+    public ConfigBatch putBigDecimal(String key, BigDecimal value) {
+        return number(key, Contract.nonNull(value, "value"));
+    }
+    
+    /**
+     * Puts a {@code String} when the batch is committed.
+     * 
+     * @param key the key
+     * @param value the value
+     * 
+     * @return this batch
+     */
+    public ConfigBatch putString(String key, String value) {
+        checkOpen(key);
+        strings.put(key, Contract.nonNull(value, "value"));
+        deletedStrings.remove(key);
+        return this;
+    }
+    
+    /**
+     * Deletes a key from the specified {@code Repository} when the batch is
+     * committed. Deleting a key that does not exist by then has no effect.
+     * 
+     * @param key the key
+     * @param repository the {@code Repository} of the key
+     * 
+     * @return this batch
+     */
+    public ConfigBatch delete(String key, Repository repository) {
+        checkOpen(key);
+        Contract.nonNull(repository, "repository");
+        switch (repository) {
+            case BOOLEAN:
+                booleans.remove(key);
+                deletedBooleans.add(key);
+                break;
+            case STRING:
+                strings.remove(key);
+                deletedStrings.add(key);
+                break;
+            case NUMBER:
+                numbers.remove(key);
+                deletedNumbers.add(key);
+                break;
+        }
+        return this;
+    }
+    
+    /**
+     * Returns the number of puts and deletes collected.
+     * 
+     * @return the number of puts and deletes collected
+     */
+    public int size() {
+        return booleans.size() + numbers.size() + strings.size() +
+                deletedBooleans.size() + deletedNumbers.size() +
+                deletedStrings.size();
+    }
+    
+    /**
+     * Publishes all collected changes to the {@code Config}.
+     * 
+     * @throws ConfigException if the changes could not be published
+     * @throws IllegalStateException if the batch was already committed or
+     *         rolled back
+     */
+    public void commit() throws ConfigException {
+        checkOpen();
+        done = true;
+        if (size() > 0)
+            committer.commit(this);
+    }
+    
+    /**
+     * Throws away all collected changes.
+     * 
+     * @throws IllegalStateException if the batch was already committed or
+     *         rolled back
+     */
+    public void rollback() {
+        checkOpen();
+        done = true;
+        clear();
+    }
+    
+    
+    
+    
+    /**
+     * Collects all changes of another batch into this one.
+     * 
+     * @param other the batch to take the changes of
+     * 
+     * @return this batch
+     */
+    ConfigBatch addAll(ConfigBatch other) {
+        for (String key : other.deletedBooleans)
+            delete(key, Repository.BOOLEAN);
+        for (String key : other.deletedNumbers)
+            delete(key, Repository.NUMBER);
+        for (String key : other.deletedStrings)
+            delete(key, Repository.STRING);
+        for (Map.Entry<String, Boolean> entry : other.booleans.entrySet())
+            putBoolean(entry.getKey(), entry.getValue().booleanValue());
+        for (Map.Entry<String, Number> entry : other.numbers.entrySet())
+            number(entry.getKey(), entry.getValue());
+        for (Map.Entry<String, String> entry : other.strings.entrySet())
+            putString(entry.getKey(), entry.getValue());
+        return this;
+    }
+    
+    /**
+     * Puts a {@code Number} of any {@code NumberType} when the batch is 
+     * committed.
+     */
+    ConfigBatch number(String key, Number value) {
+        checkOpen(key);
+        numbers.put(key, value);
+        deletedNumbers.remove(key);
+        return this;
+    }
+    
+    private void clear() {
+        booleans.clear();
+        numbers.clear();
+        strings.clear();
+        deletedBooleans.clear();
+        deletedNumbers.clear();
+        deletedStrings.clear();
+    }
+    
+    private void checkOpen(String key) {
+        Contract.nonNull(key, "key");
+        checkOpen();
+    }
+    
+    private void checkOpen() {
+        if (done)
+            throw new IllegalStateException("batch already completed");
+    }
+    
+}
@@ -0,0 +1,817 @@
+/*******************************************************************************
+ * Copyright 2014 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package ca.raihan.cfg;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ca.raihan.cfg.Config.BooleanRepoContext;
+import ca.raihan.cfg.Config.ChangeAction;
+import ca.raihan.cfg.Config.NumberRepoContext;
+import ca.raihan.cfg.Config.Repository;
+import ca.raihan.cfg.Config.StringRepoContext;
+
+/**
+ * A change feed that publishes the events of one or more {@code Config}s
+ * into a preallocated ring of slots, read by any number of
+ * {@link Handler}s, each on its own thread. Publishing copies the change
+ * into the next slot and returns; handlers never run on the writing thread,
+ * so the cost of a put does not depend on what they do.
+ * <p>
+ * Each handler keeps its own position in the ring and takes every change
+ * that was published since its last batch in one go, with
+ * {@code endOfBatch} set on the last one. When a handler falls a whole ring
+ * behind, the {@link Backpressure} policy decides what happens to the next
+ * change: the writer waits ({@code BLOCK}), the oldest change is
+ * overwritten and counted as dropped ({@code DROP_OLDEST}), or the change is
+ * merged with the pending change of the same key, keeping the oldest old
+ * value and the newest new value, until the ring has room again
+ * ({@code COALESCE_BY_KEY}). The {@link WaitStrategy} decides how an idle
+ * handler waits for changes.
+ * <p>
+ * Changes are published in the order they were raised. Writers are
+ * serialized by the ring, so it can be attached to several {@code Config}s
+ * at once.
+ * 
+ * @author Pranjal Raihan
+ */
+public final class ConfigChangeRing {
+    
+    /**
+     * How an idle handler waits for the next change.
+     */
+    public static enum WaitStrategy {
+        /**
+         * Spins on the ring. Lowest latency, burns a core per handler.
+         */
+        BUSY_SPIN,
+        /**
+         * Spins, then yields the processor between checks.
+         */
+        YIELDING,
+        /**
+         * Spins, then parks for short periods between checks.
+         */
+        SLEEPING,
+        /**
+         * Blocks on a lock until a change is published. Lowest CPU use,
+         * writers pay for a signal while a handler is blocked.
+         */
+        BLOCKING
+    }
+    
+    /**
+     * What a writer does when the ring is full.
+     */
+    public static enum Backpressure {
+        /**
+         * Wait until the slowest handler frees a slot.
+         */
+        BLOCK,
+        /**
+         * Overwrite the oldest change. Handlers that had not read it skip
+         * ahead and the change is counted by {@link #getDroppedCount()}.
+         */
+        DROP_OLDEST,
+        /**
+         * Hold the change aside, merged with any other held change of the
+         * same key, and publish it once the ring has room.
+         */
+        COALESCE_BY_KEY
+    }
+    
+    /**
+     * A reader of the ring.
+     */
+    public static interface Handler {
+        
+        /**
+         * Called for every change, in order, on the thread of the handler.
+         * The {@code Change} is reused for the next call.
+         * 
+         * @param change the change
+         * @param sequence the position of the change in the feed
+         * @param endOfBatch {@code true} for the last change currently
+         * available
+         */
+        void onChange(Change change, long sequence, boolean endOfBatch);
+        
+    }
+    
+    /**
+     * A change read from the ring. Each handler has one {@code Change} that
+     * is refilled for every call, so it must not be kept.
+     */
+    public static final class Change {
+        
+        Object source;
+        
+        String key;
+        
+        Repository repository;
+        
+        ChangeAction action;
+        
+        Object oldValue;
+        
+        Object newValue;
+        
+        
+        
+        
+        Change() {
+        }
+        
+        
+        
+        
+        /**
+         * Returns the {@code Config} the change was made to.
+         * 
+         * @return the {@code Config} the change was made to
+         */
+        public Object getSource() {
+            return source;
+        }
+        
+        /**
+         * Returns the key.
+         * 
+         * @return the key
+         */
+        public String getKey() {
+            return key;
+        }
+        
+        /**
+         * Returns the {@code Repository} of the key.
+         * 
+         * @return the {@code Repository} of the key
+         */
+        public Repository getRepository() {
+            return repository;
+        }
+        
+        /**
+         * Returns the {@code ChangeAction}.
+         * 
+         * @return the {@code ChangeAction}
+         */
+        public ChangeAction getChangeAction() {
+            return action;
+        }
+        
+        /**
+         * Returns the old value.
+         * 
+         * @return the old value
+         */
+        public Object getOldValue() {
+            return oldValue;
+        }
+        
+        /**
+         * Returns the new value.
+         * 
+         * @return the new value
+         */
+        public Object getNewValue() {
+            return newValue;
+        }
+        
+        @Override
+        public String toString() {
+            return repository + "[" + key + "] " + action + " " + oldValue +
+                    " -> " + newValue;
+        }
+        
+    }
+    
+    
+    
+    
+    /**
+     * The number of checks a waiting thread spins for before it yields or
+     * parks
+     */
+    static final int SPIN_TRIES = 100;
+    
+    /**
+     * The time a {@code SLEEPING} handler or a blocked writer parks for
+     */
+    static final long PARK_NANOS = 50000L;
+    
+    
+    private final Slot[] slots;
+    
+    private final int mask;
+    
+    private final WaitStrategy waitStrategy;
+    
+    private final Backpressure backpressure;
+    
+    private final ThreadFactory threadFactory;
+    
+    /**
+     * The sequence of the last published change
+     */
+    private final AtomicLong cursor = new AtomicLong(-1L);
+    
+    /**
+     * The sequence of the next change, guarded by {@link #producerLock}
+     */
+    private long nextSequence;
+    
+    /**
+     * The lowest sequence read by all handlers when last checked, guarded by
+     * {@link #producerLock}
+     */
+    private long gatingSequence = -1L;
+    
+    /**
+     * Serializes writers
+     */
+    private final Object producerLock = new Object();
+    
+    /**
+     * The changes held aside by {@code COALESCE_BY_KEY}, in the order their
+     * keys were first held, guarded by {@link #producerLock}
+     */
+    private final Map<HeldKey, Change> held =
+            new LinkedHashMap<HeldKey, Change>();
+    
+    /**
+     * The number of held changes
+     */
+    private volatile int heldCount;
+    
+    private volatile Consumer[] consumers = new Consumer[0];
+    
+    private volatile boolean running;
+    
+    private boolean started;
+    
+    private final AtomicLong dropped = new AtomicLong();
+    
+    private final ReentrantLock waitLock = new ReentrantLock();
+    
+    private final Condition published = waitLock.newCondition();
+    
+    /**
+     * The number of handlers blocked on {@link #published}
+     */
+    private volatile int waiters;
+    
+    
+    private final ConfigEventListener<NumberRepoContext> numberListener =
+            new ConfigEventListener<NumberRepoContext>() {
+        public void onEvent(Object sender, NumberRepoContext context) {
+            publish(sender, context);
+        }
+    };
+    
+    private final ConfigEventListener<StringRepoContext> stringListener =
+            new ConfigEventListener<StringRepoContext>() {
+        public void onEvent(Object sender, StringRepoContext context) {
+            publish(sender, context);
+        }
+    };
+    
+    private final ConfigEventListener<BooleanRepoContext> booleanListener =
+            new ConfigEventListener<BooleanRepoContext>() {
+        public void onEvent(Object sender, BooleanRepoContext context) {
+            publish(sender, context);
+        }
+    };
+    
+    
+    
+    
+    /**
+     * Constructs a ring with daemon handler threads.
+     * 
+     * @param capacity the number of slots, rounded up to a power of two
+     * @param waitStrategy how idle handlers wait
+     * @param backpressure what writers do when the ring is full
+     */
+    public ConfigChangeRing(int capacity, WaitStrategy waitStrategy,
+            Backpressure backpressure) {
+        this(capacity, waitStrategy, backpressure, null);
+    }
+    
+    /**
+     * Constructs a ring.
+     * 
+     * @param capacity the number of slots, rounded up to a power of two
+     * @param waitStrategy how idle handlers wait
+     * @param backpressure what writers do when the ring is full
+     * @param threadFactory the factory of handler threads, or {@code null}
+     * for daemon threads
+     */
+    public ConfigChangeRing(int capacity, WaitStrategy waitStrategy,
+            Backpressure backpressure, ThreadFactory threadFactory) {
+        Contract.require(capacity > 0, "capacity must be positive");
+        Contract.require(capacity <= 1 << 30, "capacity is too large");
+        this.waitStrategy = Contract.nonNull(waitStrategy, "waitStrategy");
+        this.backpressure = Contract.nonNull(backpressure, "backpressure");
+        this.threadFactory = threadFactory != null ?
+                threadFactory : new DaemonThreadFactory();
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+        slots = new Slot[size];
+        for (int i = 0; i < size; ++i)
+            slots[i] = new Slot();
+        mask = size - 1;
+    }
+    
+    
+    
+    
+    /**
+     * Adds a handler. Handlers must be added before {@link #start()}.
+     * 
+     * @param handler the handler
+     * 
+     * @return this ring
+     * 
+     * @throws IllegalStateException if the ring was started
+     */
+    public ConfigChangeRing addHandler(Handler handler) {
+        Contract.nonNull(handler, "handler");
+        synchronized (producerLock) {
+            if (started)
+                throw new IllegalStateException("ring already started");
+            Consumer[] current = consumers;
+            Consumer[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = new Consumer(handler);
+            consumers = next;
+        }
+        return this;
+    }
+    
+    /**
+     * Starts a thread for each handler. Handlers receive the changes
+     * published from now on.
+     * 
+     * @throws IllegalStateException if the ring was started
+     */
+    public void start() {
+        synchronized (producerLock) {
+            if (started)
+                throw new IllegalStateException("ring already started");
+            started = true;
+            running = true;
+            long start = cursor.get();
+            for (Consumer consumer : consumers) {
+                consumer.sequence.set(start);
+                threadFactory.newThread(consumer).start();
+            }
+        }
+    }
+    
+    /**
+     * Stops the handler threads once they finish their current batch.
+     * Writers blocked by {@code BLOCK} are released and their changes are
+     * dropped.
+     */
+    public void halt() {
+        running = false;
+        signalWaiters();
+    }
+    
+    /**
+     * Publishes the events of a {@code Config} into this ring.
+     * 
+     * @param config the {@code Config}
+     */
+    public void attach(Config config) {
+        Contract.nonNull(config, "config");
+        config.numberEvent().addListener(numberListener);
+        config.stringEvent().addListener(stringListener);
+        config.booleanEvent().addListener(booleanListener);
+    }
+    
+    /**
+     * Stops publishing the events of a {@code Config}.
+     * 
+     * @param config the {@code Config}
+     */
+    public void detach(Config config) {
+        Contract.nonNull(config, "config");
+        config.numberEvent().removeListener(numberListener);
+        config.stringEvent().removeListener(stringListener);
+        config.booleanEvent().removeListener(booleanListener);
+    }
+    
+    /**
+     * Returns the number of slots.
+     * 
+     * @return the number of slots
+     */
+    public int getCapacity() {
+        return slots.length;
+    }
+    
+    /**
+     * Returns the number of changes the slowest handler has yet to read,
+     * including changes held aside by {@code COALESCE_BY_KEY}.
+     * 
+     * @return the number of unread changes
+     */
+    public long getBacklog() {
+        long last = cursor.get();
+        long backlog = 0L;
+        for (Consumer consumer : consumers)
+            backlog = Math.max(backlog, last - consumer.sequence.get());
+        return Math.min(backlog, slots.length) + heldCount;
+    }
+    
+    /**
+     * Returns the number of changes overwritten before a handler read them,
+     * counted once per handler.
+     * 
+     * @return the number of dropped changes
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+    
+    
+    
+    
+    private void publish(Object sender, ConfigRepoContext<?> context) {
+        publish(sender, context.getKey(), context.getRepository(),
+                context.getChangeAction(), context.getOldValue(),
+                context.getNewValue());
+    }
+    
+    void publish(Object source, String key, Repository repository,
+            ChangeAction action, Object oldValue, Object newValue) {
+        synchronized (producerLock) {
+            if (heldCount > 0) {
+                publishHeld();
+                if (heldCount > 0) {
+                    hold(source, key, repository, action, oldValue, newValue);
+                    return;
+                }
+            }
+            long sequence = nextSequence;
+            if (!hasCapacity(sequence)) {
+                switch (backpressure) {
+                    case BLOCK:
+                        awaitCapacity(sequence);
+                        break;
+                    case COALESCE_BY_KEY:
+                        hold(source, key, repository, action, oldValue,
+                                newValue);
+                        return;
+                    case DROP_OLDEST:
+                        break;
+                }
+            }
+            write(sequence, source, key, repository, action, oldValue,
+                    newValue);
+        }
+        signalWaiters();
+    }
+    
+    /**
+     * Returns {@code true} if every handler has read the change that
+     * {@code sequence} would overwrite. Guarded by {@link #producerLock}.
+     */
+    private boolean hasCapacity(long sequence) {
+        long wrap = sequence - slots.length;
+        if (wrap < gatingSequence)
+            return true;
+        gatingSequence = minimumSequence();
+        return wrap < gatingSequence;
+    }
+    
+    private long minimumSequence() {
+        long min = Long.MAX_VALUE;
+        for (Consumer consumer : consumers)
+            min = Math.min(min, consumer.sequence.get());
+        return min;
+    }
+    
+    private void awaitCapacity(long sequence) {
+        int counter = 0;
+        while (running && !hasCapacity(sequence)) {
+            if (++counter < SPIN_TRIES)
+                Thread.yield();
+            else
+                LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+    
+    /**
+     * Writes a change to its slot under a version count, so that a handler
+     * reading the slot while {@code DROP_OLDEST} overwrites it notices and
+     * skips it. Guarded by {@link #producerLock}.
+     */
+    private void write(long sequence, Object source, String key,
+            Repository repository, ChangeAction action, Object oldValue,
+            Object newValue) {
+        Slot slot = slots[(int) sequence & mask];
+        long version = slot.version;
+        slot.version = version + 1;
+        slot.source = source;
+        slot.key = key;
+        slot.repository = repository;
+        slot.action = action;
+        slot.oldValue = oldValue;
+        slot.newValue = newValue;
+        slot.sequence = sequence;
+        slot.version = version + 2;
+        nextSequence = sequence + 1;
+        cursor.set(sequence);
+    }
+    
+    /**
+     * Merges a change into the held changes. Guarded by
+     * {@link #producerLock}.
+     */
+    private void hold(Object source, String key, Repository repository,
+            ChangeAction action, Object oldValue, Object newValue) {
+        HeldKey heldKey = new HeldKey(source, repository, key);
+        Change change = held.get(heldKey);
+        if (change == null) {
+            change = new Change();
+            change.source = source;
+            change.key = key;
+            change.repository = repository;
+            change.oldValue = oldValue;
+            held.put(heldKey, change);
+            heldCount = held.size();
+        }
+        change.action = action;
+        change.newValue = newValue;
+    }
+    
+    /**
+     * Moves held changes into the ring while it has room. Guarded by
+     * {@link #producerLock}.
+     */
+    private void publishHeld() {
+        Iterator<Change> it = held.values().iterator();
+        while (it.hasNext() && hasCapacity(nextSequence)) {
+            Change change = it.next();
+            write(nextSequence, change.source, change.key,
+                    change.repository, change.action, change.oldValue,
+                    change.newValue);
+            it.remove();
+        }
+        heldCount = held.size();
+    }
+    
+    private void signalWaiters() {
+        if (waiters == 0)
+            return;
+        waitLock.lock();
+        try {
+            published.signalAll();
+        } finally {
+            waitLock.unlock();
+        }
+    }
+    
+    /**
+     * Waits until a change at or after {@code sequence} is published and
+     * returns the last published sequence, or returns early once the ring
+     * is halted.
+     */
+    private long waitFor(long sequence) throws InterruptedException {
+        long available;
+        int counter = 0;
+        while ((available = cursor.get()) < sequence && running) {
+            switch (waitStrategy) {
+                case BUSY_SPIN:
+                    break;
+                case YIELDING:
+                    if (++counter > SPIN_TRIES)
+                        Thread.yield();
+                    break;
+                case SLEEPING:
+                    if (++counter > SPIN_TRIES)
+                        LockSupport.parkNanos(PARK_NANOS);
+                    else if (counter > SPIN_TRIES / 2)
+                        Thread.yield();
+                    break;
+                case BLOCKING:
+                    waitLock.lock();
+                    try {
+                        waiters++;
+                        while (cursor.get() < sequence && running)
+                            published.await();
+                    } finally {
+                        waiters--;
+                        waitLock.unlock();
+                    }
+                    break;
+            }
+        }
+        return available;
+    }
+    
+    
+    
+    
+    /**
+     * A slot of the ring. All fields are volatile so that the version count
+     * orders them for readers.
+     */
+    private static final class Slot {
+        
+        volatile long version;
+        
+        volatile long sequence = -1L;
+        
+        volatile Object source;
+        
+        volatile String key;
+        
+        volatile Repository repository;
+        
+        volatile ChangeAction action;
+        
+        volatile Object oldValue;
+        
+        volatile Object newValue;
+        
+    }
+    
+    /**
+     * The key of a held change.
+     */
+    private static final class HeldKey {
+        
+        final Object source;
+        
+        final Repository repository;
+        
+        final String key;
+        
+        
+        
+        
+        HeldKey(Object source, Repository repository, String key) {
+            this.source = source;
+            this.repository = repository;
+            this.key = key;
+        }
+        
+        
+        
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof HeldKey))
+                return false;
+            HeldKey other = (HeldKey) o;
+            return source == other.source &&
+                    repository == other.repository && key.equals(other.key);
+        }
+        
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(source) * 31 +
+                    repository.hashCode()) * 31 + key.hashCode();
+        }
+        
+    }
+    
+    /**
+     * The loop of one handler.
+     */
+    private final class Consumer implements Runnable {
+        
+        final Handler handler;
+        
+        /**
+         * The sequence of the last change read
+         */
+        final AtomicLong sequence = new AtomicLong(-1L);
+        
+        private final Change change = new Change();
+        
+        
+        
+        
+        Consumer(Handler handler) {
+            this.handler = handler;
+        }
+        
+        
+        
+        
+        public void run() {
+            long next = sequence.get() + 1;
+            try {
+                while (running) {
+                    long available = waitFor(next);
+                    if (available < next)
+                        continue;
+                    long oldest = available - slots.length + 1;
+                    if (next < oldest) {
+                        dropped.addAndGet(oldest - next);
+                        next = oldest;
+                    }
+                    for (; next <= available; ++next) {
+                        if (!read(next))
+                            break;
+                        deliver(next, next == available);
+                    }
+                    sequence.set(next - 1);
+                    if (heldCount > 0) {
+                        synchronized (producerLock) {
+                            publishHeld();
+                        }
+                        signalWaiters();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        /**
+         * Copies a slot into {@link #change}. Returns {@code false} if the
+         * slot was overwritten by a later change.
+         */
+        private boolean read(long expected) {
+            Slot slot = slots[(int) expected & mask];
+            for (;;) {
+                long version = slot.version;
+                if ((version & 1L) != 0L) {
+                    Thread.yield();
+                    continue;
+                }
+                long seq = slot.sequence;
+                change.source = slot.source;
+                change.key = slot.key;
+                change.repository = slot.repository;
+                change.action = slot.action;
+                change.oldValue = slot.oldValue;
+                change.newValue = slot.newValue;
+                if (slot.version != version)
+                    continue;
+                return seq == expected;
+            }
+        }
+        
+        private void deliver(long seq, boolean endOfBatch) {
+            try {
+                handler.onChange(change, seq, endOfBatch);
+            } catch (RuntimeException ex) {
+                // a failing handler must not stop the feed
+                Thread t = Thread.currentThread();
+                t.getUncaughtExceptionHandler().uncaughtException(t, ex);
+            } finally {
+                change.source = null;
+                change.oldValue = null;
+                change.newValue = null;
+            }
+        }
+        
+    }
+    
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        
+        private static final AtomicInteger COUNT = new AtomicInteger();
+        
+        
+        
+        
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ConfigChangeRing-" +
+                    COUNT.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+        
+    }
+    
+}
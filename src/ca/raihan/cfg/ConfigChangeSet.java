@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright 2014 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package ca.raihan.cfg;
+
+import java.util.Arrays;
+
+import ca.raihan.cfg.Config.ChangeAction;
+import ca.raihan.cfg.Config.Repository;
+
+/**
+ * The context of {@link Config#commitEvent()}: every change made visible by 
+ * one {@link Config#flushState()}, across all {@code Repository}. Each key 
+ * appears at most once per {@code Repository}, with its value before the 
+ * flush and its value after it. Puts that leave a value unchanged, and keys 
+ * put and deleted again between two flushes, are left out.
+ * <p>
+ * {@link Config#diff(Config)} returns the same form, with the values of the 
+ * two instances compared in place of before and after the flush, and 
+ * {@link Config#applyPatch(ConfigChangeSet)} takes it back.
+ * <p>
+ * Changes are kept in parallel arrays and read by index:
+ * <pre>
+ * for (int i = 0; i &lt; changes.size(); ++i)
+ *     handle(changes.getKey(i), changes.getNewValue(i));
+ * </pre>
+ * 
+ * @author Pranjal Raihan
+ */
+public final class ConfigChangeSet implements ConfigEventContext {
+    
+    /**
+     * toString format
+     */
+    static String TO_STRING_FORMAT = "%s {Changes: %d}";
+    
+    
+    private String[] keys;
+    
+    private Repository[] repositories;
+    
+    private Object[] oldValues;
+    
+    private Object[] newValues;
+    
+    private int size;
+    
+    
+    
+    
+    /**
+     * Constructs an empty change set.
+     * 
+     * @param capacity the expected number of changes
+     */
+    ConfigChangeSet(int capacity) {
+        capacity = Math.max(capacity, 1);
+        keys = new String[capacity];
+        repositories = new Repository[capacity];
+        oldValues = new Object[capacity];
+        newValues = new Object[capacity];
+    }
+    
+    
+    
+    
+    /**
+     * Records a change, unless both values are equal.
+     * 
+     * @param repository the {@code Repository} of the key
+     * @param key the key
+     * @param oldValue the value before the flush, {@code null} if the key did 
+     * not exist
+     * @param newValue the value after the flush, {@code null} if the key was 
+     * deleted
+     */
+    void add(Repository repository, String key, Object oldValue, 
+            Object newValue) {
+        if (oldValue == null ? newValue == null : oldValue.equals(newValue))
+            return;
+        if (size == keys.length) {
+            int capacity = size << 1;
+            keys = Arrays.copyOf(keys, capacity);
+            repositories = Arrays.copyOf(repositories, capacity);
+            oldValues = Arrays.copyOf(oldValues, capacity);
+            newValues = Arrays.copyOf(newValues, capacity);
+        }
+        keys[size] = key;
+        repositories[size] = repository;
+        oldValues[size] = oldValue;
+        newValues[size] = newValue;
+        size++;
+    }
+    
+    /**
+     * Appends all changes of another change set.
+     * 
+     * @param other the change set to append
+     */
+    void addAll(ConfigChangeSet other) {
+        for (int i = 0; i < other.size; ++i)
+            add(other.repositories[i], other.keys[i], other.oldValues[i], 
+                    other.newValues[i]);
+    }
+    
+    
+    
+    
+    /**
+     * Returns the number of changes.
+     * 
+     * @return the number of changes
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Returns {@code true} if there are no changes.
+     * 
+     * @return {@code true} if there are no changes
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    /**
+     * Returns the key of a change.
+     * 
+     * @param index the index of the change
+     * 
+     * @return the key
+     * 
+     * @throws IndexOutOfBoundsException if {@code index} is out of range
+     */
+    public String getKey(int index) {
+        return keys[checkIndex(index)];
+    }
+    
+    /**
+     * Returns the {@code Repository} of a change.
+     * 
+     * @param index the index of the change
+     * 
+     * @return the {@code Repository}
+     * 
+     * @throws IndexOutOfBoundsException if {@code index} is out of range
+     */
+    public Repository getRepository(int index) {
+        return repositories[checkIndex(index)];
+    }
+    
+    /**
+     * Returns the {@code ChangeAction} of a change: {@code DELETE} if the key 
+     * no longer exists, otherwise {@code PUT}.
+     * 
+     * @param index the index of the change
+     * 
+     * @return the {@code ChangeAction}
+     * 
+     * @throws IndexOutOfBoundsException if {@code index} is out of range
+     */
+    public ChangeAction getChangeAction(int index) {
+        return newValues[checkIndex(index)] == null ? 
+                ChangeAction.DELETE : ChangeAction.PUT;
+    }
+    
+    /**
+     * Returns the value of a key before the flush, or {@code null} if the key 
+     * did not exist.
+     * 
+     * @param index the index of the change
+     * 
+     * @return the old value
+     * 
+     * @throws IndexOutOfBoundsException if {@code index} is out of range
+     */
+    public Object getOldValue(int index) {
+        return oldValues[checkIndex(index)];
+    }
+    
+    /**
+     * Returns the value of a key after the flush, or {@code null} if the key 
+     * was deleted.
+     * 
+     * @param index the index of the change
+     * 
+     * @return the new value
+     * 
+     * @throws IndexOutOfBoundsException if {@code index} is out of range
+     */
+    public Object getNewValue(int index) {
+        return newValues[checkIndex(index)];
+    }
+    
+    
+    
+    
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException(
+                    "Index: " + index + ", Size: " + size);
+        return index;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format(TO_STRING_FORMAT, super.toString(), size);
+    }
+    
+}
@@ -16,12 +16,37 @@
 
 package ca.raihan.cfg;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A class that represents an event. Listeners can be added or removed and 
  * events can be raised in any scope with access to a key.
+ * <p>
+ * By default listeners are signalled on the thread that raises the event. 
+ * Once an {@code Executor} is set with {@link #setExecutor(Executor)}, 
+ * {@link #raise(Object, Object, ConfigEventContext) raise} only queues the 
+ * event and returns; the listeners are signalled by the {@code Executor}. 
+ * Events for the same key of a {@link ConfigRepoContext} are delivered one 
+ * at a time, in the order they were raised; events for different keys may be 
+ * delivered concurrently.
+ * <p>
+ * Listeners can be scoped to a single key or to a key prefix with 
+ * {@link #addKeyListener(String, ConfigEventListener)} and 
+ * {@link #addPrefixListener(String, ConfigEventListener)}. Scoped listeners 
+ * are kept in an index and only the ones matching the key of the raised 
+ * {@link ConfigRepoContext} are signalled, so an event costs nothing for 
+ * listeners of other keys. Listeners are signalled in this order: unscoped 
+ * listeners, prefix listeners from the shortest prefix to the longest, then 
+ * key listeners.
  * 
  * @author Pranjal Raihan
  * 
@@ -29,12 +54,71 @@ import java.util.Set;
  */
 public final class ConfigEvent<T extends ConfigEventContext> {
     
-    private final Set<ConfigEventListener<T>> listeners = 
-            new HashSet<ConfigEventListener<T>>();
+    /**
+     * The shared empty array of listeners
+     */
+    private static final ConfigEventListener<?>[] NO_LISTENERS = 
+            new ConfigEventListener<?>[0];
+    
+    
+    /**
+     * The listeners. The array is never modified once published: adding or 
+     * removing a listener publishes a copy, so raising the event reads the 
+     * current array once and loops over it without locking.
+     */
+    private final AtomicReference<ConfigEventListener<T>[]> listeners = 
+            new AtomicReference<ConfigEventListener<T>[]>(
+                    ConfigEvent.<T>noListeners());
+    
+    /**
+     * The listeners scoped to a single key
+     */
+    private final ConcurrentMap<String, ConfigEventListener<T>[]> 
+            keyListeners = 
+                    new ConcurrentHashMap<String, ConfigEventListener<T>[]>();
+    
+    /**
+     * The root of the trie of listeners scoped to a key prefix
+     */
+    private final AtomicReference<PrefixNode<T>> prefixRoot = 
+            new AtomicReference<PrefixNode<T>>(PrefixNode.<T>empty());
     
     private final Object key;
     
-    private final Object mutex = new Object();
+    /**
+     * The {@code Executor} of asynchronous dispatch, {@code null} to signal 
+     * listeners on the raising thread
+     */
+    private volatile Executor executor;
+    
+    /**
+     * {@code true} if raisers may reuse context objects between synchronous 
+     * events
+     */
+    private volatile boolean contextReuse;
+    
+    /**
+     * A delivered context kept for reuse, {@code null} while lent out
+     */
+    private T spareContext;
+    
+    /**
+     * The serial queue of each key with undelivered events
+     */
+    private final ConcurrentMap<Object, SerialQueue> queues = 
+            new ConcurrentHashMap<Object, SerialQueue>();
+    
+    /**
+     * The number of queued, undelivered events
+     */
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    
+    
+    /**
+     * The number of events a serial queue delivers before it yields its 
+     * thread back to the {@code Executor}
+     */
+    static final int DELIVERIES_PER_RUN = 64;
     
     
     
@@ -66,8 +150,11 @@ public final class ConfigEvent<T extends ConfigEventContext> {
      */
     public void addListener(ConfigEventListener<T> listener) {
         Contract.nonNull(listener);
-        synchronized (mutex) {
-            listeners.add(listener);
+        for (;;) {
+            ConfigEventListener<T>[] current = listeners.get();
+            ConfigEventListener<T>[] next = with(current, listener);
+            if (next == current || listeners.compareAndSet(current, next))
+                return;
         }
     }
     
@@ -84,8 +171,115 @@ public final class ConfigEvent<T extends ConfigEventContext> {
     public boolean removeListener(ConfigEventListener<T> listener) {
         if (listener == null)
             return false;
-        synchronized (mutex) {
-            return listeners.remove(listener);
+        for (;;) {
+            ConfigEventListener<T>[] current = listeners.get();
+            ConfigEventListener<T>[] next = without(current, listener);
+            if (next == current)
+                return false;
+            if (listeners.compareAndSet(current, next))
+                return true;
+        }
+    }
+    
+    /**
+     * Adds a listener that is only signalled for events whose 
+     * {@link ConfigRepoContext#getKey() key} equals {@code key}.
+     * 
+     * @param key the key to listen to
+     * @param listener the listener to add
+     * 
+     * @throws NullPointerException if {@code key} or {@code listener} is 
+     * {@code null}
+     */
+    public void addKeyListener(String key, ConfigEventListener<T> listener) {
+        Contract.nonNull(key, "key");
+        Contract.nonNull(listener);
+        for (;;) {
+            ConfigEventListener<T>[] current = keyListeners.get(key);
+            if (current == null) {
+                if (keyListeners.putIfAbsent(key, 
+                        with(ConfigEvent.<T>noListeners(), listener)) == null)
+                    return;
+                continue;
+            }
+            ConfigEventListener<T>[] next = with(current, listener);
+            if (next == current || keyListeners.replace(key, current, next))
+                return;
+        }
+    }
+    
+    /**
+     * Removes a listener added with 
+     * {@link #addKeyListener(String, ConfigEventListener)}.
+     * 
+     * @param key the key the listener was added for
+     * @param listener the listener to remove
+     * 
+     * @return {@code true} if the listener was removed, otherwise 
+     * {@code false}.
+     */
+    public boolean removeKeyListener(String key, 
+            ConfigEventListener<T> listener) {
+        if (key == null || listener == null)
+            return false;
+        for (;;) {
+            ConfigEventListener<T>[] current = keyListeners.get(key);
+            if (current == null)
+                return false;
+            ConfigEventListener<T>[] next = without(current, listener);
+            if (next == current)
+                return false;
+            if (next.length == 0 ? keyListeners.remove(key, current) : 
+                    keyListeners.replace(key, current, next))
+                return true;
+        }
+    }
+    
+    /**
+     * Adds a listener that is only signalled for events whose 
+     * {@link ConfigRepoContext#getKey() key} starts with {@code prefix}.
+     * 
+     * @param prefix the key prefix to listen to
+     * @param listener the listener to add
+     * 
+     * @throws NullPointerException if {@code prefix} or {@code listener} is 
+     * {@code null}
+     */
+    public void addPrefixListener(String prefix, 
+            ConfigEventListener<T> listener) {
+        Contract.nonNull(prefix, "prefix");
+        Contract.nonNull(listener);
+        for (;;) {
+            PrefixNode<T> current = prefixRoot.get();
+            PrefixNode<T> next = current.update(prefix, 0, listener, true);
+            if (next == current || prefixRoot.compareAndSet(current, next))
+                return;
+        }
+    }
+    
+    /**
+     * Removes a listener added with 
+     * {@link #addPrefixListener(String, ConfigEventListener)}.
+     * 
+     * @param prefix the key prefix the listener was added for
+     * @param listener the listener to remove
+     * 
+     * @return {@code true} if the listener was removed, otherwise 
+     * {@code false}.
+     */
+    public boolean removePrefixListener(String prefix, 
+            ConfigEventListener<T> listener) {
+        if (prefix == null || listener == null)
+            return false;
+        for (;;) {
+            PrefixNode<T> current = prefixRoot.get();
+            PrefixNode<T> next = current.update(prefix, 0, listener, false);
+            if (next == current)
+                return false;
+            if (next == null)
+                next = PrefixNode.empty();
+            if (prefixRoot.compareAndSet(current, next))
+                return true;
         }
     }
     
@@ -104,9 +298,27 @@ public final class ConfigEvent<T extends ConfigEventContext> {
     public void raise(Object key, Object sender, T context) {
         if (this.key != key)
             throw new ConfigEventException("Invalid key: " + key);
-        for (ConfigEventListener<T> listener : listeners)
-            if (listener != null)
-                listener.onEvent(sender, context);
+        Executor exec = executor;
+        if (exec == null) {
+            signal(sender, context);
+            return;
+        }
+        
+        Object queueKey = context instanceof ConfigRepoContext ?
+                ((ConfigRepoContext<?>) context).getKey() : this;
+        Delivery<T> delivery = new Delivery<T>(sender, context);
+        for (;;) {
+            SerialQueue queue = queues.get(queueKey);
+            if (queue == null) {
+                queue = new SerialQueue(queueKey);
+                SerialQueue existing = queues.putIfAbsent(queueKey, queue);
+                if (existing != null)
+                    queue = existing;
+            }
+            if (queue.offer(delivery, exec))
+                return;
+            // the queue drained and retired meanwhile, take a fresh one
+        }
     }
     
     /**
@@ -117,7 +329,484 @@ public final class ConfigEvent<T extends ConfigEventContext> {
      * event, else {@code false}.
      */
     public boolean hasListeners() {
-        return !listeners.isEmpty();
+        return listeners.get().length != 0 || !keyListeners.isEmpty() || 
+                !prefixRoot.get().isEmpty();
+    }
+    
+    /**
+     * Returns {@code true} if an event for the specified key would signal any 
+     * listener, else returns {@code false}.
+     * 
+     * @param key the key of the event
+     * 
+     * @return {@code true} if an event for {@code key} would signal any 
+     * listener, else {@code false}.
+     */
+    public boolean hasListeners(String key) {
+        if (listeners.get().length != 0)
+            return true;
+        if (key == null)
+            return false;
+        if (!keyListeners.isEmpty() && keyListeners.containsKey(key))
+            return true;
+        PrefixNode<T> node = prefixRoot.get();
+        for (int i = 0; node != null; ) {
+            if (node.listeners.length != 0)
+                return true;
+            if (i == key.length())
+                break;
+            node = node.child(key.charAt(i++));
+        }
+        return false;
+    }
+    
+    /**
+     * Sets the {@code Executor} that signals listeners. With a 
+     * non-{@code null} {@code Executor}, raising the event queues it and 
+     * returns without waiting for the listeners. With {@code null} (the 
+     * default) listeners are signalled on the raising thread. Events already 
+     * queued are still delivered by the {@code Executor} they were queued 
+     * on.
+     * <p>
+     * If the {@code Executor} rejects a task the queued events of that key 
+     * are delivered on the raising thread instead.
+     * 
+     * @param executor the {@code Executor}, or {@code null}
+     * 
+     * @see #defaultExecutor() 
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+    
+    /**
+     * Returns the {@code Executor} that signals listeners, or {@code null} if 
+     * listeners are signalled on the raising thread.
+     * 
+     * @return the {@code Executor}, or {@code null}
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+    
+    /**
+     * Allows the built in {@code Config}s to pass the same context object to 
+     * successive events, refilled for each one, instead of allocating a 
+     * context per event. A reused context is only valid for the duration of 
+     * the {@code onEvent} call: listeners that keep a context, or values read 
+     * from it lazily, must copy what they need before returning. Contexts are 
+     * never reused while an {@code Executor} is set.
+     * 
+     * @param contextReuse {@code true} to allow reuse, {@code false} (the 
+     * default) for a new context per event
+     */
+    public void setContextReuse(boolean contextReuse) {
+        this.contextReuse = contextReuse;
+    }
+    
+    /**
+     * Returns {@code true} if contexts may be reused between events.
+     * 
+     * @return {@code true} if contexts may be reused between events
+     * 
+     * @see #setContextReuse(boolean) 
+     */
+    public boolean isContextReuse() {
+        return contextReuse;
+    }
+    
+    /**
+     * Returns {@code true} if the next event may be raised with a reused 
+     * context: reuse is allowed and listeners are signalled synchronously.
+     */
+    boolean reusesContexts() {
+        return contextReuse && executor == null;
+    }
+    
+    /**
+     * Returns a context to refill for the next event, or {@code null} if 
+     * none is available and a new one must be made. Raisers are expected to 
+     * be serialized, like writes to a {@code Config}.
+     */
+    T borrowContext() {
+        if (!reusesContexts())
+            return null;
+        T context = spareContext;
+        spareContext = null;
+        return context;
+    }
+    
+    /**
+     * Hands back a context once its event has been raised, keeping it for 
+     * the next event if contexts are reused.
+     */
+    void returnContext(T context) {
+        if (reusesContexts() && context instanceof ConfigRepoContext) {
+            ((ConfigRepoContext<?>) context).clear();
+            spareContext = context;
+        }
+    }
+    
+    /**
+     * Returns the number of events that were raised but not yet delivered to 
+     * the listeners. Always {@code 0} when no {@code Executor} is set. A 
+     * growing queue depth means listeners do not keep up with the writers.
+     * 
+     * @return the number of undelivered events
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+    
+    /**
+     * Returns a shared {@code Executor} suitable for 
+     * {@link #setExecutor(Executor)}. It starts a virtual thread per task 
+     * where the runtime provides virtual threads, otherwise it runs tasks on 
+     * a cached pool of daemon threads.
+     * 
+     * @return the shared {@code Executor}
+     */
+    public static Executor defaultExecutor() {
+        return DefaultExecutorHolder.EXECUTOR;
+    }
+    
+    
+    
+    
+    /**
+     * Signals the listeners registered at the time of the call. Listeners 
+     * added or removed by a listener take effect from the next event.
+     */
+    private void signal(Object sender, T context) {
+        signal(listeners.get(), sender, context);
+        if (!(context instanceof ConfigRepoContext))
+            return;
+        final String eventKey = ((ConfigRepoContext<?>) context).getKey();
+        
+        PrefixNode<T> node = prefixRoot.get();
+        for (int i = 0; node != null; ) {
+            signal(node.listeners, sender, context);
+            if (i == eventKey.length())
+                break;
+            node = node.child(eventKey.charAt(i++));
+        }
+        
+        if (!keyListeners.isEmpty()) {
+            ConfigEventListener<T>[] scoped = keyListeners.get(eventKey);
+            if (scoped != null)
+                signal(scoped, sender, context);
+        }
+    }
+    
+    private static <T extends ConfigEventContext> void signal(
+            ConfigEventListener<T>[] array, Object sender, T context) {
+        for (int i = 0; i < array.length; ++i)
+            array[i].onEvent(sender, context);
+    }
+    
+    /**
+     * Returns a copy of {@code array} with {@code listener} appended, or 
+     * {@code array} itself if it already holds the listener.
+     */
+    private static <T extends ConfigEventContext> ConfigEventListener<T>[] 
+            with(ConfigEventListener<T>[] array, 
+                    ConfigEventListener<T> listener) {
+        if (indexOf(array, listener) >= 0)
+            return array;
+        ConfigEventListener<T>[] next = 
+                Arrays.copyOf(array, array.length + 1);
+        next[array.length] = listener;
+        return next;
+    }
+    
+    /**
+     * Returns a copy of {@code array} without {@code listener}, or 
+     * {@code array} itself if it does not hold the listener.
+     */
+    private static <T extends ConfigEventContext> ConfigEventListener<T>[] 
+            without(ConfigEventListener<T>[] array, 
+                    ConfigEventListener<T> listener) {
+        int i = indexOf(array, listener);
+        if (i < 0)
+            return array;
+        if (array.length == 1)
+            return noListeners();
+        ConfigEventListener<T>[] next = Arrays.copyOf(array, array.length - 1);
+        System.arraycopy(array, i + 1, next, i, next.length - i);
+        return next;
+    }
+    
+    private static <T extends ConfigEventContext> int indexOf(
+            ConfigEventListener<T>[] array, ConfigEventListener<T> listener) {
+        for (int i = 0; i < array.length; ++i)
+            if (array[i].equals(listener))
+                return i;
+        return -1;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <T extends ConfigEventContext> ConfigEventListener<T>[] 
+            noListeners() {
+        return (ConfigEventListener<T>[]) NO_LISTENERS;
+    }
+    
+    
+    
+    
+    /**
+     * A queued event.
+     */
+    private static final class Delivery<T> {
+        
+        final Object sender;
+        
+        final T context;
+        
+        
+        
+        
+        Delivery(Object sender, T context) {
+            this.sender = sender;
+            this.context = context;
+        }
+        
+    }
+    
+    /**
+     * The undelivered events of one key. At most one task drains a queue at a 
+     * time, which keeps the events of a key in order. A queue that runs empty 
+     * retires and leaves the map, so idle keys hold no memory.
+     */
+    private final class SerialQueue implements Runnable {
+        
+        private final Object queueKey;
+        
+        private final ArrayDeque<Delivery<T>> pending = 
+                new ArrayDeque<Delivery<T>>();
+        
+        /**
+         * {@code true} while a task is submitted or draining, guarded by 
+         * {@code this}
+         */
+        private boolean scheduled;
+        
+        /**
+         * {@code true} once the queue left the map, guarded by {@code this}
+         */
+        private boolean retired;
+        
+        
+        
+        
+        SerialQueue(Object queueKey) {
+            this.queueKey = queueKey;
+        }
+        
+        
+        
+        
+        /**
+         * Queues an event, submitting a drain if none is pending. Returns 
+         * {@code false} if the queue is retired.
+         */
+        boolean offer(Delivery<T> delivery, Executor exec) {
+            synchronized (this) {
+                if (retired)
+                    return false;
+                pending.addLast(delivery);
+                queueDepth.incrementAndGet();
+                if (scheduled)
+                    return true;
+                scheduled = true;
+            }
+            try {
+                exec.execute(this);
+            } catch (RejectedExecutionException ex) {
+                run();
+            }
+            return true;
+        }
+        
+        public void run() {
+            for (;;) {
+                for (int i = 0; i < DELIVERIES_PER_RUN; ++i) {
+                    Delivery<T> delivery;
+                    synchronized (this) {
+                        delivery = pending.pollFirst();
+                        if (delivery == null) {
+                            scheduled = false;
+                            retired = true;
+                            queues.remove(queueKey, this);
+                            return;
+                        }
+                    }
+                    queueDepth.decrementAndGet();
+                    try {
+                        signal(delivery.sender, delivery.context);
+                    } catch (RuntimeException ex) {
+                        // a failing listener must not stall the queue
+                        Thread t = Thread.currentThread();
+                        t.getUncaughtExceptionHandler().uncaughtException(
+                                t, ex);
+                    }
+                }
+                // let other keys run, then continue where this left off
+                Executor exec = executor;
+                if (exec != null) {
+                    try {
+                        exec.execute(this);
+                        return;
+                    } catch (RejectedExecutionException ex) {
+                    }
+                }
+            }
+        }
+        
+    }
+    
+    /**
+     * A node of the prefix trie, holding the listeners of the prefix spelled 
+     * by the path to the node. Nodes are immutable: a change copies the path 
+     * down to the changed node and publishes a new root, so lookups walk the 
+     * trie without locking.
+     */
+    private static final class PrefixNode<T extends ConfigEventContext> {
+        
+        private static final PrefixNode<?> EMPTY = new PrefixNode<
+                ConfigEventContext>(new char[0], new PrefixNode<?>[0], 
+                        ConfigEvent.<ConfigEventContext>noListeners());
+        
+        
+        /**
+         * The labels of the children, sorted
+         */
+        final char[] labels;
+        
+        /**
+         * The children, by label
+         */
+        final PrefixNode<?>[] children;
+        
+        final ConfigEventListener<T>[] listeners;
+        
+        
+        
+        
+        PrefixNode(char[] labels, PrefixNode<?>[] children, 
+                ConfigEventListener<T>[] listeners) {
+            this.labels = labels;
+            this.children = children;
+            this.listeners = listeners;
+        }
+        
+        @SuppressWarnings("unchecked")
+        static <T extends ConfigEventContext> PrefixNode<T> empty() {
+            return (PrefixNode<T>) EMPTY;
+        }
+        
+        
+        
+        
+        boolean isEmpty() {
+            return labels.length == 0 && listeners.length == 0;
+        }
+        
+        @SuppressWarnings("unchecked")
+        PrefixNode<T> child(char c) {
+            int i = Arrays.binarySearch(labels, c);
+            return i < 0 ? null : (PrefixNode<T>) children[i];
+        }
+        
+        /**
+         * Returns this node with {@code listener} added to or removed from 
+         * the node of {@code prefix}, {@code this} if nothing changed, or 
+         * {@code null} if the node is left empty.
+         */
+        PrefixNode<T> update(String prefix, int depth, 
+                ConfigEventListener<T> listener, boolean add) {
+            if (depth == prefix.length()) {
+                ConfigEventListener<T>[] next = add ? 
+                        with(listeners, listener) : 
+                        without(listeners, listener);
+                if (next == listeners)
+                    return this;
+                if (next.length == 0 && labels.length == 0)
+                    return null;
+                return new PrefixNode<T>(labels, children, next);
+            }
+            
+            char c = prefix.charAt(depth);
+            int i = Arrays.binarySearch(labels, c);
+            PrefixNode<T> child = child(c);
+            if (child == null) {
+                if (!add)
+                    return this;
+                child = empty();
+            }
+            PrefixNode<T> next = child.update(prefix, depth + 1, listener, 
+                    add);
+            if (next == child)
+                return this;
+            
+            if (next == null) {
+                // prune the emptied child
+                if (labels.length == 1 && listeners.length == 0)
+                    return null;
+                char[] l = new char[labels.length - 1];
+                PrefixNode<?>[] n = new PrefixNode<?>[labels.length - 1];
+                System.arraycopy(labels, 0, l, 0, i);
+                System.arraycopy(labels, i + 1, l, i, l.length - i);
+                System.arraycopy(children, 0, n, 0, i);
+                System.arraycopy(children, i + 1, n, i, n.length - i);
+                return new PrefixNode<T>(l, n, listeners);
+            }
+            if (i >= 0) {
+                PrefixNode<?>[] n = children.clone();
+                n[i] = next;
+                return new PrefixNode<T>(labels, n, listeners);
+            }
+            int at = -(i + 1);
+            char[] l = new char[labels.length + 1];
+            PrefixNode<?>[] n = new PrefixNode<?>[labels.length + 1];
+            System.arraycopy(labels, 0, l, 0, at);
+            System.arraycopy(labels, at, l, at + 1, labels.length - at);
+            System.arraycopy(children, 0, n, 0, at);
+            System.arraycopy(children, at, n, at + 1, children.length - at);
+            l[at] = c;
+            n[at] = next;
+            return new PrefixNode<T>(l, n, listeners);
+        }
+        
+    }
+    
+    /**
+     * Creates the shared {@code Executor} on first use.
+     */
+    private static final class DefaultExecutorHolder {
+        
+        static final Executor EXECUTOR = create();
+        
+        
+        
+        
+        private static Executor create() {
+            try {
+                // only present on runtimes with virtual threads
+                return (Executor) Executors.class.getMethod(
+                        "newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (Exception ex) {
+                return Executors.newCachedThreadPool(new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "ConfigEvent-" + 
+                                count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+        }
+        
     }
     
 }
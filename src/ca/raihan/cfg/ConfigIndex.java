@@ -0,0 +1,412 @@
+/*******************************************************************************
+ * Copyright 2014 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package ca.raihan.cfg;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import ca.raihan.cfg.Config.Repository;
+
+/**
+ * The key index a text layout can end with, so that single entries can be
+ * read from a file without parsing all of it.
+ * <p>
+ * While a layout is written through it, the index counts the UTF-8 bytes
+ * that pass and records where each entry starts and ends. The layout then
+ * embeds the index where its readers ignore it, as a single line of ASCII:
+ * <pre>
+ * jcfg-index:RECORDS:CCCCCCCCOOOOOOOOOOOOOOOO
+ * </pre>
+ * {@code RECORDS} are fixed width records, sorted by the unsigned
+ * {@link SlotTable#textHash(String) hash} of the key: 16 hex digits of the
+ * hash, 1 digit of the ordinal of the {@code Repository}, 12 hex digits of
+ * the offset of the entry and 8 of its length. {@code C} is the number of
+ * records and {@code O} the offset of the first one, both in hex. Only what
+ * follows the index in the layout must be known to find it from the end of
+ * the file, from where the records are binary searched.
+ * 
+ * @author Pranjal Raihan
+ */
+final class ConfigIndex extends Writer {
+    
+    static final String PREFIX = "jcfg-index:";
+    
+    static final int RECORD_SIZE = 16 + 1 + 12 + 8;
+    
+    /**
+     * The size of the index after its records
+     */
+    static final int TRAILER_SIZE = 1 + 8 + 16;
+    
+    /**
+     * Orders records by the unsigned hash of their keys
+     */
+    private static final Comparator<long[]> ORDER = new Comparator<long[]>() {
+        public int compare(long[] a, long[] b) {
+            long x = a[0] ^ Long.MIN_VALUE;
+            long y = b[0] ^ Long.MIN_VALUE;
+            return x < y ? -1 : x == y ? 0 : 1;
+        }
+    };
+    
+    
+    private final Writer out;
+    
+    /**
+     * The number of bytes written so far
+     */
+    private long position;
+    
+    /**
+     * {@code true} if the last character written was a high surrogate
+     */
+    private boolean highSurrogate;
+    
+    private long entryStart;
+    
+    /**
+     * The hash, repository ordinal, offset and length of each entry
+     */
+    private final List<long[]> records = new ArrayList<long[]>();
+    
+    
+    
+    
+    ConfigIndex(Writer out) {
+        this.out = out;
+    }
+    
+    
+    
+    
+    /**
+     * Marks the start of an entry, if the layout is written through an index.
+     * 
+     * @param writer the {@code Writer} the layout is written to
+     */
+    static void beginEntry(Writer writer) {
+        if (writer instanceof ConfigIndex)
+            ((ConfigIndex) writer).entryStart =
+                    ((ConfigIndex) writer).position;
+    }
+    
+    /**
+     * Records the entry started with {@link #beginEntry(Writer)}, if the
+     * layout is written through an index.
+     * 
+     * @param writer the {@code Writer} the layout is written to
+     * @param repository the {@code Repository} of the entry
+     * @param key the key of the entry
+     */
+    static void endEntry(Writer writer, Repository repository, String key) {
+        if (writer instanceof ConfigIndex) {
+            ConfigIndex index = (ConfigIndex) writer;
+            index.records.add(new long[] {
+                SlotTable.textHash(key), repository.ordinal(),
+                index.entryStart, index.position - index.entryStart
+            });
+        }
+    }
+    
+    /**
+     * Writes the index of the entries written so far.
+     * 
+     * @throws IOException if writing failed
+     */
+    void writeIndex() throws IOException {
+        Collections.sort(records, ORDER);
+        write(PREFIX);
+        long offset = position;
+        StringBuilder sb = new StringBuilder(RECORD_SIZE);
+        for (long[] record : records) {
+            sb.setLength(0);
+            hex(sb, record[0], 16);
+            hex(sb, record[1], 1);
+            hex(sb, record[2], 12);
+            hex(sb, record[3], 8);
+            write(sb.toString());
+        }
+        sb.setLength(0);
+        sb.append(':');
+        hex(sb, records.size(), 8);
+        hex(sb, offset, 16);
+        write(sb.toString());
+    }
+    
+    private static void hex(StringBuilder sb, long value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4)
+            sb.append(Character.forDigit((int) (value >>> shift) & 0xf, 16));
+    }
+    
+    
+    
+    
+    public void write(int c) throws IOException {
+        count((char) c);
+        out.write(c);
+    }
+    
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        for (int i = 0; i < len; ++i)
+            count(cbuf[off + i]);
+        out.write(cbuf, off, len);
+    }
+    
+    public void write(String str, int off, int len) throws IOException {
+        for (int i = 0; i < len; ++i)
+            count(str.charAt(off + i));
+        out.write(str, off, len);
+    }
+    
+    public void flush() throws IOException {
+        out.flush();
+    }
+    
+    public void close() throws IOException {
+        out.close();
+    }
+    
+    /**
+     * Counts the UTF-8 bytes of a character. A surrogate pair takes 4 bytes
+     * and a lone surrogate is replaced by a single byte, like the encoder
+     * does.
+     */
+    private void count(char c) {
+        if (highSurrogate && Character.isLowSurrogate(c)) {
+            // the high surrogate was counted as 1
+            position += 3;
+            highSurrogate = false;
+            return;
+        }
+        highSurrogate = Character.isHighSurrogate(c);
+        if (c < 0x80 || Character.isSurrogate(c))
+            position += 1;
+        else if (c < 0x800)
+            position += 2;
+        else
+            position += 3;
+    }
+    
+    
+    
+    
+    /**
+     * Receives the entries found in an index.
+     */
+    static interface EntryHandler {
+        
+        /**
+         * Called with the text of an entry whose key may be one of the keys
+         * looked up. Keys of different entries can share a hash, the handler
+         * has to check the key.
+         * 
+         * @param repository the {@code Repository} of the entry
+         * @param text the text of the entry in the layout
+         */
+        void entry(Repository repository, String text);
+        
+    }
+    
+    /**
+     * Looks up keys in the index at the end of a file.
+     * 
+     * @param file the file
+     * @param suffix what follows the index in the layout
+     * @param keys the keys
+     * @param handler receives the entries found
+     * 
+     * @return {@code false} if the file ends without an index
+     * 
+     * @throws ConfigException if reading failed
+     */
+    static boolean find(File file, String suffix, Set<String> keys,
+            EntryHandler handler) throws ConfigException {
+        RandomAccessFile raf = null;
+        try {
+            
+            raf = new RandomAccessFile(file, "r");
+            return find(raf.getChannel(), suffix,
+                    keys.toArray(new String[keys.size()]), handler);
+                    
+        } catch (IOException ex) {
+            
+            throw new ConfigException(ex);
+            
+        } finally {
+            
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ex) {
+                }
+            }
+            
+        }
+    }
+    
+    /**
+     * Looks up keys in the index at the end of a file.
+     * 
+     * @param channel the file
+     * @param suffix what follows the index in the layout
+     * @param keys the keys
+     * @param handler receives the entries found
+     * 
+     * @return {@code false} if the file ends without an index
+     * 
+     * @throws IOException if reading failed
+     */
+    static boolean find(FileChannel channel, String suffix, String[] keys,
+            EntryHandler handler) throws IOException {
+        long trailer = channel.size() - suffix.length() - TRAILER_SIZE;
+        if (trailer < PREFIX.length())
+            return false;
+        String tail = ascii(read(channel, trailer,
+                TRAILER_SIZE + suffix.length()));
+        if (tail == null || tail.charAt(0) != ':' || !tail.endsWith(suffix))
+            return false;
+        long count;
+        long first;
+        try {
+            
+            count = parseHex(tail, 1, 8);
+            first = parseHex(tail, 9, 16);
+            
+        } catch (NumberFormatException ex) {
+            
+            return false;
+            
+        }
+        if (first < PREFIX.length() ||
+                first + count * RECORD_SIZE != trailer ||
+                !PREFIX.equals(ascii(read(channel,
+                        first - PREFIX.length(), PREFIX.length()))))
+            return false;
+        
+        try {
+            
+            lookup(channel, first, count, keys, handler);
+            
+        } catch (NumberFormatException ex) {
+            
+            throw new IOException("Corrupt index", ex);
+            
+        }
+        return true;
+    }
+    
+    private static void lookup(FileChannel channel, long first, long count,
+            String[] keys, EntryHandler handler) throws IOException {
+        Repository[] repositories = Repository.values();
+        for (String key : keys) {
+            long hash = SlotTable.textHash(key) ^ Long.MIN_VALUE;
+            // the first record with a hash not below the key's
+            long low = 0;
+            long high = count;
+            while (low < high) {
+                long mid = (low + high) >>> 1;
+                String record = record(channel, first, mid);
+                if ((parseHex(record, 0, 16) ^ Long.MIN_VALUE) < hash)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            for (; low < count; ++low) {
+                String record = record(channel, first, low);
+                if ((parseHex(record, 0, 16) ^ Long.MIN_VALUE) != hash)
+                    break;
+                int repository = (int) parseHex(record, 16, 1);
+                long offset = parseHex(record, 17, 12);
+                long length = parseHex(record, 29, 8);
+                if (repository >= repositories.length ||
+                        offset + length > first)
+                    throw new IOException("Corrupt index");
+                byte[] text = read(channel, offset, (int) length);
+                handler.entry(repositories[repository],
+                        new String(text, PrivateConfigBase.UTF_8));
+            }
+        }
+    }
+    
+    private static String record(FileChannel channel, long first, long i)
+            throws IOException {
+        String record = ascii(read(channel, first + i * RECORD_SIZE,
+                RECORD_SIZE));
+        if (record == null)
+            throw new IOException("Corrupt index");
+        return record;
+    }
+    
+    private static long parseHex(String s, int from, int digits) {
+        long value = 0;
+        for (int i = from; i < from + digits; ++i) {
+            int digit = Character.digit(s.charAt(i), 16);
+            if (digit < 0)
+                throw new NumberFormatException(s);
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+    
+    /**
+     * Returns the bytes as a {@code String} if they are all ASCII,
+     * {@code null} otherwise.
+     */
+    private static String ascii(byte[] bytes) {
+        char[] chars = new char[bytes.length];
+        for (int i = 0; i < bytes.length; ++i) {
+            if (bytes[i] < 0)
+                return null;
+            chars[i] = (char) bytes[i];
+        }
+        return new String(chars);
+    }
+    
+    /**
+     * Reads bytes of a file at a position.
+     * 
+     * @param channel the file
+     * @param position the position of the first byte
+     * @param length the number of bytes
+     * 
+     * @return the bytes
+     * 
+     * @throws IOException if reading failed, or the file ends first
+     */
+    static byte[] read(FileChannel channel, long position, int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException();
+        }
+        return buffer.array();
+    }
+    
+}
@@ -0,0 +1,504 @@
+/*******************************************************************************
+ * Copyright 2014 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package ca.raihan.cfg;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.raihan.cfg.Config.Repository;
+import ca.raihan.cfg.Config.WriteAccess;
+
+/**
+ * Persists a {@code Config} as a snapshot file plus an append-only log of
+ * the changes made since. Every change set reported by
+ * {@link Config#commitEvent()} is appended to the log as one line, so a
+ * flush that changes a single key costs a single short write instead of
+ * rewriting the whole document. The log lives next to the snapshot, named
+ * after it with {@value #SUFFIX} appended.
+ * <p>
+ * {@link #compact()} writes the flushed state to the snapshot, through a
+ * temporary file that replaces it in one step, and drops the log records
+ * it covers. Once the log grows past the compaction threshold this happens
+ * in the background, on a daemon thread. Constructing a journal loads the
+ * snapshot into the {@code Config} and replays the log on top of it.
+ * Records hold the new values rather than deltas, so replaying a record
+ * that the snapshot already covers is harmless; a record cut short by a
+ * crash is dropped.
+ * <p>
+ * Compaction saves the {@code Config} from its own thread, so a
+ * {@code Config} that is written to while the journal is open should be a
+ * {@link Configs#synchronizedConfig(Config) synchronized} or
+ * {@link Configs#concurrentConfig(Config) concurrent} one. Records are
+ * handed to the operating system as they are appended but are not forced
+ * to the disk.
+ * 
+ * @author Pranjal Raihan
+ */
+public final class ConfigJournal implements Closeable {
+    
+    /**
+     * The suffix of the log file
+     */
+    public static final String SUFFIX = ".journal";
+    
+    /**
+     * The default size of the log, in bytes, that starts a compaction
+     */
+    public static final long DEFAULT_COMPACT_THRESHOLD = 1L << 20;
+    
+    /**
+     * The tags of the {@code Repository} of a record entry
+     */
+    static final String BOOLEAN_TAG = "B";
+    
+    static final String NUMBER_TAG = "N";
+    
+    static final String STRING_TAG = "S";
+    
+    /**
+     * Numbers the compaction threads
+     */
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    
+    
+    private final Config config;
+    
+    private final File file;
+    
+    private final File logFile;
+    
+    private final long compactThreshold;
+    
+    /**
+     * The log, opened for appending, guarded by {@code this}
+     */
+    private FileOutputStream out;
+    
+    /**
+     * The size of the log in bytes, guarded by {@code this}
+     */
+    private long length;
+    
+    /**
+     * Serializes compactions
+     */
+    private final Object compactLock = new Object();
+    
+    /**
+     * {@code true} while a background compaction is started or running
+     */
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    
+    private final ConfigEventListener<ConfigChangeSet> listener =
+            new ConfigEventListener<ConfigChangeSet>() {
+                public void onEvent(Object sender, ConfigChangeSet changes) {
+                    append(changes);
+                }
+            };
+    
+    private volatile boolean closed;
+    
+    
+    
+    
+    /**
+     * Constructs a journal with the default compaction threshold.
+     * 
+     * @param config the {@code Config} to load into and persist
+     * @param file the snapshot file
+     * @param manager the {@code ConfigManager} to read the snapshot with
+     * 
+     * @throws ConfigException if the snapshot or the log could not be read
+     * or opened
+     * 
+     * @see #ConfigJournal(Config, File, ConfigManager, long)
+     */
+    public ConfigJournal(Config config, File file, ConfigManager<?> manager)
+            throws ConfigException {
+        this(config, file, manager, DEFAULT_COMPACT_THRESHOLD);
+    }
+    
+    /**
+     * Constructs a journal. The snapshot, if {@code file} exists, and then
+     * the log are loaded into {@code config} and flushed; otherwise the
+     * snapshot is created from the flushed state of {@code config}. From
+     * then on {@code config} is linked to {@code file} and every change
+     * set it commits is appended to the log.
+     * 
+     * @param config the {@code Config} to load into and persist
+     * @param file the snapshot file
+     * @param manager the {@code ConfigManager} to read the snapshot with
+     * @param compactThreshold the size of the log, in bytes, that starts a
+     * background compaction, or {@code 0} to compact only when asked to
+     * 
+     * @throws ConfigException if the snapshot or the log could not be read
+     * or opened
+     * @throws IllegalArgumentException if {@code compactThreshold} is
+     * negative
+     */
+    public ConfigJournal(Config config, File file, ConfigManager<?> manager,
+            long compactThreshold) throws ConfigException {
+        this.config = Contract.nonNull(config, "config");
+        this.file = Contract.nonNull(file, "file").getAbsoluteFile();
+        Contract.nonNull(manager, "manager");
+        Contract.require(compactThreshold >= 0,
+                "compactThreshold cannot be negative");
+        this.compactThreshold = compactThreshold;
+        this.logFile = new File(this.file.getPath() + SUFFIX);
+        
+        if (this.file.exists())
+            Configs.reconcile(config, manager.read(this.file));
+        else
+            config.save(this.file, WriteAccess.ONLY_IF_NOT_EXISTS);
+        replay();
+        config.linkToFile(this.file);
+        try {
+            
+            out = new FileOutputStream(logFile, true);
+            
+        } catch (IOException ex) {
+            
+            throw new ConfigException(ex);
+            
+        }
+        config.commitEvent().addListener(listener);
+    }
+    
+    
+    
+    
+    /**
+     * Returns the {@code Config} this journal persists.
+     * 
+     * @return the {@code Config}
+     */
+    public Config getConfig() {
+        return config;
+    }
+    
+    /**
+     * Returns the size of the log in bytes.
+     * 
+     * @return the size of the log in bytes
+     */
+    public synchronized long getLogLength() {
+        return length;
+    }
+    
+    /**
+     * Writes the flushed state of the {@code Config} to the snapshot and
+     * drops the log records that it covers, on the calling thread.
+     * 
+     * @throws ConfigException if the snapshot or the log could not be
+     * written
+     * @throws IllegalStateException if this journal is closed
+     */
+    public void compact() throws ConfigException {
+        synchronized (compactLock) {
+            long mark;
+            synchronized (this) {
+                checkOpen();
+                mark = length;
+            }
+            // every record up to the mark was appended after its changes
+            // became visible, so the snapshot taken now covers them
+            Configs.writeAtomically(file, Configs.toBytes(config));
+            try {
+                
+                synchronized (this) {
+                    if (!closed)
+                        drop(mark);
+                }
+                
+            } catch (IOException ex) {
+                
+                throw new ConfigException(ex);
+                
+            }
+        }
+    }
+    
+    /**
+     * Stops logging the changes of the {@code Config} and closes the log.
+     * Does not compact.
+     * 
+     * @throws IOException if the log could not be closed
+     */
+    public void close() throws IOException {
+        config.commitEvent().removeListener(listener);
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            out.close();
+        }
+    }
+    
+    
+    
+    
+    /**
+     * Appends a change set to the log as one record, and starts a
+     * compaction if the log has grown past the threshold.
+     */
+    private void append(ConfigChangeSet changes) {
+        byte[] record;
+        try {
+            
+            record = (format(changes) + '\n').getBytes(
+                    PrivateConfigBase.UTF_8);
+                    
+        } catch (UnsupportedEncodingException ex) {
+            
+            throw new InternalError(String.valueOf(ex));
+            
+        }
+        long size;
+        synchronized (this) {
+            if (closed)
+                return;
+            try {
+                
+                out.write(record);
+                
+            } catch (IOException ex) {
+                
+                throw new ConfigException(ex);
+                
+            }
+            size = length += record.length;
+        }
+        if (compactThreshold > 0 && size >= compactThreshold &&
+                compacting.compareAndSet(false, true)) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        // appends made while compacting did not start one
+                        do {
+                            compact();
+                        } while (!closed &&
+                                getLogLength() >= compactThreshold);
+                    } catch (RuntimeException ex) {
+                        if (!closed) {
+                            Thread t = Thread.currentThread();
+                            t.getUncaughtExceptionHandler()
+                                    .uncaughtException(t, ex);
+                        }
+                    } finally {
+                        compacting.set(false);
+                    }
+                }
+            }, "ConfigJournal-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+    
+    /**
+     * Formats a change set as a record: a JSON array holding one entry per
+     * change, {@code [tag, key, value]} for a put (with the name of the
+     * {@code NumberType} before the value of a {@code Number}),
+     * {@code [tag, key]} for a delete.
+     */
+    static String format(ConfigChangeSet changes) {
+        JSONArray record = new JSONArray();
+        for (int i = 0; i < changes.size(); ++i) {
+            JSONArray entry = new JSONArray();
+            Object value = changes.getNewValue(i);
+            switch (changes.getRepository(i)) {
+                case BOOLEAN:
+                    entry.put(BOOLEAN_TAG).put(changes.getKey(i));
+                    if (value != null)
+                        entry.put(value);
+                    break;
+                case STRING:
+                    entry.put(STRING_TAG).put(changes.getKey(i));
+                    if (value != null)
+                        entry.put(value);
+                    break;
+                case NUMBER:
+                    entry.put(NUMBER_TAG).put(changes.getKey(i));
+                    if (value != null) {
+                        entry.put(Configs.resolveNumberType(
+                                (Number) value).name());
+                        entry.put(value.toString());
+                    }
+                    break;
+            }
+            record.put(entry);
+        }
+        return record.toString();
+    }
+    
+    /**
+     * Puts or deletes the entries of a record.
+     */
+    static void apply(Config config, JSONArray record) {
+        for (int i = 0; i < record.length(); ++i) {
+            JSONArray entry = record.getJSONArray(i);
+            String tag = entry.getString(0);
+            String key = entry.getString(1);
+            boolean delete = entry.length() == 2;
+            if (BOOLEAN_TAG.equals(tag)) {
+                if (delete)
+                    config.delete(key, Repository.BOOLEAN);
+                else
+                    config.putBoolean(key, entry.getBoolean(2));
+            } else if (STRING_TAG.equals(tag)) {
+                if (delete)
+                    config.delete(key, Repository.STRING);
+                else
+                    config.putString(key, entry.getString(2));
+            } else if (NUMBER_TAG.equals(tag)) {
+                if (delete)
+                    config.delete(key, Repository.NUMBER);
+                else
+                    Configs.putNumber(config, key,
+                            Configs.parseNumberFromType(entry.getString(3),
+                                    Configs.numberTypeValueOf(
+                                            entry.getString(2))));
+            } else {
+                throw new ConfigException("Unknown record tag: " + tag);
+            }
+        }
+    }
+    
+    /**
+     * Replays the log into the {@code Config}, one flush per record. The
+     * log is cut back to the last whole record, so that a record torn by a
+     * crash does not hide the ones appended after it.
+     */
+    private void replay() {
+        if (!logFile.exists())
+            return;
+        long valid = 0L;
+        BufferedReader in = null;
+        try {
+            
+            in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(logFile), PrivateConfigBase.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                JSONArray record;
+                try {
+                    record = new JSONArray(line);
+                } catch (JSONException ex) {
+                    break;
+                }
+                // flush each record as it was flushed when appended, a
+                // delete only sees flushed keys
+                apply(config, record);
+                config.flushState();
+                valid += line.getBytes(PrivateConfigBase.UTF_8).length + 1;
+            }
+            
+        } catch (IOException ex) {
+            
+            throw new ConfigException(ex);
+            
+        } finally {
+            
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                }
+            }
+            
+        }
+        
+        RandomAccessFile raf = null;
+        try {
+            
+            raf = new RandomAccessFile(logFile, "rw");
+            if (raf.length() > valid) {
+                raf.setLength(valid);
+            } else if (raf.length() < valid) {
+                // the last record lost only its line break
+                raf.seek(raf.length());
+                raf.write('\n');
+            }
+            length = valid;
+            
+        } catch (IOException ex) {
+            
+            throw new ConfigException(ex);
+            
+        } finally {
+            
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ex) {
+                }
+            }
+            
+        }
+    }
+    
+    /**
+     * Drops the first {@code mark} bytes of the log, keeping the records
+     * appended since. Called with {@code this} held.
+     */
+    private void drop(long mark) throws IOException {
+        out.close();
+        if (mark == length) {
+            out = new FileOutputStream(logFile, false);
+            length = 0L;
+            return;
+        }
+        byte[] tail = new byte[(int) (length - mark)];
+        RandomAccessFile raf = new RandomAccessFile(logFile, "r");
+        try {
+            raf.seek(mark);
+            raf.readFully(tail);
+        } finally {
+            raf.close();
+        }
+        File tmp = new File(logFile.getPath() + ".tmp");
+        FileOutputStream tmpOut = new FileOutputStream(tmp);
+        try {
+            tmpOut.write(tail);
+        } finally {
+            tmpOut.close();
+        }
+        Files.move(tmp.toPath(), logFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        out = new FileOutputStream(logFile, true);
+        length = tail.length;
+    }
+    
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("journal is closed");
+    }
+    
+}
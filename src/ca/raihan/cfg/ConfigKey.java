@@ -0,0 +1,365 @@
+/*******************************************************************************
+ * Copyright 2014 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package ca.raihan.cfg;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import ca.raihan.cfg.Config.Repository;
+
+/**
+ * A precompiled handle to a key in one repository of a {@code Config}. A
+ * handle is resolved once against a {@code Config} and remembers the slot
+ * that holds the key, so that reading through the handle does not hash the
+ * key again. Handles stay valid across {@link Config#flushState()}; if the key
+ * is deleted the handle reports it through {@link #isPresent()} and binds
+ * again on its own if the key is later put back.
+ * <p>
+ * Handles on {@code Config}s that are not built in implementations (or that
+ * are wrapped, for example by {@link Configs#synchronizedConfig(Config)})
+ * fall back to the keyed getters of the {@code Config}.
+ * <p>
+ * Like the built in implementations, handles are not thread-safe.
+ * 
+ * @author Pranjal Raihan
+ * 
+ * @param <T> the type of values in the repository
+ */
+public abstract class ConfigKey<T> {
+    
+    /**
+     * The {@code Config} this handle was resolved against
+     */
+    final Config config;
+    
+    /**
+     * The key
+     */
+    final String key;
+    
+    /**
+     * The flushed repository of {@link #config}, or {@code null} if the
+     * {@code Config} is not a built in implementation
+     */
+    final SlotTable<?> table;
+    
+    /**
+     * The bound slot, {@code -1} if unbound
+     */
+    int slot = -1;
+    
+    /**
+     * The version of {@link #slot} when it was bound
+     */
+    int version;
+    
+    
+    
+    
+    ConfigKey(Config config, String key, SlotTable<?> table) {
+        this.config = Contract.nonNull(config, "config");
+        this.key = Contract.nonNull(key, "key");
+        this.table = table;
+        bind();
+    }
+    
+    
+    
+    
+    /**
+     * Resolves a handle to a key in the {@code Number} repository.
+     * 
+     * @param config the {@code Config} to resolve against
+     * @param key the key
+     * 
+     * @return the handle
+     */
+    public static NumberKey forNumber(Config config, String key) {
+        return new NumberKey(config, key);
+    }
+    
+    /**
+     * Resolves a handle to a key in the {@code boolean} repository.
+     * 
+     * @param config the {@code Config} to resolve against
+     * @param key the key
+     * 
+     * @return the handle
+     */
+    public static BooleanKey forBoolean(Config config, String key) {
+        return new BooleanKey(config, key);
+    }
+    
+    /**
+     * Resolves a handle to a key in the {@code String} repository.
+     * 
+     * @param config the {@code Config} to resolve against
+     * @param key the key
+     * 
+     * @return the handle
+     */
+    public static StringKey forString(Config config, String key) {
+        return new StringKey(config, key);
+    }
+    
+    
+    
+    
+    /**
+     * Returns the key.
+     * 
+     * @return the key
+     */
+    public final String getKey() {
+        return key;
+    }
+    
+    /**
+     * Returns the {@code Config} this handle was resolved against.
+     * 
+     * @return the {@code Config} this handle was resolved against
+     */
+    public final Config getConfig() {
+        return config;
+    }
+    
+    /**
+     * Returns the {@code Repository} of the key.
+     * 
+     * @return the {@code Repository} of the key
+     */
+    public abstract Repository getRepository();
+    
+    /**
+     * Returns {@code true} if the key currently exists in the flushed
+     * repository, {@code false} if it was never flushed or has been deleted.
+     * 
+     * @return {@code true} if the key currently exists
+     */
+    public final boolean isPresent() {
+        if (table == null)
+            return config.containsKey(key, getRepository());
+        return slot() >= 0;
+    }
+    
+    /**
+     * Returns the value of the key.
+     * 
+     * @return the value of the key
+     * 
+     * @throws ConfigException if the key does not exist
+     */
+    public abstract T get() throws ConfigException;
+    
+    /**
+     * Returns the value of the key, or the specified default value if the key
+     * does not exist.
+     * 
+     * @param value the default value
+     * 
+     * @return the value of the key, or {@code value}
+     */
+    public final T getOrDefault(T value) {
+        return isPresent() ? get() : value;
+    }
+    
+    
+    
+    
+    /**
+     * Returns the bound slot, binding again if the slot no longer holds the
+     * key. Returns {@code -1} if the key does not exist.
+     */
+    final int slot() {
+        int s = slot;
+        if (s >= 0 && table.isValid(s, version))
+            return s;
+        return bind();
+    }
+    
+    /**
+     * Returns the bound slot or throws if the key does not exist.
+     */
+    final int requireSlot() throws ConfigException {
+        int s = slot();
+        if (s < 0)
+            throw ConfigException.unfoundKey(key);
+        return s;
+    }
+    
+    private int bind() {
+        if (table == null)
+            return -1;
+        int s = table.indexOf(key);
+        slot = s;
+        if (s >= 0)
+            version = table.versions[s];
+        return s;
+    }
+    
+    
+    
+    
+    @Override
+    public String toString() {
+        return getRepository().getName() + "[" + key + "]";
+    }
+    
+    
+    
+    
+    /**
+     * A handle to a key in the {@code Number} repository.
+     */
+    public static final class NumberKey extends ConfigKey<Number> {
+        
+        NumberKey(Config config, String key) {
+            super(config, key, config instanceof PrivateConfigBase ?
+                    ((PrivateConfigBase) config).flushedNumberElements :
+                    null);
+        }
+        
+        
+        
+        
+        public Repository getRepository() {
+            return Repository.NUMBER;
+        }
+        
+        public Number get() throws ConfigException {
+            if (table == null)
+                return config.getNumber(key);
+            return numbers().numberAt(requireSlot());
+        }
+        
+        public byte getByte() throws ConfigException {
+            if (table == null)
+                return config.getByte(key);
+            return numbers().byteAt(requireSlot());
+        }
+        
+        public short getShort() throws ConfigException {
+            if (table == null)
+                return config.getShort(key);
+            return numbers().shortAt(requireSlot());
+        }
+        
+        public int getInt() throws ConfigException {
+            if (table == null)
+                return config.getInt(key);
+            return numbers().intAt(requireSlot());
+        }
+        
+        public long getLong() throws ConfigException {
+            if (table == null)
+                return config.getLong(key);
+            return numbers().longAt(requireSlot());
+        }
+        
+        public float getFloat() throws ConfigException {
+            if (table == null)
+                return config.getFloat(key);
+            return numbers().floatAt(requireSlot());
+        }
+        
+        public double getDouble() throws ConfigException {
+            if (table == null)
+                return config.getDouble(key);
+            return numbers().doubleAt(requireSlot());
+        }
+        
+        public BigInteger getBigInteger() throws ConfigException {
+            if (table == null)
+                return config.getBigInteger(key);
+            return numbers().bigIntegerAt(requireSlot());
+        }
+        
+        public BigDecimal getBigDecimal() throws ConfigException {
+            if (table == null)
+                return config.getBigDecimal(key);
+            return numbers().bigDecimalAt(requireSlot());
+        }
+        
+        private NumberRepository numbers() {
+            return (NumberRepository) table;
+        }
+        
+    }
+    
+    /**
+     * A handle to a key in the {@code boolean} repository.
+     */
+    public static final class BooleanKey extends ConfigKey<Boolean> {
+        
+        BooleanKey(Config config, String key) {
+            super(config, key, config instanceof PrivateConfigBase ?
+                    ((PrivateConfigBase) config).flushedBooleanElements :
+                    null);
+        }
+        
+        
+        
+        
+        public Repository getRepository() {
+            return Repository.BOOLEAN;
+        }
+        
+        public Boolean get() throws ConfigException {
+            return Boolean.valueOf(getBoolean());
+        }
+        
+        public boolean getBoolean() throws ConfigException {
+            if (table == null)
+                return config.getBoolean(key);
+            Boolean value = (Boolean) table.valueAt(requireSlot());
+            if (value == null)
+                throw ConfigException.unfoundKey(key);
+            return value.booleanValue();
+        }
+        
+    }
+    
+    /**
+     * A handle to a key in the {@code String} repository.
+     */
+    public static final class StringKey extends ConfigKey<String> {
+        
+        StringKey(Config config, String key) {
+            super(config, key, config instanceof PrivateConfigBase ?
+                    ((PrivateConfigBase) config).flushedStringElements :
+                    null);
+        }
+        
+        
+        
+        
+        public Repository getRepository() {
+            return Repository.STRING;
+        }
+        
+        public String get() throws ConfigException {
+            if (table == null)
+                return config.getString(key);
+            String value = (String) table.valueAt(requireSlot());
+            if (value == null)
+                throw ConfigException.unfoundKey(key);
+            return value;
+        }
+        
+    }
+    
+}
@@ -53,6 +53,25 @@ public interface ConfigManager<T extends Config> {
      */
     T read(File file);
     
+    /**
+     * Read the entries of some keys from a {@code File}, in every 
+     * {@code Repository} they are present in. Keys missing from the file are 
+     * missing from the returned {@code Config}. Files with an index of their 
+     * keys are only read where the entries are, which is cheaper than 
+     * {@link #read(File)} when a few keys of a large file are needed. 
+     * Details are implementation specific.
+     * 
+     * @param file the {@code File} to read from
+     * @param keys the keys to read
+     * 
+     * @return the constructed {@code Config}, holding only the entries of 
+     *         {@code keys}
+     * 
+     * @throws  UnsupportedOperationException if this method of construction is 
+     *          not supported
+     */
+    T readKeys(File file, String... keys);
+    
     /**
      * Read a {@code Config} from a {@code InputStream}. Details are 
      * implementation specific.
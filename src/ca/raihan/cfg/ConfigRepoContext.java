@@ -76,6 +76,55 @@ abstract class ConfigRepoContext<T> implements ConfigEventContext {
         this.change = Contract.nonNull(change, "change");
     }
     
+    /**
+     * Constructs a context to be filled in with 
+     * {@link #reset(String, Object, Object, Config.ChangeAction) reset} 
+     * before each use.
+     * 
+     * @param type the repository
+     */
+    ConfigRepoContext(Config.Repository type) {
+        this.type = Contract.nonNull(type, "type");
+    }
+    
+    
+    
+    
+    /**
+     * Refills a reused context for the next event.
+     * 
+     * @param key the key
+     * @param oldValue the old value
+     * @param newValue the new value
+     * @param change the change type
+     */
+    void reset(String key, T oldValue, T newValue, 
+            Config.ChangeAction change) {
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+        this.key = key;
+        this.change = change;
+    }
+    
+    /**
+     * Sets the key and change type, leaving the values as they are.
+     * 
+     * @param key the key
+     * @param change the change type
+     */
+    void reset(String key, Config.ChangeAction change) {
+        this.key = key;
+        this.change = change;
+    }
+    
+    /**
+     * Drops the references held by a reused context once its event has been 
+     * delivered.
+     */
+    void clear() {
+        reset(null, null, null, null);
+    }
+    
     
     
     
@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright 2014 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package ca.raihan.cfg;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A copy of the flushed repositories of a {@code Config}. Once constructed, 
+ * a snapshot is only modified by the atomic operations of 
+ * {@link Configs#concurrentConfig(Config)}, which set single {@code Number} 
+ * and {@code String} entries in place, one writer at a time, so it can be 
+ * read by any number of threads without synchronization.
+ * 
+ * @author Pranjal Raihan
+ */
+final class ConfigSnapshot {
+    
+    /**
+     * The flushed {@code Boolean} entries
+     */
+    final Map<String, Boolean> booleans;
+    
+    /**
+     * The flushed {@code Number} entries
+     */
+    final Map<String, Number> numbers;
+    
+    /**
+     * The flushed {@code String} entries
+     */
+    final Map<String, String> strings;
+    
+    /**
+     * The map behind {@link #numbers}
+     */
+    private final ConcurrentMap<String, Number> liveNumbers;
+    
+    /**
+     * The map behind {@link #strings}
+     */
+    private final ConcurrentMap<String, String> liveStrings;
+    
+    
+    
+    
+    private ConfigSnapshot(Map<String, Boolean> booleans, 
+            ConcurrentMap<String, Number> numbers, 
+            ConcurrentMap<String, String> strings) {
+        this.booleans = Collections.unmodifiableMap(booleans);
+        this.numbers = Collections.unmodifiableMap(numbers);
+        this.strings = Collections.unmodifiableMap(strings);
+        this.liveNumbers = numbers;
+        this.liveStrings = strings;
+    }
+    
+    
+    
+    
+    /**
+     * Takes a snapshot of the flushed state of a {@code Config}. The caller 
+     * must make sure that the {@code Config} is not modified concurrently.
+     * 
+     * @param config the {@code Config} to copy
+     * 
+     * @return the snapshot
+     */
+    static ConfigSnapshot of(Config config) {
+        Contract.nonNull(config, "config");
+        ConcurrentMap<String, Number> numbers = 
+                new ConcurrentHashMap<String, Number>();
+        for (Map.Entry<String, Number> entry : config.numbers())
+            numbers.put(entry.getKey(), entry.getValue());
+        ConcurrentMap<String, String> strings = 
+                new ConcurrentHashMap<String, String>();
+        for (Map.Entry<String, String> entry : config.strings())
+            strings.put(entry.getKey(), entry.getValue());
+        // mapBooleans() already returns a private copy
+        return new ConfigSnapshot(config.mapBooleans(), numbers, strings);
+    }
+    
+    
+    
+    
+    Boolean getBoolean(String key) {
+        return booleans.get(key);
+    }
+    
+    Number getNumber(String key) {
+        return numbers.get(key);
+    }
+    
+    String getString(String key) {
+        return strings.get(key);
+    }
+    
+    /**
+     * Sets a {@code Number}, or removes it if {@code value} is {@code null}. 
+     * Called by one writer at a time.
+     */
+    void setNumber(String key, Number value) {
+        set(liveNumbers, key, value);
+    }
+    
+    /**
+     * Sets a {@code String}, or removes it if {@code value} is {@code null}. 
+     * Called by one writer at a time.
+     */
+    void setString(String key, String value) {
+        set(liveStrings, key, value);
+    }
+    
+    boolean containsKey(String key, Config.Repository repository) {
+        Contract.nonNull(key);
+        Contract.nonNull(repository);
+        switch (repository) {
+            case BOOLEAN:
+                return booleans.containsKey(key);
+            case STRING:
+                return strings.containsKey(key);
+            case NUMBER:
+                return numbers.containsKey(key);
+            default:
+                throw new InternalError();
+        }
+    }
+    
+    
+    
+    
+    private static <V> void set(ConcurrentMap<String, V> map, String key, 
+            V value) {
+        if (value == null)
+            map.remove(key);
+        else
+            map.put(key, value);
+    }
+    
+}
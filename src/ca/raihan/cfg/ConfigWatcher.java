@@ -0,0 +1,337 @@
+/*******************************************************************************
+ * Copyright 2014 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package ca.raihan.cfg;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reloads {@code Config}s when their linked file changes on disk. A watched
+ * {@code Config} is linked to its file with {@link Config#linkToFile(File)};
+ * whenever the directory of the file reports a change to it, the file is
+ * read again through the {@code ConfigManager} it was watched with and only
+ * the keys whose values differ from the flushed state are put into or
+ * deleted from the {@code Config}, committed as one {@link ConfigBatch}.
+ * The regular repository events and the commit event are raised for those
+ * keys, and keys that did not change are left untouched. Changes the
+ * application has not flushed yet stay pending and are not published with
+ * the file's; a pending change of a key that the file changed is replaced
+ * by the file's value.
+ * <p>
+ * All watched files are served by a single {@code WatchService} and a single
+ * daemon thread. Changes are applied on that thread, so a {@code Config}
+ * that is also written to by other threads should be a
+ * {@link Configs#synchronizedConfig(Config) synchronized} or
+ * {@link Configs#concurrentConfig(Config) concurrent} one. A file that
+ * cannot be read, for instance because it is still being written, leaves
+ * the {@code Config} as it was; the failure is passed to the uncaught
+ * exception handler of the watcher thread and the next change is tried
+ * again.
+ * 
+ * @author Pranjal Raihan
+ */
+public final class ConfigWatcher implements Closeable {
+    
+    /**
+     * The time to wait for more changes after the first one, so that a file
+     * written in several steps is read once
+     */
+    static final long SETTLE_MILLIS = 50L;
+    
+    /**
+     * Numbers the watcher threads
+     */
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    
+    
+    private final WatchService watchService;
+    
+    /**
+     * The watched files by directory, guarded by {@code this}
+     */
+    private final Map<Path, Map<Path, List<Watch>>> watches =
+            new HashMap<Path, Map<Path, List<Watch>>>();
+    
+    /**
+     * The {@code WatchKey} of each watched directory, guarded by
+     * {@code this}
+     */
+    private final Map<Path, WatchKey> keys = new HashMap<Path, WatchKey>();
+    
+    private volatile boolean closed;
+    
+    
+    
+    
+    /**
+     * Constructs a watcher on the default file system and starts its
+     * thread.
+     * 
+     * @throws IOException if the {@code WatchService} could not be created
+     */
+    public ConfigWatcher() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, "ConfigWatcher-" + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    
+    
+    
+    /**
+     * Links a {@code Config} to a file and reloads it whenever the file
+     * changes.
+     * 
+     * @param config the {@code Config} to keep up to date
+     * @param file the file to watch
+     * @param manager the {@code ConfigManager} to read the file with
+     * 
+     * @throws ConfigException if the file could not be watched
+     * @throws IllegalStateException if this watcher is closed
+     */
+    public void watch(Config config, File file, ConfigManager<?> manager)
+            throws ConfigException {
+        Contract.nonNull(config, "config");
+        Contract.nonNull(file, "file");
+        Contract.nonNull(manager, "manager");
+        config.linkToFile(file);
+        
+        Path path = file.getAbsoluteFile().toPath().normalize();
+        Path dir = path.getParent();
+        synchronized (this) {
+            if (closed)
+                throw new IllegalStateException("watcher is closed");
+            if (!keys.containsKey(dir)) {
+                try {
+                    
+                    keys.put(dir, dir.register(watchService,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY));
+                            
+                } catch (IOException ex) {
+                    
+                    throw new ConfigException(ex);
+                    
+                }
+                watches.put(dir, new HashMap<Path, List<Watch>>());
+            }
+            Map<Path, List<Watch>> files = watches.get(dir);
+            List<Watch> list = files.get(path);
+            if (list == null) {
+                list = new ArrayList<Watch>(1);
+                files.put(path, list);
+            }
+            list.add(new Watch(config, path.toFile(), manager));
+        }
+    }
+    
+    /**
+     * Stops reloading a {@code Config}.
+     * 
+     * @param config the {@code Config}
+     * 
+     * @return {@code true} if the {@code Config} was watched
+     */
+    public synchronized boolean unwatch(Config config) {
+        Contract.nonNull(config, "config");
+        boolean found = false;
+        Iterator<Map.Entry<Path, Map<Path, List<Watch>>>> dirs =
+                watches.entrySet().iterator();
+        while (dirs.hasNext()) {
+            Map.Entry<Path, Map<Path, List<Watch>>> dir = dirs.next();
+            Iterator<List<Watch>> files = dir.getValue().values().iterator();
+            while (files.hasNext()) {
+                List<Watch> list = files.next();
+                for (int i = list.size() - 1; i >= 0; --i) {
+                    if (list.get(i).config == config) {
+                        list.remove(i);
+                        found = true;
+                    }
+                }
+                if (list.isEmpty())
+                    files.remove();
+            }
+            if (dir.getValue().isEmpty()) {
+                dirs.remove();
+                keys.remove(dir.getKey()).cancel();
+            }
+        }
+        return found;
+    }
+    
+    /**
+     * Reads the file of a watched {@code Config} now and applies the keys
+     * that changed, on the calling thread.
+     * 
+     * @param config the {@code Config}
+     * 
+     * @return the number of keys put or deleted
+     * 
+     * @throws ConfigException if the file could not be read
+     * @throws IllegalArgumentException if the {@code Config} is not watched
+     */
+    public int reload(Config config) throws ConfigException {
+        Contract.nonNull(config, "config");
+        Watch watch = null;
+        synchronized (this) {
+            search:
+            for (Map<Path, List<Watch>> files : watches.values()) {
+                for (List<Watch> list : files.values()) {
+                    for (Watch w : list) {
+                        if (w.config == config) {
+                            watch = w;
+                            break search;
+                        }
+                    }
+                }
+            }
+        }
+        if (watch == null)
+            throw new IllegalArgumentException("Config is not watched");
+        return watch.reload();
+    }
+    
+    /**
+     * Stops watching all files and ends the watcher thread.
+     * 
+     * @throws IOException if the {@code WatchService} could not be closed
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            watches.clear();
+            keys.clear();
+        }
+        watchService.close();
+    }
+    
+    
+    
+    
+    private void loop() {
+        try {
+            while (!closed) {
+                Set<Watch> changed = new LinkedHashSet<Watch>();
+                collect(watchService.take(), changed);
+                // let a file written in several steps settle
+                WatchKey key;
+                while ((key = watchService.poll(
+                        SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null)
+                    collect(key, changed);
+                for (Watch watch : changed) {
+                    try {
+                        watch.reload();
+                    } catch (RuntimeException ex) {
+                        Thread t = Thread.currentThread();
+                        t.getUncaughtExceptionHandler().uncaughtException(
+                                t, ex);
+                    }
+                }
+            }
+        } catch (ClosedWatchServiceException ex) {
+        } catch (InterruptedException ex) {
+        }
+    }
+    
+    /**
+     * Adds the {@code Watch}es of the files a {@code WatchKey} reported to
+     * {@code changed}, and resets the key.
+     */
+    private void collect(WatchKey key, Set<Watch> changed) {
+        Path dir = (Path) key.watchable();
+        List<WatchEvent<?>> events = key.pollEvents();
+        key.reset();
+        synchronized (this) {
+            Map<Path, List<Watch>> files = watches.get(dir);
+            if (files == null)
+                return;
+            for (WatchEvent<?> event : events) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // events were lost, any file may have changed
+                    for (List<Watch> list : files.values())
+                        changed.addAll(list);
+                    continue;
+                }
+                List<Watch> list = files.get(
+                        dir.resolve((Path) event.context()));
+                if (list != null)
+                    changed.addAll(list);
+            }
+        }
+    }
+    
+    
+    
+    
+    /**
+     * A watched {@code Config} with its file and {@code ConfigManager}.
+     */
+    private static final class Watch {
+        
+        final Config config;
+        
+        final File file;
+        
+        final ConfigManager<?> manager;
+        
+        
+        
+        
+        Watch(Config config, File file, ConfigManager<?> manager) {
+            this.config = config;
+            this.file = file;
+            this.manager = manager;
+        }
+        
+        
+        
+        
+        int reload() {
+            if (!file.isFile())
+                return 0;
+            return Configs.reconcile(config, manager.read(file));
+        }
+        
+    }
+    
+}
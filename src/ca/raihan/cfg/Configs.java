@@ -16,16 +16,28 @@
 
 package ca.raihan.cfg;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
 import java.math.BigDecimal;
 import java.math.BigInteger;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import ca.raihan.cfg.Config.Repository;
 
@@ -46,6 +58,115 @@ public final class Configs {
         return new SynchronizedConfig(config);
     }
     
+    /**
+     * Returns a thread-safe {@code Config} backed by the specified 
+     * {@code Config}. Unlike {@link #synchronizedConfig(Config)}, reads never 
+     * block: they are served from an immutable snapshot of the flushed 
+     * entries which is rebuilt and published on every 
+     * {@link Config#flushState()}. Writes, the atomic operations included, 
+     * are still serialized.
+     * 
+     * @param config the backing {@code Config}
+     * 
+     * @return a concurrent view of the specified {@code Config}
+     */
+    public static Config concurrentConfig(Config config) {
+        return new ConcurrentConfig(config);
+    }
+    
+    /**
+     * Returns a read-only copy of the flushed state of the specified 
+     * {@code Config}. The copy keeps all keys in a single minimal perfect hash 
+     * and all values in flat arrays, so it takes less memory than the 
+     * original and every read is answered with a single probe. Any 
+     * {@code put} or {@code delete} on the copy throws 
+     * {@code UnsupportedOperationException}. The copy is immutable and 
+     * therefore thread-safe; later changes to {@code config} are not 
+     * reflected in it.
+     * 
+     * @param config the {@code Config} to copy
+     * 
+     * @return a frozen copy of the specified {@code Config}
+     */
+    public static Config frozenConfig(Config config) {
+        return new FrozenConfig(config);
+    }
+    
+    /**
+     * Returns the changes that turn the flushed state of {@code from} into 
+     * the flushed state of {@code to}, like {@link Config#diff(Config)}. With 
+     * an {@code ExecutorService}, each {@code Repository} is compared by a 
+     * task of its own and the results are joined in {@code Repository} 
+     * order, which pays off for very large instances. Neither instance may 
+     * be changed while the comparison runs.
+     * 
+     * @param from the {@code Config} to compare from
+     * @param to the {@code Config} to compare to
+     * @param executor the {@code ExecutorService} to compare on, or 
+     *        {@code null} to compare on the calling thread
+     * 
+     * @return the changes, empty if both hold the same entries
+     * 
+     * @throws ConfigException if a comparison task failed or the calling 
+     *         thread was interrupted while waiting for one
+     */
+    public static ConfigChangeSet diff(final Config from, final Config to, 
+            ExecutorService executor) throws ConfigException {
+        Contract.nonNull(from, "from");
+        Contract.nonNull(to, "to");
+        if (executor == null) {
+            ConfigChangeSet changes = new ConfigChangeSet(DIFF_CAPACITY);
+            diffBooleans(from, to, changes);
+            diffStrings(from, to, changes);
+            diffNumbers(from, to, changes);
+            return changes;
+        }
+        
+        List<Future<ConfigChangeSet>> futures = 
+                new ArrayList<Future<ConfigChangeSet>>(3);
+        for (final Repository repository : Repository.values()) {
+            futures.add(executor.submit(new Callable<ConfigChangeSet>() {
+                public ConfigChangeSet call() {
+                    ConfigChangeSet changes = 
+                            new ConfigChangeSet(DIFF_CAPACITY);
+                    switch (repository) {
+                        case BOOLEAN:
+                            diffBooleans(from, to, changes);
+                            break;
+                        case STRING:
+                            diffStrings(from, to, changes);
+                            break;
+                        case NUMBER:
+                            diffNumbers(from, to, changes);
+                            break;
+                    }
+                    return changes;
+                }
+            }));
+        }
+        ConfigChangeSet changes = new ConfigChangeSet(DIFF_CAPACITY);
+        try {
+            
+            for (Future<ConfigChangeSet> future : futures)
+                changes.addAll(future.get());
+                
+        } catch (InterruptedException ex) {
+            
+            for (Future<ConfigChangeSet> future : futures)
+                future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ConfigException(ex);
+            
+        } catch (ExecutionException ex) {
+            
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            throw new ConfigException(ex.getCause());
+            
+        }
+        return changes;
+    }
+    
     public static boolean parseBoolean(String toParse) {
         if (toParse == null)
             throw new BooleanParsingException("Cannot parse null value");
@@ -65,6 +186,11 @@ public final class Configs {
     
     static String DUPLICATE_REPO_FORMAT = "Duplicate Repository: \"%s\"";
     
+    /**
+     * The initial capacity of the change set of a diff
+     */
+    static final int DIFF_CAPACITY = 16;
+    
     
     
     
@@ -136,6 +262,266 @@ public final class Configs {
             : defaultValue;
     }
     
+    static BigInteger toBigInteger(Number value) {
+        return value instanceof BigInteger ? 
+                (BigInteger) value : 
+                BigInteger.valueOf(value.longValue());
+    }
+    
+    static BigDecimal toBigDecimal(Number value) {
+        if (value instanceof BigDecimal) {
+            return (BigDecimal) value;
+        }
+        if (value instanceof Float || value instanceof Double) {
+            return BigDecimal.valueOf(value.doubleValue());
+        }
+        return BigDecimal.valueOf(value.longValue());
+    }
+    
+    /**
+     * Puts a {@code Number} through the {@code put} method of its
+     * {@code NumberType}.
+     * 
+     * @param config the {@code Config} to put into
+     * @param key the key
+     * @param value the value
+     */
+    static void putNumber(Config config, String key, Number value) {
+        NumberType type = resolveNumberType(value);
+        if (type == NumberType.BYTE)
+            config.putByte(key, value.byteValue());
+        else if (type == NumberType.SHORT)
+            config.putShort(key, value.shortValue());
+        else if (type == NumberType.INT)
+            config.putInt(key, value.intValue());
+        else if (type == NumberType.LONG)
+            config.putLong(key, value.longValue());
+        else if (type == NumberType.FLOAT)
+            config.putFloat(key, value.floatValue());
+        else if (type == NumberType.DOUBLE)
+            config.putDouble(key, value.doubleValue());
+        else if (type == NumberType.BIG_INTEGER)
+            config.putBigInteger(key, (BigInteger) value);
+        else
+            config.putBigDecimal(key, (BigDecimal) value);
+    }
+    
+    static void diffBooleans(Config from, Config to, 
+            ConfigChangeSet changes) {
+        for (Map.Entry<String, Boolean> entry : from.booleans()) {
+            String key = entry.getKey();
+            changes.add(Repository.BOOLEAN, key, entry.getValue(), 
+                    to.containsKey(key, Repository.BOOLEAN) ? 
+                            Boolean.valueOf(to.getBoolean(key)) : null);
+        }
+        for (Map.Entry<String, Boolean> entry : to.booleans()) {
+            if (!from.containsKey(entry.getKey(), Repository.BOOLEAN))
+                changes.add(Repository.BOOLEAN, entry.getKey(), null, 
+                        entry.getValue());
+        }
+    }
+    
+    static void diffStrings(Config from, Config to, ConfigChangeSet changes) {
+        for (Map.Entry<String, String> entry : from.strings()) {
+            String key = entry.getKey();
+            changes.add(Repository.STRING, key, entry.getValue(), 
+                    to.containsKey(key, Repository.STRING) ? 
+                            to.getString(key) : null);
+        }
+        for (Map.Entry<String, String> entry : to.strings()) {
+            if (!from.containsKey(entry.getKey(), Repository.STRING))
+                changes.add(Repository.STRING, entry.getKey(), null, 
+                        entry.getValue());
+        }
+    }
+    
+    static void diffNumbers(Config from, Config to, ConfigChangeSet changes) {
+        for (Map.Entry<String, Number> entry : from.numbers()) {
+            String key = entry.getKey();
+            changes.add(Repository.NUMBER, key, entry.getValue(), 
+                    to.containsKey(key, Repository.NUMBER) ? 
+                            to.getNumber(key) : null);
+        }
+        for (Map.Entry<String, Number> entry : to.numbers()) {
+            if (!from.containsKey(entry.getKey(), Repository.NUMBER))
+                changes.add(Repository.NUMBER, entry.getKey(), null, 
+                        entry.getValue());
+        }
+    }
+    
+    /**
+     * The implementation of {@link Config#applyPatch(ConfigChangeSet)} on top 
+     * of the public {@code put} and {@code delete} methods.
+     * 
+     * @param config the {@code Config} to change
+     * @param patch the changes
+     */
+    static void applyPatch(Config config, ConfigChangeSet patch) {
+        Contract.nonNull(patch, "patch");
+        for (int i = 0; i < patch.size(); ++i) {
+            String key = patch.getKey(i);
+            Repository repository = patch.getRepository(i);
+            Object value = patch.getNewValue(i);
+            if (value == null)
+                config.delete(key, repository);
+            else if (repository == Repository.BOOLEAN)
+                config.putBoolean(key, ((Boolean) value).booleanValue());
+            else if (repository == Repository.STRING)
+                config.putString(key, (String) value);
+            else
+                putNumber(config, key, (Number) value);
+        }
+    }
+    
+    /**
+     * Makes the flushed state of {@code target} equal to the flushed state of 
+     * {@code source} by committing their {@link Config#diff(Config) diff} as 
+     * a {@link ConfigBatch}, if there is any difference. Pending changes of 
+     * other keys stay pending, they are not flushed along with the patch.
+     * 
+     * @param target the {@code Config} to change
+     * @param source the {@code Config} to match
+     * 
+     * @return the number of keys put or deleted
+     */
+    static int reconcile(Config target, Config source) {
+        ConfigChangeSet patch = target.diff(source);
+        if (patch.isEmpty())
+            return 0;
+        ConfigBatch batch = target.beginBatch();
+        for (int i = 0; i < patch.size(); ++i) {
+            String key = patch.getKey(i);
+            Repository repository = patch.getRepository(i);
+            Object value = patch.getNewValue(i);
+            if (value == null)
+                batch.delete(key, repository);
+            else if (repository == Repository.BOOLEAN)
+                batch.putBoolean(key, ((Boolean) value).booleanValue());
+            else if (repository == Repository.STRING)
+                batch.putString(key, (String) value);
+            else
+                batch.number(key, (Number) value);
+        }
+        batch.commit();
+        return patch.size();
+    }
+    
+    /**
+     * Combines the fingerprints of the three repositories into the 
+     * fingerprint of a {@code Config}. Each is mixed in at its own position, 
+     * so the same entry in a different {@code Repository} counts 
+     * differently.
+     * 
+     * @param booleans the fingerprint of the {@code Boolean} repository
+     * @param numbers the fingerprint of the {@code Number} repository
+     * @param strings the fingerprint of the {@code String} repository
+     * 
+     * @return the fingerprint of the {@code Config}
+     */
+    static long fingerprint(long booleans, long numbers, long strings) {
+        long h = SlotTable.mix(booleans);
+        h = SlotTable.mix(h + numbers);
+        return SlotTable.mix(h + strings);
+    }
+    
+    /**
+     * Returns the file linked to a {@code Config} with 
+     * {@link Config#linkToFile(File)}, looking through the synchronized and 
+     * concurrent views.
+     * 
+     * @param config the {@code Config}
+     * 
+     * @return the linked file, or {@code null} if there is none
+     */
+    static File linkedFile(Config config) {
+        if (config instanceof SynchronizedConfig)
+            return linkedFile(((SynchronizedConfig) config).config);
+        if (config instanceof ConcurrentConfig)
+            return linkedFile(((ConcurrentConfig) config).config);
+        if (config instanceof PrivateConfigBase)
+            return ((PrivateConfigBase) config).fileHandle;
+        return null;
+    }
+    
+    /**
+     * Returns a new, empty {@code Config} that saves in the format of 
+     * {@code config}, looking through the synchronized and concurrent views.
+     * A {@code Config} not built in saves as JSON.
+     * 
+     * @param config the {@code Config}
+     * 
+     * @return the empty {@code Config}
+     */
+    static PrivateConfigBase emptyLike(Config config) {
+        if (config instanceof SynchronizedConfig)
+            return emptyLike(((SynchronizedConfig) config).config);
+        if (config instanceof ConcurrentConfig)
+            return emptyLike(((ConcurrentConfig) config).config);
+        PrivateConfigBase rv = config instanceof XMLConfig ? XMLConfig.empty()
+                : config instanceof BinaryConfig ? BinaryConfig.empty()
+                : JSONConfig.empty();
+        if (config instanceof PrivateConfigBase)
+            rv.indexed = ((PrivateConfigBase) config).indexed;
+        return rv;
+    }
+    
+    /**
+     * Returns what {@link Config#save(OutputStream)} writes, in the format of 
+     * the {@code Config}.
+     * 
+     * @param config the {@code Config}
+     * 
+     * @return the saved form
+     */
+    static byte[] toBytes(Config config) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        config.save(out);
+        return out.toByteArray();
+    }
+    
+    /**
+     * Replaces a file with new contents in one step: they are written to a 
+     * temporary file in the same directory and forced to the disk, which 
+     * then is moved over {@code file}. Readers of {@code file} see either 
+     * the old or the new contents, never a part, and a mapping of the old 
+     * file stays valid.
+     * 
+     * @param file the file to replace
+     * @param contents the contents to write
+     * 
+     * @throws ConfigException if the file could not be written
+     */
+    static void writeAtomically(File file, byte[] contents) 
+            throws ConfigException {
+        File tmp = null;
+        try {
+            
+            File dir = file.getAbsoluteFile().getParentFile();
+            tmp = File.createTempFile(file.getName(), ".tmp", dir);
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(contents);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), 
+                    StandardCopyOption.REPLACE_EXISTING, 
+                    StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+            
+        } catch (IOException ex) {
+            
+            throw new ConfigException(ex);
+            
+        } finally {
+            
+            if (tmp != null)
+                tmp.delete();
+                
+        }
+    }
+    
     
     
     
@@ -316,6 +702,12 @@ public final class Configs {
             }
         }
         
+        public Number getNumber(String key) throws ConfigException {
+            synchronized (mutex) {
+                return config.getNumber(key);
+            }
+        }
+        
         public String getString(String key) throws ConfigException {
             synchronized (mutex) {
                 return config.getString(key);
@@ -537,6 +929,43 @@ public final class Configs {
             }
         }
         
+        public long incrementLong(String key) throws ConfigException {
+            synchronized (mutex) {
+                return config.incrementLong(key);
+            }
+        }
+        
+        public double addAndGetDouble(String key, double delta) 
+                throws ConfigException {
+            synchronized (mutex) {
+                return config.addAndGetDouble(key, delta);
+            }
+        }
+        
+        public boolean compareAndSetString(String key, String expect, 
+                String update) throws ConfigException {
+            synchronized (mutex) {
+                return config.compareAndSetString(key, expect, update);
+            }
+        }
+        
+        public Number computeNumber(String key, NumberFunction function) 
+                throws ConfigException {
+            synchronized (mutex) {
+                return config.computeNumber(key, function);
+            }
+        }
+        
+        public ConfigBatch beginBatch() throws ConfigException {
+            return new ConfigBatch(new ConfigBatch.Committer() {
+                public void commit(ConfigBatch batch) {
+                    synchronized (mutex) {
+                        config.beginBatch().addAll(batch).commit();
+                    }
+                }
+            });
+        }
+        
         public ConfigEvent<BooleanRepoContext> booleanEvent() {
             synchronized (mutex) {
                 return config.booleanEvent();
@@ -555,6 +984,12 @@ public final class Configs {
             }
         }
         
+        public ConfigEvent<ConfigChangeSet> commitEvent() {
+            synchronized (mutex) {
+                return config.commitEvent();
+            }
+        }
+        
         public Iterator<Map.Entry<String, ?>> iterator() {
             synchronized (mutex) {
                 return config.iterator();
@@ -597,6 +1032,30 @@ public final class Configs {
             }
         }
         
+        public ConfigChangeSet diff(Config other) {
+            synchronized (mutex) {
+                return config.diff(other);
+            }
+        }
+        
+        public void applyPatch(ConfigChangeSet patch) throws ConfigException {
+            synchronized (mutex) {
+                config.applyPatch(patch);
+            }
+        }
+        
+        public long getModCount() {
+            synchronized (mutex) {
+                return config.getModCount();
+            }
+        }
+        
+        public long getFingerprint() {
+            synchronized (mutex) {
+                return config.getFingerprint();
+            }
+        }
+        
         public void flushState() {
             synchronized (mutex) {
                 config.flushState();
@@ -663,4 +1122,486 @@ public final class Configs {
         
     }
     
+    static final class ConcurrentConfig implements Config {
+        
+        /**
+         * Serializes writers, readers never acquire it
+         */
+        private final Object writeMutex = new Object();
+        
+        private final Config config;
+        
+        /**
+         * The last published snapshot of the flushed state
+         */
+        private volatile ConfigSnapshot snapshot;
+        
+        
+        
+        
+        public ConcurrentConfig(Config config) {
+            this.config = Contract.nonNull(config);
+            synchronized (writeMutex) {
+                this.snapshot = ConfigSnapshot.of(config);
+            }
+        }
+        
+        
+        
+        
+        public boolean getBoolean(String key) throws ConfigException {
+            Boolean value = snapshot.getBoolean(key);
+            if (value != null)
+                return value.booleanValue();
+            throw ConfigException.unfoundKey(key);
+        }
+        
+        public byte getByte(String key) throws ConfigException {
+            return number(key).byteValue();
+        }
+        
+        public short getShort(String key) throws ConfigException {
+            return number(key).shortValue();
+        }
+        
+        public int getInt(String key) throws ConfigException {
+            return number(key).intValue();
+        }
+        
+        public long getLong(String key) throws ConfigException {
+            return number(key).longValue();
+        }
+        
+        public float getFloat(String key) throws ConfigException {
+            return number(key).floatValue();
+        }
+        
+        public double getDouble(String key) throws ConfigException {
+            return number(key).doubleValue();
+        }
+        
+        public BigInteger getBigInteger(String key) 
+                throws ConfigException {
+            return toBigInteger(number(key));
+        }
+        
+        public BigDecimal getBigDecimal(String key) 
+                throws ConfigException {
+            return toBigDecimal(number(key));
+        }
+        
+        public Number getNumber(String key) throws ConfigException {
+            return number(key);
+        }
+        
+        public String getString(String key) throws ConfigException {
+            String value = snapshot.getString(key);
+            if (value != null)
+                return value;
+            throw ConfigException.unfoundKey(key);
+        }
+        
+        private Number number(String key) throws ConfigException {
+            Number value = snapshot.getNumber(key);
+            if (value != null)
+                return value;
+            throw ConfigException.unfoundKey(key);
+        }
+        
+        public boolean getOrDefault(String key, boolean value) 
+                throws ConfigException  {
+            Boolean v = snapshot.getBoolean(key);
+            return v != null ? v.booleanValue() : value;
+        }
+        
+        public byte getOrDefault(String key, byte value) 
+                throws ConfigException  {
+            Number v = snapshot.getNumber(key);
+            return v != null ? v.byteValue() : value;
+        }
+        
+        public short getOrDefault(String key, short value) 
+                throws ConfigException  {
+            Number v = snapshot.getNumber(key);
+            return v != null ? v.shortValue() : value;
+        }
+        
+        public int getOrDefault(String key, int value) throws ConfigException  {
+            Number v = snapshot.getNumber(key);
+            return v != null ? v.intValue() : value;
+        }
+        
+        public long getOrDefault(String key, long value) 
+                throws ConfigException {
+            Number v = snapshot.getNumber(key);
+            return v != null ? v.longValue() : value;
+        }
+        
+        public float getOrDefault(String key, float value) 
+                throws ConfigException   {
+            Number v = snapshot.getNumber(key);
+            return v != null ? v.floatValue() : value;
+        }
+        
+        public double getOrDefault(String key, double value) 
+                throws ConfigException   {
+            Number v = snapshot.getNumber(key);
+            return v != null ? v.doubleValue() : value;
+        }
+        
+        public BigInteger getOrDefault(String key, BigInteger value) 
+                throws ConfigException, NullPointerException {
+            Number v = snapshot.getNumber(key);
+            return v != null ? toBigInteger(v) : value;
+        }
+        
+        public BigDecimal getOrDefault(String key, BigDecimal value) 
+                throws ConfigException, NullPointerException {
+            Number v = snapshot.getNumber(key);
+            return v != null ? toBigDecimal(v) : value;
+        }
+        
+        public String getOrDefault(String key, String value) 
+                throws ConfigException   {
+            String v = snapshot.getString(key);
+            return v != null ? v : value;
+        }
+        
+        public void putBoolean(String key, boolean value) 
+                throws ConfigException {
+            synchronized (writeMutex) {
+                config.putBoolean(key, value);
+            }
+        }
+        
+        public void putBoolean(String key, boolean value, Put put) 
+                throws ConfigException {
+            synchronized (writeMutex) {
+                config.putBoolean(key, value, put);
+            }
+        }
+        
+        public void putByte(String key, byte value) throws ConfigException {
+            synchronized (writeMutex) {
+                config.putByte(key, value);
+            }
+        }
+        
+        public void putByte(String key, byte value, Put put) 
+                throws ConfigException  {
+            synchronized (writeMutex) {
+                config.putByte(key, value, put);
+            }
+        }
+        
+        public void putShort(String key, short value) throws ConfigException {
+            synchronized (writeMutex) {
+                config.putShort(key, value);
+            }
+        }
+        
+        public void putShort(String key, short value, Put put) 
+                throws ConfigException {
+            synchronized (writeMutex) {
+                config.putShort(key, value, put);
+            }
+        }
+        
+        public void putInt(String key, int value) throws ConfigException {
+            synchronized (writeMutex) {
+                config.putInt(key, value);
+            }
+        }
+        
+        public void putInt(String key, int value, Put put) 
+                throws ConfigException {
+            synchronized (writeMutex) {
+                config.putInt(key, value, put);
+            }
+        }
+        
+        public void putLong(String key, long value) throws ConfigException {
+            synchronized (writeMutex) {
+                config.putLong(key, value);
+            }
+        }
+        
+        public void putLong(String key, long value, Put put) 
+                throws ConfigException {
+            synchronized (writeMutex) {
+                config.putLong(key, value, put);
+            }
+        }
+        
+        public void putFloat(String key, float value) throws ConfigException {
+            synchronized (writeMutex) {
+                config.putFloat(key, value);
+            }
+        }
+        
+        public void putFloat(String key, float value, Put put) 
+                throws ConfigException {
+            synchronized (writeMutex) {
+                config.putFloat(key, value, put);
+            }
+        }
+        
+        public void putDouble(String key, double value) throws ConfigException {
+            synchronized (writeMutex) {
+                config.putDouble(key, value);
+            }
+        }
+        
+        public void putDouble(String key, double value, Put put) 
+                throws ConfigException {
+            synchronized (writeMutex) {
+                config.putDouble(key, value, put);
+            }
+        }
+        
+        public void putBigInteger(String key, BigInteger value) 
+                throws ConfigException, NullPointerException {
+            synchronized (writeMutex) {
+                config.putBigInteger(key, value);
+            }
+        }
+        
+        public void putBigInteger(String key, BigInteger value, Put put) 
+                throws ConfigException, NullPointerException {
+            synchronized (writeMutex) {
+                config.putBigInteger(key, value, put);
+            }
+        }
+        
+        public void putBigDecimal(String key, BigDecimal value) 
+                throws ConfigException, NullPointerException {
+            synchronized (writeMutex) {
+                config.putBigDecimal(key, value);
+            }
+        }
+        
+        public void putBigDecimal(String key, BigDecimal value, Put put) 
+                throws ConfigException, NullPointerException {
+            synchronized (writeMutex) {
+                config.putBigDecimal(key, value, put);
+            }
+        }
+        
+        public void putString(String key, String value) throws ConfigException {
+            synchronized (writeMutex) {
+                config.putString(key, value);
+            }
+        }
+        
+        public void putString(String key, String value, Put put) 
+                throws ConfigException {
+            synchronized (writeMutex) {
+                config.putString(key, value, put);
+            }
+        }
+        
+        public boolean containsKey(String key, Repository repository) {
+            return snapshot.containsKey(key, repository);
+        }
+        
+        public boolean delete(String key, Repository repository) 
+                throws ConfigException {
+            synchronized (writeMutex) {
+                return config.delete(key, repository);
+            }
+        }
+        
+        /**
+         * Performed by the backing {@code Config} under the writer lock, so 
+         * that its events are raised and the result is stored at once; the 
+         * snapshot is then updated in place.
+         */
+        public long incrementLong(String key) throws ConfigException {
+            synchronized (writeMutex) {
+                long value = config.incrementLong(key);
+                snapshot.setNumber(key, Long.valueOf(value));
+                return value;
+            }
+        }
+        
+        public double addAndGetDouble(String key, double delta) 
+                throws ConfigException {
+            synchronized (writeMutex) {
+                double value = config.addAndGetDouble(key, delta);
+                snapshot.setNumber(key, Double.valueOf(value));
+                return value;
+            }
+        }
+        
+        public boolean compareAndSetString(String key, String expect, 
+                String update) throws ConfigException {
+            synchronized (writeMutex) {
+                if (!config.compareAndSetString(key, expect, update))
+                    return false;
+                snapshot.setString(key, update);
+                return true;
+            }
+        }
+        
+        public Number computeNumber(String key, NumberFunction function) 
+                throws ConfigException {
+            synchronized (writeMutex) {
+                Number value = config.computeNumber(key, function);
+                snapshot.setNumber(key, value);
+                return value;
+            }
+        }
+        
+        public ConfigBatch beginBatch() throws ConfigException {
+            return new ConfigBatch(new ConfigBatch.Committer() {
+                public void commit(ConfigBatch batch) {
+                    synchronized (writeMutex) {
+                        config.beginBatch().addAll(batch).commit();
+                        snapshot = ConfigSnapshot.of(config);
+                    }
+                }
+            });
+        }
+        
+        public ConfigEvent<BooleanRepoContext> booleanEvent() {
+            return config.booleanEvent();
+        }
+        
+        public ConfigEvent<NumberRepoContext> numberEvent() {
+            return config.numberEvent();
+        }
+        
+        public ConfigEvent<StringRepoContext> stringEvent() {
+            return config.stringEvent();
+        }
+        
+        public ConfigEvent<ConfigChangeSet> commitEvent() {
+            return config.commitEvent();
+        }
+        
+        @SuppressWarnings("unchecked")
+        public Iterator<Map.Entry<String, ?>> iterator() {
+            ConfigSnapshot s = snapshot;
+            return new MergedIterableIterator(new Iterable[]
+            {
+                s.booleans.entrySet(),
+                s.numbers.entrySet(),
+                s.strings.entrySet(),
+            });
+        }
+        
+        public Iterable<Map.Entry<String, Boolean>> booleans() {
+            return new IterableImpl<Map.Entry<String, Boolean>>(
+                    snapshot.booleans.entrySet().iterator());
+        }
+        
+        public Iterable<Map.Entry<String, Number>> numbers() {
+            return new IterableImpl<Map.Entry<String, Number>>(
+                    snapshot.numbers.entrySet().iterator());
+        }
+        
+        public Iterable<Map.Entry<String, String>> strings() {
+            return new IterableImpl<Map.Entry<String, String>>(
+                    snapshot.strings.entrySet().iterator());
+        }
+        
+        public Map<String, Boolean> mapBooleans() {
+            return new HashMap<String, Boolean>(snapshot.booleans);
+        }
+        
+        public Map<String, Number> mapNumbers() {
+            return new HashMap<String, Number>(snapshot.numbers);
+        }
+        
+        public Map<String, String> mapStrings() {
+            return new HashMap<String, String>(snapshot.strings);
+        }
+        
+        public ConfigChangeSet diff(Config other) {
+            return Configs.diff(this, other, null);
+        }
+        
+        public void applyPatch(ConfigChangeSet patch) throws ConfigException {
+            synchronized (writeMutex) {
+                config.applyPatch(patch);
+            }
+        }
+        
+        public long getModCount() {
+            synchronized (writeMutex) {
+                return config.getModCount();
+            }
+        }
+        
+        public long getFingerprint() {
+            synchronized (writeMutex) {
+                return config.getFingerprint();
+            }
+        }
+        
+        public void flushState() {
+            synchronized (writeMutex) {
+                config.flushState();
+                snapshot = ConfigSnapshot.of(config);
+            }
+        }
+        
+        public void save(File file, WriteAccess fileMode) 
+                throws ConfigException {
+            synchronized (writeMutex) {
+                config.save(file, fileMode);
+            }
+        }
+        
+        public void save(OutputStream outputStream) throws ConfigException {
+            synchronized (writeMutex) {
+                config.save(outputStream);
+            }
+        }
+        
+        public void save() throws ConfigException, IOException {
+            synchronized (writeMutex) {
+                config.save();
+            }
+        }
+        
+        public void linkToFile(File file) {
+            synchronized (writeMutex) {
+                config.linkToFile(file);
+            }
+        }
+        
+        public String toCanonical() {
+            synchronized (writeMutex) {
+                return config.toCanonical();
+            }
+        }
+        
+        
+        
+        
+        @Override
+        public String toString() {
+            synchronized (writeMutex) {
+                return config.toString();
+            }
+        }
+        
+        @Override
+        public int hashCode() {
+            return config.hashCode();
+        }
+        
+        @Override
+        @SuppressWarnings("EqualsWhichDoesntCheckParameterClass")
+        public boolean equals(Object o) {
+            if (o == this)
+                return true;
+            synchronized (writeMutex) {
+                return config.equals(o);
+            }
+        }
+        
+    }
+    
 }
@@ -0,0 +1,630 @@
+/*******************************************************************************
+ * Copyright 2014 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package ca.raihan.cfg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ca.raihan.cfg.Configs.IterableImpl;
+
+/**
+ * A read-only copy of the flushed state of a {@code Config}. The keys of all
+ * three repositories share one {@link PerfectHash}, and the values are kept
+ * in flat arrays indexed by the position of their key, so every lookup is a
+ * single probe and no per-entry objects are retained.
+ * <p>
+ * Every {@code put} and {@code delete} throws
+ * {@code UnsupportedOperationException}, as does {@link #linkToFile(File)}.
+ * Since nothing ever changes, the events are never raised. Instances are
+ * immutable and can be shared between threads freely.
+ * 
+ * @author Pranjal Raihan
+ */
+final strictfp class FrozenConfig implements Config {
+    
+    /**
+     * Flag for a {@code boolean} entry
+     */
+    private static final byte BOOLEAN_PRESENT = 1;
+    
+    /**
+     * Flag for the value of a {@code boolean} entry
+     */
+    private static final byte BOOLEAN_VALUE = 2;
+    
+    
+    /**
+     * The positions of the keys
+     */
+    private final PerfectHash hash;
+    
+    /**
+     * The {@code boolean} flags for each position
+     */
+    private final byte[] booleans;
+    
+    /**
+     * The {@code NumberType} for each position, {@code null} if there is no
+     * {@code Number} entry for the key
+     */
+    private final NumberType[] types;
+    
+    /**
+     * The primitive {@code Number} value for each position
+     */
+    private final long[] bits;
+    
+    /**
+     * The {@code BigInteger} or {@code BigDecimal} value for each position,
+     * {@code null} if there are no such values at all
+     */
+    private final Object[] objects;
+    
+    /**
+     * The {@code String} value for each position
+     */
+    private final String[] strings;
+    
+    /**
+     * {@code true} if {@link #toCanonical()} renders XML rather than JSON
+     */
+    private final boolean xml;
+    
+    /**
+     * {@code true} if saves write the binary layout of {@link BinaryConfig}
+     */
+    private final boolean binary;
+    
+    /**
+     * {@code true} if saves end with an index of the keys, like those of the 
+     * source {@code Config}
+     */
+    private final boolean indexed;
+    
+    /**
+     * The {@code File} linked to the source {@code Config}, if any
+     */
+    private final File fileHandle;
+    
+    /**
+     * The fingerprint of the entries, computed once
+     */
+    private final long fingerprint;
+    
+    
+    private final Object eventKey = new Object();
+    
+    private final ConfigEvent<BooleanRepoContext> booleanEvent =
+            new ConfigEvent<BooleanRepoContext>(eventKey);
+    
+    private final ConfigEvent<NumberRepoContext> numberEvent =
+            new ConfigEvent<NumberRepoContext>(eventKey);
+    
+    private final ConfigEvent<StringRepoContext> stringEvent =
+            new ConfigEvent<StringRepoContext>(eventKey);
+    
+    private final ConfigEvent<ConfigChangeSet> commitEvent =
+            new ConfigEvent<ConfigChangeSet>(eventKey);
+    
+    
+    
+    
+    FrozenConfig(Config config) {
+        Contract.nonNull(config, "config");
+        Map<String, Boolean> booleanMap = config.mapBooleans();
+        Map<String, Number> numberMap = config.mapNumbers();
+        Map<String, String> stringMap = config.mapStrings();
+        
+        Set<String> keys = new LinkedHashSet<String>();
+        keys.addAll(booleanMap.keySet());
+        keys.addAll(numberMap.keySet());
+        keys.addAll(stringMap.keySet());
+        this.hash = PerfectHash.build(keys);
+        
+        final int n = hash.size();
+        this.booleans = new byte[n];
+        this.types = new NumberType[n];
+        this.bits = new long[n];
+        this.strings = new String[n];
+        
+        for (Map.Entry<String, Boolean> e : booleanMap.entrySet()) {
+            booleans[hash.indexOf(e.getKey())] = e.getValue().booleanValue() ?
+                    BOOLEAN_PRESENT | BOOLEAN_VALUE :
+                    BOOLEAN_PRESENT;
+        }
+        
+        Object[] big = null;
+        for (Map.Entry<String, Number> e : numberMap.entrySet()) {
+            int i = hash.indexOf(e.getKey());
+            Number value = e.getValue();
+            NumberType type = Configs.resolveNumberType(value);
+            types[i] = type;
+            if (NumberRepository.isIntegral(type)) {
+                bits[i] = value.longValue();
+            } else if (NumberRepository.isFloating(type)) {
+                bits[i] = Double.doubleToRawLongBits(value.doubleValue());
+            } else {
+                if (big == null)
+                    big = new Object[n];
+                big[i] = value;
+            }
+        }
+        this.objects = big;
+        
+        for (Map.Entry<String, String> e : stringMap.entrySet()) {
+            strings[hash.indexOf(e.getKey())] = e.getValue();
+        }
+        
+        long booleanSum = 0L;
+        long numberSum = 0L;
+        long stringSum = 0L;
+        for (int i = 0; i < n; ++i) {
+            String key = hash.keys[i];
+            if (booleans[i] != 0)
+                booleanSum += SlotTable.entryHash(key, 
+                        ObjectRepository.hashValue(Boolean.valueOf(
+                                (booleans[i] & BOOLEAN_VALUE) != 0)));
+            if (types[i] != null)
+                numberSum += SlotTable.entryHash(key, 
+                        NumberRepository.hashValue(types[i], bits[i], 
+                                big == null ? null : big[i]));
+            if (strings[i] != null)
+                stringSum += SlotTable.entryHash(key, 
+                        ObjectRepository.hashValue(strings[i]));
+        }
+        this.fingerprint = Configs.fingerprint(booleanSum, numberSum, 
+                stringSum);
+        
+        this.xml = config instanceof XMLConfig;
+        this.binary = config instanceof BinaryConfig;
+        this.indexed = config instanceof PrivateConfigBase &&
+                ((PrivateConfigBase) config).indexed;
+        this.fileHandle = config instanceof PrivateConfigBase ?
+                ((PrivateConfigBase) config).fileHandle :
+                null;
+    }
+    
+    
+    
+    
+    public boolean getBoolean(String key) throws ConfigException {
+        int i = booleanIndex(key);
+        if (i < 0)
+            throw ConfigException.unfoundKey(key);
+        return (booleans[i] & BOOLEAN_VALUE) != 0;
+    }
+    
+    public byte getByte(String key) throws ConfigException {
+        return (byte) longAt(requireNumber(key));
+    }
+    
+    public short getShort(String key) throws ConfigException {
+        return (short) longAt(requireNumber(key));
+    }
+    
+    public int getInt(String key) throws ConfigException {
+        return (int) longAt(requireNumber(key));
+    }
+    
+    public long getLong(String key) throws ConfigException {
+        return longAt(requireNumber(key));
+    }
+    
+    public float getFloat(String key) throws ConfigException {
+        return (float) doubleAt(requireNumber(key));
+    }
+    
+    public double getDouble(String key) throws ConfigException {
+        return doubleAt(requireNumber(key));
+    }
+    
+    public BigInteger getBigInteger(String key) throws ConfigException {
+        return Configs.toBigInteger(numberAt(requireNumber(key)));
+    }
+    
+    public BigDecimal getBigDecimal(String key) throws ConfigException {
+        return Configs.toBigDecimal(numberAt(requireNumber(key)));
+    }
+    
+    public Number getNumber(String key) throws ConfigException {
+        return numberAt(requireNumber(key));
+    }
+    
+    public String getString(String key) throws ConfigException {
+        int i = hash.indexOf(key);
+        if (i < 0 || strings[i] == null)
+            throw ConfigException.unfoundKey(key);
+        return strings[i];
+    }
+    
+    public boolean getOrDefault(String key, boolean value)
+            throws ConfigException {
+        int i = booleanIndex(key);
+        return i < 0 ? value : (booleans[i] & BOOLEAN_VALUE) != 0;
+    }
+    
+    public byte getOrDefault(String key, byte value) throws ConfigException {
+        int i = numberIndex(key);
+        return i < 0 ? value : (byte) longAt(i);
+    }
+    
+    public short getOrDefault(String key, short value)
+            throws ConfigException {
+        int i = numberIndex(key);
+        return i < 0 ? value : (short) longAt(i);
+    }
+    
+    public int getOrDefault(String key, int value) throws ConfigException {
+        int i = numberIndex(key);
+        return i < 0 ? value : (int) longAt(i);
+    }
+    
+    public long getOrDefault(String key, long value) throws ConfigException {
+        int i = numberIndex(key);
+        return i < 0 ? value : longAt(i);
+    }
+    
+    public float getOrDefault(String key, float value)
+            throws ConfigException {
+        int i = numberIndex(key);
+        return i < 0 ? value : (float) doubleAt(i);
+    }
+    
+    public double getOrDefault(String key, double value)
+            throws ConfigException {
+        int i = numberIndex(key);
+        return i < 0 ? value : doubleAt(i);
+    }
+    
+    public BigInteger getOrDefault(String key, BigInteger value)
+            throws ConfigException, NullPointerException {
+        int i = numberIndex(key);
+        return i < 0 ? value : Configs.toBigInteger(numberAt(i));
+    }
+    
+    public BigDecimal getOrDefault(String key, BigDecimal value)
+            throws ConfigException, NullPointerException {
+        int i = numberIndex(key);
+        return i < 0 ? value : Configs.toBigDecimal(numberAt(i));
+    }
+    
+    public String getOrDefault(String key, String value)
+            throws ConfigException {
+        int i = hash.indexOf(key);
+        return i < 0 || strings[i] == null ? value : strings[i];
+    }
+    
+    
+    
+    
+    public void putBoolean(String key, boolean value) {
+        throw readOnly();
+    }
+    
+    public void putBoolean(String key, boolean value, Put put) {
+        throw readOnly();
+    }
+    
+    public void putByte(String key, byte value) {
+        throw readOnly();
+    }
+    
+    public void putByte(String key, byte value, Put put) {
+        throw readOnly();
+    }
+    
+    public void putShort(String key, short value) {
+        throw readOnly();
+    }
+    
+    public void putShort(String key, short value, Put put) {
+        throw readOnly();
+    }
+    
+    public void putInt(String key, int value) {
+        throw readOnly();
+    }
+    
+    public void putInt(String key, int value, Put put) {
+        throw readOnly();
+    }
+    
+    public void putLong(String key, long value) {
+        throw readOnly();
+    }
+    
+    public void putLong(String key, long value, Put put) {
+        throw readOnly();
+    }
+    
+    public void putFloat(String key, float value) {
+        throw readOnly();
+    }
+    
+    public void putFloat(String key, float value, Put put) {
+        throw readOnly();
+    }
+    
+    public void putDouble(String key, double value) {
+        throw readOnly();
+    }
+    
+    public void putDouble(String key, double value, Put put) {
+        throw readOnly();
+    }
+    
+    public void putBigInteger(String key, BigInteger value) {
+        throw readOnly();
+    }
+    
+    public void putBigInteger(String key, BigInteger value, Put put) {
+        throw readOnly();
+    }
+    
+    public void putBigDecimal(String key, BigDecimal value) {
+        throw readOnly();
+    }
+    
+    public void putBigDecimal(String key, BigDecimal value, Put put) {
+        throw readOnly();
+    }
+    
+    public void putString(String key, String value) {
+        throw readOnly();
+    }
+    
+    public void putString(String key, String value, Put put) {
+        throw readOnly();
+    }
+    
+    public boolean containsKey(String key, Repository repository) {
+        Contract.nonNull(key);
+        Contract.nonNull(repository);
+        switch (repository) {
+            case BOOLEAN:
+                return booleanIndex(key) >= 0;
+            case STRING:
+                int i = hash.indexOf(key);
+                return i >= 0 && strings[i] != null;
+            case NUMBER:
+                return numberIndex(key) >= 0;
+            default:
+                throw new InternalError();
+        }
+    }
+    
+    public boolean delete(String key, Repository repository) {
+        throw readOnly();
+    }
+    
+    public long incrementLong(String key) {
+        throw readOnly();
+    }
+    
+    public double addAndGetDouble(String key, double delta) {
+        throw readOnly();
+    }
+    
+    public boolean compareAndSetString(String key, String expect, 
+            String update) {
+        throw readOnly();
+    }
+    
+    public Number computeNumber(String key, NumberFunction function) {
+        throw readOnly();
+    }
+    
+    public ConfigBatch beginBatch() {
+        throw readOnly();
+    }
+    
+    
+    
+    
+    public ConfigEvent<BooleanRepoContext> booleanEvent() {
+        return booleanEvent;
+    }
+    
+    public ConfigEvent<NumberRepoContext> numberEvent() {
+        return numberEvent;
+    }
+    
+    public ConfigEvent<StringRepoContext> stringEvent() {
+        return stringEvent;
+    }
+    
+    public ConfigEvent<ConfigChangeSet> commitEvent() {
+        return commitEvent;
+    }
+    
+    
+    
+    
+    public Iterator<Map.Entry<String, ?>> iterator() {
+        List<Map.Entry<String, ?>> rv = new ArrayList<Map.Entry<String, ?>>();
+        rv.addAll(mapBooleans().entrySet());
+        rv.addAll(mapNumbers().entrySet());
+        rv.addAll(mapStrings().entrySet());
+        return rv.iterator();
+    }
+    
+    public Iterable<Map.Entry<String, Boolean>> booleans() {
+        return new IterableImpl<Map.Entry<String, Boolean>>(
+                mapBooleans().entrySet().iterator());
+    }
+    
+    public Iterable<Map.Entry<String, Number>> numbers() {
+        return new IterableImpl<Map.Entry<String, Number>>(
+                mapNumbers().entrySet().iterator());
+    }
+    
+    public Iterable<Map.Entry<String, String>> strings() {
+        return new IterableImpl<Map.Entry<String, String>>(
+                mapStrings().entrySet().iterator());
+    }
+    
+    public Map<String, Boolean> mapBooleans() {
+        Map<String, Boolean> rv = new HashMap<String, Boolean>();
+        for (int i = 0; i < booleans.length; ++i) {
+            if ((booleans[i] & BOOLEAN_PRESENT) != 0)
+                rv.put(hash.keys[i],
+                        Boolean.valueOf((booleans[i] & BOOLEAN_VALUE) != 0));
+        }
+        return rv;
+    }
+    
+    public Map<String, Number> mapNumbers() {
+        Map<String, Number> rv = new HashMap<String, Number>();
+        for (int i = 0; i < types.length; ++i) {
+            if (types[i] != null)
+                rv.put(hash.keys[i], numberAt(i));
+        }
+        return rv;
+    }
+    
+    public Map<String, String> mapStrings() {
+        Map<String, String> rv = new HashMap<String, String>();
+        for (int i = 0; i < strings.length; ++i) {
+            if (strings[i] != null)
+                rv.put(hash.keys[i], strings[i]);
+        }
+        return rv;
+    }
+    
+    public ConfigChangeSet diff(Config other) {
+        return Configs.diff(this, other, null);
+    }
+    
+    public void applyPatch(ConfigChangeSet patch) {
+        throw readOnly();
+    }
+    
+    /**
+     * Returns {@code 0}, the entries never change.
+     * 
+     * @return {@code 0}
+     */
+    public long getModCount() {
+        return 0L;
+    }
+    
+    public long getFingerprint() {
+        return fingerprint;
+    }
+    
+    
+    
+    
+    /**
+     * Does nothing, there is never anything to flush.
+     */
+    public void flushState() {
+    }
+    
+    public void save(File file, WriteAccess fileMode) throws ConfigException {
+        writable().save(file, fileMode);
+    }
+    
+    public void save(OutputStream outputStream) throws ConfigException {
+        writable().save(outputStream);
+    }
+    
+    public void save() throws ConfigException, IOException {
+        if (fileHandle == null)
+            throw new IOException("No file linked to save to");
+        save(fileHandle, WriteAccess.OVERWRITE_IF_NECESSARY);
+    }
+    
+    public void linkToFile(File file) throws UnsupportedOperationException {
+        throw readOnly();
+    }
+    
+    public String toCanonical() {
+        return writable().toCanonical();
+    }
+    
+    
+    
+    
+    private int booleanIndex(String key) {
+        int i = hash.indexOf(key);
+        return i >= 0 && booleans[i] != 0 ? i : -1;
+    }
+    
+    private int numberIndex(String key) {
+        int i = hash.indexOf(key);
+        return i >= 0 && types[i] != null ? i : -1;
+    }
+    
+    private int requireNumber(String key) throws ConfigException {
+        int i = numberIndex(key);
+        if (i < 0)
+            throw ConfigException.unfoundKey(key);
+        return i;
+    }
+    
+    private long longAt(int i) {
+        return NumberRepository.toLong(types[i], bits[i], objectAt(i));
+    }
+    
+    private double doubleAt(int i) {
+        return NumberRepository.toDouble(types[i], bits[i], objectAt(i));
+    }
+    
+    private Number numberAt(int i) {
+        return NumberRepository.box(types[i], bits[i], objectAt(i));
+    }
+    
+    private Object objectAt(int i) {
+        return objects == null ? null : objects[i];
+    }
+    
+    /**
+     * Builds a writable {@code Config} of the same format holding the same
+     * entries, to render this one.
+     */
+    private PrivateConfigBase writable() {
+        PrivateConfigBase rv = xml ? XMLConfig.empty() :
+                binary ? BinaryConfig.empty() : JSONConfig.empty();
+        rv.indexed = indexed;
+        for (Map.Entry<String, Boolean> e : mapBooleans().entrySet())
+            rv.putBoolean(e.getKey(), e.getValue().booleanValue());
+        for (Map.Entry<String, Number> e : mapNumbers().entrySet())
+            rv.pendingNumberElements.putNumber(e.getKey(), e.getValue());
+        for (Map.Entry<String, String> e : mapStrings().entrySet())
+            rv.putString(e.getKey(), e.getValue());
+        rv.flushState();
+        return rv;
+    }
+    
+    private static UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("Config is frozen");
+    }
+    
+}
@@ -23,10 +23,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  *
@@ -36,15 +39,15 @@ public final strictfp class JSONConfig extends PrivateConfigBase {
     
     static final int DEFAULT_INDENT = 4;
     
+    /**
+     * The member holding the {@link ConfigIndex}, last in the document
+     */
+    static final String INDEX_FLAG = "index";
     
-    JSONObject rootElement;
-    
-    
-    JSONObject numberElements;
-    
-    JSONObject stringElements;
-    
-    JSONObject booleanElements;
+    /**
+     * What follows the {@code ConfigIndex} in the document
+     */
+    static final String INDEX_SUFFIX = "\"\n}";
     
     
     
@@ -59,17 +62,18 @@ public final strictfp class JSONConfig extends PrivateConfigBase {
     static JSONConfig naked() {
         JSONConfig rv = uninitialized();
         
-        rv.flushedBooleanElements = new HashMap<String, Boolean>();
+        rv.flushedBooleanElements = 
+                new ObjectRepository<Boolean>(ObjectRepository.BOOLEAN_DECODER);
         rv.pendingBooleanElements = new HashMap<String, Boolean>();
-        rv.deletedBooleanKeys = new ArrayList<String>();
+        rv.deletedBooleanKeys = new HashSet<String>();
         
-        rv.flushedStringElements = new HashMap<String, String>();
+        rv.flushedStringElements = new ObjectRepository<String>();
         rv.pendingStringElements = new HashMap<String, String>();
-        rv.deletedStringKeys = new ArrayList<String>();
+        rv.deletedStringKeys = new HashSet<String>();
         
-        rv.flushedNumberElements = new HashMap<String, Number>();
-        rv.pendingNumberElements = new HashMap<String, Number>();
-        rv.deletedNumberKeys = new ArrayList<String>();
+        rv.flushedNumberElements = new NumberRepository();
+        rv.pendingNumberElements = new NumberRepository();
+        rv.deletedNumberKeys = new HashSet<String>();
         
         rv.booleanRepoEvent = 
                 new ConfigEvent<BooleanRepoContext>(rv.eventKey);
@@ -77,41 +81,24 @@ public final strictfp class JSONConfig extends PrivateConfigBase {
                 new ConfigEvent<StringRepoContext>(rv.eventKey);
         rv.numberRepoEvent = 
                 new ConfigEvent<NumberRepoContext>(rv.eventKey);
+        rv.commitEvent = new ConfigEvent<ConfigChangeSet>(rv.eventKey);
         
         return rv;
     }
     
     static JSONConfig empty() {
-        JSONConfig rv = naked();
-        
-        JSONObject rootElement = new JSONObject();
-        
-        JSONObject numberElements = new JSONObject();
-        rootElement.put(Repository.NUMBER.getName(), numberElements);
-        
-        JSONObject booleanElements = new JSONObject();
-        rootElement.put(Repository.BOOLEAN.getName(), booleanElements);
-        
-        JSONObject stringElements = new JSONObject();
-        rootElement.put(Repository.STRING.getName(), stringElements);
-        
-        rv.stringElements = stringElements;
-        rv.numberElements = numberElements;
-        rv.booleanElements = booleanElements;
-        rv.rootElement = rootElement;
-        
-        return rv;
+        return naked();
     }
     
-    static JSONConfig read(File file) throws ConfigException {
+    static JSONConfig read(File file, LoadMode mode) 
+            throws ConfigException {
         Contract.nonNull(file);
         JSONConfig rv = naked();
         InputStreamReader in = null;
         try {
             
             in = new InputStreamReader(new FileInputStream(file), UTF_8);
-            JSONObject doc = new JSONObject(new JSONTokener(in));
-            return readAndSetupEntriesImpl(rv, doc);
+            return readAndSetupEntriesImpl(rv, new JSONTokener(in), mode);
             
         } catch (UnsupportedEncodingException ex) {
             
@@ -137,13 +124,18 @@ public final strictfp class JSONConfig extends PrivateConfigBase {
         }
     }
     
-    static JSONConfig read(InputStream in) throws ConfigException {
+    static JSONConfig read(InputStream in, LoadMode mode) 
+            throws ConfigException {
         Contract.nonNull(in);
         JSONConfig rv = naked();
         try {
             
-            JSONObject doc = new JSONObject(new JSONTokener(in));
-            return readAndSetupEntriesImpl(rv, doc);
+            return readAndSetupEntriesImpl(rv, new JSONTokener(
+                    new InputStreamReader(in, UTF_8)), mode);
+            
+        } catch (UnsupportedEncodingException ex) {
+            
+            throw new ConfigException(ex);
             
         } catch (JSONException ex) {
             
@@ -161,13 +153,14 @@ public final strictfp class JSONConfig extends PrivateConfigBase {
         }
     }
     
-    static JSONConfig read(Reader reader) throws ConfigException {
+    static JSONConfig read(Reader reader, LoadMode mode) 
+            throws ConfigException {
         Contract.nonNull(reader);
         JSONConfig rv = naked();
         try {
             
-            JSONObject doc = new JSONObject(new JSONTokener(reader));
-            return readAndSetupEntriesImpl(rv, doc);
+            return readAndSetupEntriesImpl(rv, new JSONTokener(reader), 
+                    mode);
             
         } catch (JSONException ex) {
             
@@ -185,13 +178,14 @@ public final strictfp class JSONConfig extends PrivateConfigBase {
         }
     }
     
-    static JSONConfig parse(String strXML) throws ConfigException {
+    static JSONConfig parse(String strXML, LoadMode mode) 
+            throws ConfigException {
         Contract.nonNull(strXML);
         JSONConfig rv = naked();
         try {
             
-            JSONObject doc = new JSONObject(new JSONTokener(strXML));
-            return readAndSetupEntriesImpl(rv, doc);
+            return readAndSetupEntriesImpl(rv, new JSONTokener(strXML), 
+                    mode);
             
         } catch (JSONException ex) {
             
@@ -200,104 +194,423 @@ public final strictfp class JSONConfig extends PrivateConfigBase {
         }
     }
     
-    static JSONConfig readAndSetupEntriesImpl(final JSONConfig rv, 
-            final JSONObject json) {
+    /**
+     * Reads the entries of some keys from a file. Only the entries are read 
+     * from a file that ends with a {@link ConfigIndex}, other files are read 
+     * in full.
+     * 
+     * @param file the {@code File} to read from
+     * @param keys the keys to read
+     * @param mode the {@code LoadMode}
+     * 
+     * @return a {@code JSONConfig} holding the entries of the keys
+     * 
+     * @throws ConfigException if the reading failed
+     */
+    static JSONConfig readKeys(File file, Set<String> keys, 
+            final LoadMode mode) throws ConfigException {
+        Contract.nonNull(file);
+        final JSONConfig rv = naked();
+        boolean found = ConfigIndex.find(file, INDEX_SUFFIX, keys, 
+                new ConfigIndex.EntryHandler() {
+                    public void entry(Repository repository, String text) {
+                        readIndexedEntry(rv, text, repository, mode);
+                    }
+                });
+        JSONConfig result = found ? rv : read(file, mode);
+        result._retainKeys(keys);
+        return result;
+    }
+    
+    private static void readIndexedEntry(JSONConfig rv, String text, 
+            Repository repository, LoadMode mode) {
         try {
             
-            rv.rootElement = json;
-            
-            JSONObject booleanElements = json.getJSONObject(
-                    Repository.BOOLEAN.getName());
+            readEntry(rv, new JSONTokener(text), repository, 
+                    mode == LoadMode.LAZY);
+                    
+        } catch (JSONException ex) {
             
-            JSONObject stringElements = 
-                    json.getJSONObject(Repository.STRING.getName());
+            throw new ConfigException(ex);
             
-            JSONObject numberElements = 
-                    json.getJSONObject(Repository.NUMBER.getName());
+        } catch (NumberFormatException ex) {
             
-            for (Object keyObj : numberElements.keySet()) {
-                String key = (String) keyObj;
-                JSONObject entry = numberElements.getJSONObject(key);
-                String value = entry.get(VALUE_FLAG).toString();
-                String type = entry.get(TYPE_FLAG).toString();
-                rv.flushedNumberElements.put(key, 
-                        Configs.parseNumberFromType(
-                                value, Configs.numberTypeValueOf(type)));
-            }
+            throw new ConfigException(ex);
             
-            for (Object keyObj : booleanElements.keySet()) {
-                String key = (String) keyObj;
-                JSONObject entry = (JSONObject) booleanElements.get(key);
-                String value = entry.get(VALUE_FLAG).toString();
-                rv.flushedBooleanElements.put(key, Configs.parseBoolean(value));
-            }
+        }
+    }
+    
+    /**
+     * Reads the document straight from the tokener into the flushed 
+     * repositories, without building a {@code JSONObject} for it. Members 
+     * other than the three repositories, and fields of an entry other than 
+     * {@code "value"} and {@code "type"}, are parsed and ignored.
+     */
+    static JSONConfig readAndSetupEntriesImpl(final JSONConfig rv, 
+            final JSONTokener x, final LoadMode mode) {
+        final boolean lazy = mode == LoadMode.LAZY;
+        try {
             
-            for (Object keyObj : stringElements.keySet()) {
-                String key = (String) keyObj;
-                JSONObject entry = numberElements.getJSONObject(key);
-                String value = entry.get(VALUE_FLAG).toString();
-                rv.flushedStringElements.put(key, value);
+            boolean numbersFound = false;
+            boolean booleansFound = false;
+            boolean stringsFound = false;
+            
+            if (beginObject(x)) {
+                do {
+                    String name = nextKey(x);
+                    Repository repo;
+                    if (Repository.NUMBER.getName().equals(name)) {
+                        repo = Repository.NUMBER;
+                        if (numbersFound)
+                            throw Configs.newDuplicateRepoException(repo);
+                        numbersFound = true;
+                    } else if (Repository.BOOLEAN.getName().equals(name)) {
+                        repo = Repository.BOOLEAN;
+                        if (booleansFound)
+                            throw Configs.newDuplicateRepoException(repo);
+                        booleansFound = true;
+                    } else if (Repository.STRING.getName().equals(name)) {
+                        repo = Repository.STRING;
+                        if (stringsFound)
+                            throw Configs.newDuplicateRepoException(repo);
+                        stringsFound = true;
+                    } else {
+                        x.nextValue();
+                        continue;
+                    }
+                    if (beginObject(x)) {
+                        do {
+                            readEntry(rv, x, repo, lazy);
+                        } while (nextMember(x));
+                    }
+                } while (nextMember(x));
             }
             
-            rv.numberElements = numberElements;
-            rv.stringElements = stringElements;
-            rv.booleanElements = booleanElements;
+            if (!numbersFound)
+                throw Configs.newMissingRepoException(Repository.NUMBER);
+            if (!booleansFound)
+                throw Configs.newMissingRepoException(Repository.BOOLEAN);
+            if (!stringsFound)
+                throw Configs.newMissingRepoException(Repository.STRING);
             
         } catch (JSONException ex) {
             
             throw new ConfigException(ex);
             
+        } catch (NumberFormatException ex) {
+            
+            throw new ConfigException(ex);
+            
         } catch (Configs.BooleanParsingException ex) {
             
             throw new ConfigException(ex);
             
         }
-        // need to implement this
         return rv;
     }
     
+    private static void readEntry(JSONConfig rv, JSONTokener x, 
+            Repository repo, boolean lazy) 
+            throws JSONException, Configs.BooleanParsingException {
+        String key = nextKey(x);
+        String value = null;
+        String type = null;
+        if (beginObject(x)) {
+            do {
+                String field = nextKey(x);
+                if (VALUE_FLAG.equals(field)) {
+                    value = nextScalar(x, field);
+                } else if (TYPE_FLAG.equals(field) && 
+                        repo == Repository.NUMBER) {
+                    type = nextScalar(x, field);
+                } else {
+                    x.nextValue();
+                }
+            } while (nextMember(x));
+        }
+        if (value == null)
+            throw x.syntaxError("JSONObject[" + JSONObject.quote(VALUE_FLAG) +
+                    "] not found for key " + JSONObject.quote(key));
+        
+        switch (repo) {
+            case NUMBER:
+                if (type == null)
+                    throw x.syntaxError("JSONObject[" + 
+                            JSONObject.quote(TYPE_FLAG) + 
+                            "] not found for key " + JSONObject.quote(key));
+                NumberType numberType = Configs.numberTypeValueOf(type);
+                checkDuplicate(x, rv.flushedNumberElements, key);
+                if (lazy) {
+                    rv.flushedNumberElements.putRaw(key, numberType, value);
+                } else {
+                    rv.flushedNumberElements.putNumber(key, 
+                            Configs.parseNumberFromType(value, numberType));
+                }
+                break;
+            case BOOLEAN:
+                checkDuplicate(x, rv.flushedBooleanElements, key);
+                if (lazy) {
+                    rv.flushedBooleanElements.putRaw(key, value);
+                } else {
+                    rv.flushedBooleanElements.put(key, 
+                            Configs.parseBoolean(value));
+                }
+                break;
+            case STRING:
+                checkDuplicate(x, rv.flushedStringElements, key);
+                rv.flushedStringElements.put(key, value);
+                break;
+        }
+    }
+    
+    /**
+     * Consumes the opening brace of an object. Returns {@code false} if the 
+     * object is empty, in which case the closing brace is consumed too.
+     */
+    private static boolean beginObject(JSONTokener x) throws JSONException {
+        if (x.nextClean() != '{')
+            throw x.syntaxError("A JSONObject text must begin with '{'");
+        if (x.nextClean() == '}')
+            return false;
+        x.back();
+        return true;
+    }
     
+    /**
+     * Consumes what follows a member of an object. Returns {@code true} if 
+     * another member follows, {@code false} if the object was closed.
+     */
+    private static boolean nextMember(JSONTokener x) throws JSONException {
+        switch (x.nextClean()) {
+            case ';':
+            case ',':
+                if (x.nextClean() == '}')
+                    return false;
+                x.back();
+                return true;
+            case '}':
+                return false;
+            default:
+                throw x.syntaxError("Expected a ',' or '}'");
+        }
+    }
     
+    private static String nextKey(JSONTokener x) throws JSONException {
+        String key = x.nextText();
+        if (key == null)
+            throw x.syntaxError("Expected a key");
+        if (x.nextClean() != ':')
+            throw x.syntaxError("Expected a ':' after a key");
+        return key;
+    }
+    
+    private static String nextScalar(JSONTokener x, String field) 
+            throws JSONException {
+        String text = x.nextText();
+        if (text == null)
+            throw x.syntaxError("Expected a value for " + 
+                    JSONObject.quote(field));
+        return text;
+    }
+    
+    private static void checkDuplicate(JSONTokener x, SlotTable<?> repo, 
+            String key) throws JSONException {
+        if (repo.containsKey(key))
+            throw x.syntaxError("Duplicate key \"" + key + "\"");
+    }
+    
+    
+    
+    
+    // entries are written from the repositories at save time, there is no
+    // document to keep in sync; numbers JSON cannot hold are still rejected
+    // here, before they are stored, rather than by every later save
     
     void _serializeBool(String key, boolean value) {
+    }
+    
+    void _deleteBool(String key) {
+    }
+    
+    void _serializeString(String key, String value) {
+    }
+    
+    void _deleteString(String key) {
+    }
+    
+    void _serializeNumber(String key, Number value) {
         try {
-            booleanElements.put(key, new JSONObject().put(VALUE_FLAG, value));
+            
+            JSONObject.testValidity(value);
+            
         } catch (JSONException ex) {
+            
             throw new ConfigException(ex);
+            
         }
     }
     
-    void _deleteBool(String key) {
-        booleanElements.remove(key);
+    void _deleteNumber(String key) {
     }
     
-    void _serializeString(String key, String value) {
+    
+    
+    
+    void write(Writer writer) throws IOException {
+        write(this, writer);
+    }
+    
+    /**
+     * Writes the flushed entries of a {@code Config} in the JSON layout.
+     * 
+     * @param config the {@code Config} to write
+     * @param writer the {@code Writer} to write to
+     * 
+     * @throws IOException if writing failed
+     */
+    static void write(PrivateConfigBase config, Writer writer) 
+            throws IOException {
+        final int indent = DEFAULT_INDENT;
         try {
-            stringElements.put(key, new JSONObject().put(VALUE_FLAG, value));
+            
+            // same layout as JSONObject.toString(DEFAULT_INDENT)
+            writer.write("{\n");
+            
+            JSONObject.indent(writer, indent);
+            writeKey(writer, Repository.NUMBER.getName());
+            final NumberRepository numbers = config.flushedNumberElements;
+            int count = numbers.size();
+            int inner = count == 1 ? indent : indent + indent;
+            boolean first = true;
+            writer.write('{');
+            for (int slot = 0; slot < numbers.limit; ++slot) {
+                String key = numbers.keys[slot];
+                if (key == null)
+                    continue;
+                openEntry(writer, key, first, count, inner);
+                first = false;
+                writer.write("{\n");
+                JSONObject.indent(writer, inner + indent);
+                writeKey(writer, TYPE_FLAG);
+                JSONObject.quote(numbers.typeAt(slot).name(), writer);
+                writer.write(",\n");
+                JSONObject.indent(writer, inner + indent);
+                writeKey(writer, VALUE_FLAG);
+                writer.write(JSONObject.numberToString(
+                        numbers.numberAt(slot)));
+                writer.write('\n');
+                JSONObject.indent(writer, inner);
+                writer.write('}');
+                ConfigIndex.endEntry(writer, Repository.NUMBER, key);
+            }
+            closeRepository(writer, count, indent);
+            writer.write(",\n");
+            
+            JSONObject.indent(writer, indent);
+            writeKey(writer, Repository.BOOLEAN.getName());
+            final ObjectRepository<Boolean> booleans = 
+                    config.flushedBooleanElements;
+            count = booleans.size();
+            inner = count == 1 ? indent : indent + indent;
+            first = true;
+            writer.write('{');
+            for (int slot = 0; slot < booleans.limit; ++slot) {
+                String key = booleans.keys[slot];
+                if (key == null)
+                    continue;
+                openEntry(writer, key, first, count, inner);
+                first = false;
+                writer.write('{');
+                writeKey(writer, VALUE_FLAG);
+                writer.write(booleans.valueAt(slot).toString());
+                writer.write('}');
+                ConfigIndex.endEntry(writer, Repository.BOOLEAN, key);
+            }
+            closeRepository(writer, count, indent);
+            writer.write(",\n");
+            
+            JSONObject.indent(writer, indent);
+            writeKey(writer, Repository.STRING.getName());
+            final ObjectRepository<String> strings = 
+                    config.flushedStringElements;
+            count = strings.size();
+            inner = count == 1 ? indent : indent + indent;
+            first = true;
+            writer.write('{');
+            for (int slot = 0; slot < strings.limit; ++slot) {
+                String key = strings.keys[slot];
+                if (key == null)
+                    continue;
+                openEntry(writer, key, first, count, inner);
+                first = false;
+                writer.write('{');
+                writeKey(writer, VALUE_FLAG);
+                JSONObject.quote(strings.valueAt(slot), writer);
+                writer.write('}');
+                ConfigIndex.endEntry(writer, Repository.STRING, key);
+            }
+            closeRepository(writer, count, indent);
+            
+            if (writer instanceof ConfigIndex) {
+                writer.write(",\n");
+                JSONObject.indent(writer, indent);
+                writeKey(writer, INDEX_FLAG);
+                writer.write('"');
+                ((ConfigIndex) writer).writeIndex();
+                writer.write('"');
+            }
+            writer.write("\n}");
+            
         } catch (JSONException ex) {
+            
+            throw new ConfigException(ex);
+            
         }
     }
     
-    void _deleteString(String key) {
-        stringElements.remove(key);
+    private static void writeKey(Writer writer, String key) 
+            throws IOException {
+        JSONObject.quote(key, writer);
+        writer.write(": ");
     }
     
-    void _serializeNumber(String key, Number value) {
-        numberElements.put(key, 
-                new JSONObject()
-                        .put(VALUE_FLAG, value)
-                        .put(TYPE_FLAG, Configs.resolveNumberType(value)));
+    /**
+     * Writes what precedes the key of an entry in a repository of 
+     * {@code count} entries. A repository with a single entry keeps it on the 
+     * same line.
+     */
+    private static void openEntry(Writer writer, String key, boolean first, 
+            int count, int inner) throws IOException {
+        if (count > 1) {
+            if (!first)
+                writer.write(',');
+            writer.write('\n');
+            JSONObject.indent(writer, inner);
+        }
+        ConfigIndex.beginEntry(writer);
+        writeKey(writer, key);
     }
     
-    void _deleteNumber(String key) {
-        numberElements.remove(key);
+    private static void closeRepository(Writer writer, int count, 
+            int indent) throws IOException {
+        if (count > 1) {
+            writer.write('\n');
+            JSONObject.indent(writer, indent);
+        }
+        writer.write('}');
     }
     
     
     
     
     public String toCanonical() {
-        return rootElement.toString(DEFAULT_INDENT);
+        StringWriter writer = new StringWriter();
+        try {
+            write(writer);
+        } catch (IOException ex) {
+            throw new ConfigException(ex);
+        }
+        return writer.toString();
     }
     
 }
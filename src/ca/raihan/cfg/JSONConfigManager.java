@@ -21,37 +21,105 @@ import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.Reader;
 
+import java.util.Arrays;
+import java.util.HashSet;
+
+import ca.raihan.cfg.Config.LoadMode;
+
 /**
  *
  * @author Pranjal Raihan
  */
 public class JSONConfigManager implements ConfigManager<JSONConfig> {
     
+    /**
+     * The {@code LoadMode} of the {@code Config}s read by this manager
+     */
+    private final LoadMode loadMode;
+    
+    /**
+     * {@code true} if the {@code Config}s of this manager save an index of 
+     * their keys
+     */
+    private final boolean indexed;
+    
+    
+    
+    
+    /**
+     * Constructs a manager that reads {@code Config}s with 
+     * {@link LoadMode#EAGER}.
+     */
+    public JSONConfigManager() {
+        this(LoadMode.EAGER);
+    }
+    
+    /**
+     * Constructs a manager that reads {@code Config}s with the specified 
+     * {@code LoadMode}.
+     * 
+     * @param loadMode the {@code LoadMode}
+     */
+    public JSONConfigManager(LoadMode loadMode) {
+        this(loadMode, false);
+    }
+    
+    /**
+     * Constructs a manager that reads {@code Config}s with the specified 
+     * {@code LoadMode}. If {@code indexed} is {@code true}, the 
+     * {@code Config}s it constructs end their saves with an index of their 
+     * keys for {@link #readKeys(File, String...)}; the index is ignored when 
+     * the whole file is read.
+     * 
+     * @param loadMode the {@code LoadMode}
+     * @param indexed whether saves are indexed
+     */
+    public JSONConfigManager(LoadMode loadMode, boolean indexed) {
+        this.loadMode = Contract.nonNull(loadMode, "loadMode");
+        this.indexed = indexed;
+    }
+    
+    
+    
+    
     public JSONConfig newConfig() {
-        return JSONConfig.empty();
+        return index(JSONConfig.empty());
     }
     
     public JSONConfig read(File file) {
         verifyFileIntegrity(file);
         verifyFileExistence(file);
-        return JSONConfig.read(file);
+        return index(JSONConfig.read(file, loadMode));
+    }
+    
+    public JSONConfig readKeys(File file, String... keys) {
+        verifyFileIntegrity(file);
+        verifyFileExistence(file);
+        return index(JSONConfig.readKeys(file, 
+                new HashSet<String>(Arrays.asList(
+                        Contract.nonNull(keys, "keys"))), loadMode));
     }
     
     public JSONConfig read(InputStream inputStream) {
-        return JSONConfig.read(inputStream);
+        return index(JSONConfig.read(inputStream, loadMode));
     }
     
     public JSONConfig read(Reader reader) {
-        return JSONConfig.read(reader);
+        return index(JSONConfig.read(reader, loadMode));
     }
     
     public JSONConfig parse(String str) {
-        return JSONConfig.parse(str);
+        return index(JSONConfig.parse(str, loadMode));
     }
     
     
     
     
+    private JSONConfig index(JSONConfig config) {
+        config.indexed = indexed;
+        return config;
+    }
+    
     static void verifyFileIntegrity(File file) {
         Contract.nonNull(file, "file");
         if (file != null && file.isDirectory())
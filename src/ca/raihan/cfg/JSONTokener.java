@@ -1,11 +1,10 @@
 package ca.raihan.cfg;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
 
 /*
   Refactored from JSON.org
@@ -39,19 +38,45 @@ SOFTWARE.
  * A JSONTokener takes a source string and extracts characters and tokens from
  * it. It is used by the JSONObject and JSONArray constructors to parse
  * JSON source strings.
+ * <p>
+ * Characters are read in blocks into a reusable buffer, strings and unquoted
+ * values are scanned directly in that buffer and only copied out once.
  * @author JSON.org
  * @version 2012-02-16
  */
 class JSONTokener {
 
-    private long    character;
+    /**
+     * The number of chars read from the reader at a time.
+     */
+    static final int BUFFER_SIZE = 8192;
+
+    private int     character;
     private boolean eof;
-    private long    index;
-    private long    line;
+    private int     index;
+    private int     line;
     private char    previous;
     private Reader  reader;
     private boolean usePrevious;
 
+    /**
+     * The buffered chars, {@code buffer[pos]} is the next one.
+     */
+    private char[]  buffer;
+    private int     pos;
+    private int     limit;
+
+    /**
+     * The position saved by skipTo, -1 if none. Chars from the mark on are
+     * kept in the buffer when it is refilled.
+     */
+    private int     mark = -1;
+
+    /**
+     * Reused to build strings that contain escapes or span refills.
+     */
+    private final StringBuilder sb = new StringBuilder();
+
 
     /**
      * Construct a JSONTokener from a Reader.
@@ -59,9 +84,8 @@ class JSONTokener {
      * @param reader     A reader.
      */
     public JSONTokener(Reader reader) {
-        this.reader = reader.markSupported()
-            ? reader
-            : new BufferedReader(reader);
+        this.reader = reader;
+        this.buffer = new char[BUFFER_SIZE];
         this.eof = false;
         this.usePrevious = false;
         this.previous = 0;
@@ -72,10 +96,10 @@ class JSONTokener {
 
 
     /**
-     * Construct a JSONTokener from an InputStream.
+     * Construct a JSONTokener from an InputStream, decoded as UTF-8.
      */
     public JSONTokener(InputStream inputStream) throws JSONException {
-        this(new InputStreamReader(inputStream));
+        this(utf8(inputStream));
     }
 
 
@@ -85,7 +109,65 @@ class JSONTokener {
      * @param s     A source string.
      */
     public JSONTokener(String s) {
-        this(new StringReader(s));
+        this.reader = null;
+        this.buffer = s.toCharArray();
+        this.limit = this.buffer.length;
+        this.eof = false;
+        this.usePrevious = false;
+        this.previous = 0;
+        this.index = 0;
+        this.character = 1;
+        this.line = 1;
+    }
+
+
+    private static Reader utf8(InputStream inputStream) throws JSONException {
+        try {
+            return new InputStreamReader(inputStream, "UTF-8");
+        } catch (UnsupportedEncodingException exception) {
+            throw new JSONException(exception);
+        }
+    }
+
+
+    /**
+     * Reads more chars into the buffer, keeping the chars after the mark (or
+     * the last char read, so that back() keeps working) in front.
+     *
+     * @return false if there are no more chars.
+     */
+    private boolean fill() throws JSONException {
+        if (this.reader == null) {
+            return false;
+        }
+        int keep = this.mark >= 0 ? this.mark : Math.max(this.pos - 1, 0);
+        int kept = this.limit - keep;
+        if (keep > 0) {
+            System.arraycopy(this.buffer, keep, this.buffer, 0, kept);
+            this.pos -= keep;
+            if (this.mark >= 0) {
+                this.mark -= keep;
+            }
+        } else if (kept == this.buffer.length) {
+            char[] grown = new char[this.buffer.length << 1];
+            System.arraycopy(this.buffer, 0, grown, 0, kept);
+            this.buffer = grown;
+        }
+        this.limit = kept;
+        try {
+            int n;
+            do {
+                n = this.reader.read(this.buffer, this.limit,
+                        this.buffer.length - this.limit);
+            } while (n == 0);
+            if (n < 0) {
+                return false;
+            }
+            this.limit += n;
+            return true;
+        } catch (IOException exception) {
+            throw new JSONException(exception);
+        }
     }
 
 
@@ -150,20 +232,18 @@ class JSONTokener {
      * @return The next character, or 0 if past the end of the source string.
      */
     public char next() throws JSONException {
-        int c;
+        char c;
         if (this.usePrevious) {
             this.usePrevious = false;
             c = this.previous;
         } else {
-            try {
-                c = this.reader.read();
-            } catch (IOException exception) {
-                throw new JSONException(exception);
+            if (this.pos < this.limit || this.fill()) {
+                c = this.buffer[this.pos++];
+            } else {
+                c = 0;
             }
-
-            if (c <= 0) { // End of stream
+            if (c == 0) { // End of stream
                 this.eof = true;
-                c = 0;
             }
         }
         this.index += 1;
@@ -176,8 +256,8 @@ class JSONTokener {
         } else {
             this.character += 1;
         }
-        this.previous = (char) c;
-        return this.previous;
+        this.previous = c;
+        return c;
     }
 
 
@@ -241,6 +321,23 @@ class JSONTokener {
     }
 
 
+    /**
+     * Consumes a run of chars from the buffer that were scanned without
+     * going through next(). The run does not contain line breaks.
+     */
+    private void skip(int count) {
+        this.pos += count;
+        this.index += count;
+        if (this.previous == '\r') {
+            this.line += 1;
+            this.character = count;
+        } else {
+            this.character += count;
+        }
+        this.previous = this.buffer[this.pos - 1];
+    }
+
+
     /**
      * Return the characters up to the next close quote character.
      * Backslash processing is done. The formal JSON format does not
@@ -253,10 +350,46 @@ class JSONTokener {
      * @throws JSONException Unterminated string.
      */
     public String nextString(char quote) throws JSONException {
-        char c;
-        StringBuffer sb = new StringBuffer();
+        StringBuilder sb = null;
         for (;;) {
-            c = this.next();
+            if (!this.usePrevious) {
+                // scan plain chars in the buffer
+                final char[] buffer = this.buffer;
+                final int start = this.pos;
+                final int limit = this.limit;
+                int i = start;
+                char c = 0;
+                while (i < limit) {
+                    c = buffer[i];
+                    if (c == quote || c == '\\' || c == '\n' || c == '\r' ||
+                            c == 0) {
+                        break;
+                    }
+                    i += 1;
+                }
+                if (i < limit && c == quote && sb == null) {
+                    // the common case, no escapes and no refill
+                    String string = new String(buffer, start, i - start);
+                    if (i > start) {
+                        this.skip(i - start);
+                    }
+                    this.next();
+                    return string;
+                }
+                if (i > start) {
+                    if (sb == null) {
+                        sb = this.sb;
+                        sb.setLength(0);
+                    }
+                    sb.append(buffer, start, i - start);
+                    this.skip(i - start);
+                }
+            }
+            if (sb == null) {
+                sb = this.sb;
+                sb.setLength(0);
+            }
+            char c = this.next();
             switch (c) {
             case 0:
             case '\n':
@@ -281,7 +414,11 @@ class JSONTokener {
                     sb.append('\r');
                     break;
                 case 'u':
-                    sb.append((char)Integer.parseInt(this.next(4), 16));
+                    try {
+                        sb.append((char)Integer.parseInt(this.next(4), 16));
+                    } catch (NumberFormatException exception) {
+                        throw this.syntaxError("Illegal escape.");
+                    }
                     break;
                 case '"':
                 case '\'':
@@ -310,7 +447,8 @@ class JSONTokener {
      * @return   A string.
      */
     public String nextTo(char delimiter) throws JSONException {
-        StringBuffer sb = new StringBuffer();
+        StringBuilder sb = this.sb;
+        sb.setLength(0);
         for (;;) {
             char c = this.next();
             if (c == delimiter || c == 0 || c == '\n' || c == '\r') {
@@ -332,7 +470,8 @@ class JSONTokener {
      */
     public String nextTo(String delimiters) throws JSONException {
         char c;
-        StringBuffer sb = new StringBuffer();
+        StringBuilder sb = this.sb;
+        sb.setLength(0);
         for (;;) {
             c = this.next();
             if (delimiters.indexOf(c) >= 0 || c == 0 ||
@@ -347,6 +486,30 @@ class JSONTokener {
     }
 
 
+    /**
+     * Returns true if c ends an unquoted value.
+     */
+    private static boolean isValueEnd(char c) {
+        switch (c) {
+        case ',':
+        case ':':
+        case ']':
+        case '}':
+        case '/':
+        case '\\':
+        case '"':
+        case '[':
+        case '{':
+        case ';':
+        case '=':
+        case '#':
+            return true;
+        default:
+            return c < ' ';
+        }
+    }
+
+
     /**
      * Get the next value. The value can be a Boolean, Double, Integer,
      * JSONArray, JSONObject, Long, or String, or the JSONObject.NULL object.
@@ -356,7 +519,6 @@ class JSONTokener {
      */
     public Object nextValue() throws JSONException {
         char c = this.nextClean();
-        String string;
 
         switch (c) {
             case '"':
@@ -374,23 +536,81 @@ class JSONTokener {
          * Handle unquoted text. This could be the values true, false, or
          * null, or it can be a number. An implementation (such as this one)
          * is allowed to also accept non-standard forms.
-         *
-         * Accumulate characters until we reach the end of the text or a
-         * formatting character.
          */
 
-        StringBuffer sb = new StringBuffer();
-        while (c >= ' ' && ",:]}/\\\"[{;=#".indexOf(c) < 0) {
-            sb.append(c);
-            c = this.next();
+        return JSONObject.stringToValue(this.nextUnquoted(c));
+    }
+
+
+    /**
+     * Get the text of the next value without converting it. A quoted value
+     * is returned unquoted and unescaped, any other scalar value is returned
+     * as it appears in the source, so that "1.50" stays "1.50". If the next
+     * value is an object or an array nothing is consumed and null is
+     * returned.
+     *
+     * @return The text of the next value, or null.
+     * @throws JSONException If syntax error.
+     */
+    String nextText() throws JSONException {
+        char c = this.nextClean();
+        switch (c) {
+            case '"':
+            case '\'':
+                return this.nextString(c);
+            case '{':
+            case '[':
+                this.back();
+                return null;
+        }
+        return this.nextUnquoted(c);
+    }
+
+
+    /**
+     * Accumulate characters until we reach the end of the text or a
+     * formatting character.
+     *
+     * @param c The first character of the value, already read.
+     * @return The trimmed text of the value.
+     * @throws JSONException If the value is empty.
+     */
+    private String nextUnquoted(char c) throws JSONException {
+        String string;
+
+        if (isValueEnd(c)) {
+            this.back();
+            throw this.syntaxError("Missing value");
+        }
+
+        // c was just read from the buffer, scan the rest of the value there
+        final int start = this.pos - 1;
+        int i = this.pos;
+        while (i < this.limit && !isValueEnd(this.buffer[i])) {
+            i += 1;
+        }
+        if (i < this.limit) {
+            string = new String(this.buffer, start, i - start);
+            if (i > this.pos) {
+                this.skip(i - this.pos);
+            }
+        } else {
+            // the value runs past the buffer
+            StringBuilder sb = this.sb;
+            sb.setLength(0);
+            while (!isValueEnd(c)) {
+                sb.append(c);
+                c = this.next();
+            }
+            this.back();
+            string = sb.toString();
         }
-        this.back();
 
-        string = sb.toString().trim();
+        string = string.trim();
         if ("".equals(string)) {
             throw this.syntaxError("Missing value");
         }
-        return JSONObject.stringToValue(string);
+        return string;
     }
 
 
@@ -403,23 +623,29 @@ class JSONTokener {
      */
     public char skipTo(char to) throws JSONException {
         char c;
+        int startIndex = this.index;
+        int startCharacter = this.character;
+        int startLine = this.line;
+        char startPrevious = this.previous;
+        boolean startUsePrevious = this.usePrevious;
+        this.mark = Math.max(this.pos - 1, 0);
+        int markOffset = this.pos - this.mark;
         try {
-            long startIndex = this.index;
-            long startCharacter = this.character;
-            long startLine = this.line;
-            this.reader.mark(1000000);
             do {
                 c = this.next();
                 if (c == 0) {
-                    this.reader.reset();
+                    this.pos = this.mark + markOffset;
                     this.index = startIndex;
                     this.character = startCharacter;
                     this.line = startLine;
+                    this.previous = startPrevious;
+                    this.usePrevious = startUsePrevious;
+                    this.eof = false;
                     return c;
                 }
             } while (c != to);
-        } catch (IOException exc) {
-            throw new JSONException(exc);
+        } finally {
+            this.mark = -1;
         }
 
         this.back();
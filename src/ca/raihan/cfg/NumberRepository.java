@@ -0,0 +1,448 @@
+/*******************************************************************************
+ * Copyright 2014 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package ca.raihan.cfg;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import java.util.Arrays;
+
+/**
+ * The repository of {@code Number} values. Each entry lives in a slot of a set
+ * of parallel arrays: the key, its {@code NumberType} and the value itself.
+ * Values of primitive types are kept unboxed in a {@code long} (integral types
+ * as is, {@code float} and {@code double} as the raw bits of a
+ * {@code double}), only {@code BigInteger} and {@code BigDecimal} values are
+ * kept as objects.
+ * <p>
+ * The {@code Map} view boxes values on demand; the {@code *At(int)} accessors
+ * do not allocate.
+ * 
+ * @author Pranjal Raihan
+ */
+final strictfp class NumberRepository extends SlotTable<Number> {
+    
+    /**
+     * The {@code NumberType} for each slot
+     */
+    NumberType[] types;
+    
+    /**
+     * The primitive value for each slot
+     */
+    long[] bits;
+    
+    /**
+     * The {@code BigInteger} or {@code BigDecimal} value for each slot
+     */
+    Object[] objects;
+    
+    /**
+     * The text of each slot that has not been parsed yet, {@code null} until 
+     * the first raw value is put
+     */
+    String[] raws;
+    
+    
+    
+    
+    NumberRepository() {
+        this(DEFAULT_CAPACITY);
+    }
+    
+    NumberRepository(int capacity) {
+        super(capacity);
+        types = new NumberType[capacity];
+        bits = new long[capacity];
+        objects = new Object[capacity];
+    }
+    
+    
+    
+    
+    NumberType typeAt(int slot) {
+        return types[slot];
+    }
+    
+    byte byteAt(int slot) {
+        if (raws != null && raws[slot] != null)
+            decode(slot);
+        NumberType type = types[slot];
+        if (isIntegral(type))
+            return (byte) bits[slot];
+        if (isFloating(type))
+            return (byte) Double.longBitsToDouble(bits[slot]);
+        return ((Number) objects[slot]).byteValue();
+    }
+    
+    short shortAt(int slot) {
+        if (raws != null && raws[slot] != null)
+            decode(slot);
+        NumberType type = types[slot];
+        if (isIntegral(type))
+            return (short) bits[slot];
+        if (isFloating(type))
+            return (short) Double.longBitsToDouble(bits[slot]);
+        return ((Number) objects[slot]).shortValue();
+    }
+    
+    int intAt(int slot) {
+        if (raws != null && raws[slot] != null)
+            decode(slot);
+        NumberType type = types[slot];
+        if (isIntegral(type))
+            return (int) bits[slot];
+        if (isFloating(type))
+            return (int) Double.longBitsToDouble(bits[slot]);
+        return ((Number) objects[slot]).intValue();
+    }
+    
+    long longAt(int slot) {
+        if (raws != null && raws[slot] != null)
+            decode(slot);
+        return toLong(types[slot], bits[slot], objects[slot]);
+    }
+    
+    float floatAt(int slot) {
+        if (raws != null && raws[slot] != null)
+            decode(slot);
+        NumberType type = types[slot];
+        if (isIntegral(type))
+            return (float) bits[slot];
+        if (isFloating(type))
+            return (float) Double.longBitsToDouble(bits[slot]);
+        return ((Number) objects[slot]).floatValue();
+    }
+    
+    double doubleAt(int slot) {
+        if (raws != null && raws[slot] != null)
+            decode(slot);
+        return toDouble(types[slot], bits[slot], objects[slot]);
+    }
+    
+    BigInteger bigIntegerAt(int slot) {
+        if (raws != null && raws[slot] != null)
+            decode(slot);
+        NumberType type = types[slot];
+        if (type == NumberType.BIG_INTEGER)
+            return (BigInteger) objects[slot];
+        return BigInteger.valueOf(longAt(slot));
+    }
+    
+    BigDecimal bigDecimalAt(int slot) {
+        if (raws != null && raws[slot] != null)
+            decode(slot);
+        NumberType type = types[slot];
+        if (type == NumberType.BIG_DECIMAL)
+            return (BigDecimal) objects[slot];
+        if (isFloating(type))
+            return BigDecimal.valueOf(doubleAt(slot));
+        if (type == NumberType.BIG_INTEGER)
+            return BigDecimal.valueOf(
+                    ((BigInteger) objects[slot]).longValue());
+        return BigDecimal.valueOf(bits[slot]);
+    }
+    
+    /**
+     * Returns the textual form of a slot, without parsing it if it is raw.
+     * 
+     * @param slot the slot
+     * 
+     * @return the text of the value
+     */
+    String textAt(int slot) {
+        if (raws != null && raws[slot] != null)
+            return raws[slot];
+        return numberAt(slot).toString();
+    }
+    
+    /**
+     * Returns the value of a slot boxed to its original type.
+     * 
+     * @param slot the slot
+     * 
+     * @return the boxed value
+     */
+    Number numberAt(int slot) {
+        if (raws != null && raws[slot] != null)
+            decode(slot);
+        return box(types[slot], bits[slot], objects[slot]);
+    }
+    
+    /**
+     * Parses the text of a slot if it is still raw, so that its 
+     * {@code types}, {@code bits} and {@code objects} entries can be read 
+     * directly.
+     * 
+     * @param slot the slot
+     */
+    void ensureDecoded(int slot) {
+        if (raws != null && raws[slot] != null)
+            decode(slot);
+    }
+    
+    
+    
+    
+    /**
+     * Boxes a value held as its {@code NumberType}, primitive bits and 
+     * object, the way a slot holds it.
+     */
+    static Number box(NumberType type, long v, Object object) {
+        if (type == NumberType.INT)
+            return Integer.valueOf((int) v);
+        if (type == NumberType.LONG)
+            return Long.valueOf(v);
+        if (type == NumberType.DOUBLE)
+            return Double.valueOf(Double.longBitsToDouble(v));
+        if (type == NumberType.FLOAT)
+            return Float.valueOf((float) Double.longBitsToDouble(v));
+        if (type == NumberType.BYTE)
+            return Byte.valueOf((byte) v);
+        if (type == NumberType.SHORT)
+            return Short.valueOf((short) v);
+        return (Number) object;
+    }
+    
+    /**
+     * Converts a value held the way a slot holds it to a {@code long}.
+     */
+    static long toLong(NumberType type, long bits, Object object) {
+        if (isIntegral(type))
+            return bits;
+        if (isFloating(type))
+            return (long) Double.longBitsToDouble(bits);
+        return ((Number) object).longValue();
+    }
+    
+    /**
+     * Converts a value held the way a slot holds it to a {@code double}.
+     */
+    static double toDouble(NumberType type, long bits, Object object) {
+        if (isIntegral(type))
+            return (double) bits;
+        if (isFloating(type))
+            return Double.longBitsToDouble(bits);
+        return ((Number) object).doubleValue();
+    }
+    
+    
+    
+    
+    /**
+     * Puts a value of an integral {@code NumberType}.
+     * 
+     * @param key the key
+     * @param type one of {@code BYTE}, {@code SHORT}, {@code INT} or
+     *        {@code LONG}
+     * @param value the value
+     * 
+     * @return the slot the value was stored in
+     */
+    int putLong(String key, NumberType type, long value) {
+        if (!isIntegral(type))
+            throw new IllegalArgumentException(
+                    "not an integral type: " + type);
+        return setLong(slotFor(key), type, value);
+    }
+    
+    /**
+     * Puts a value of a floating point {@code NumberType}.
+     * 
+     * @param key the key
+     * @param type one of {@code FLOAT} or {@code DOUBLE}
+     * @param value the value
+     * 
+     * @return the slot the value was stored in
+     */
+    int putDouble(String key, NumberType type, double value) {
+        if (!isFloating(type))
+            throw new IllegalArgumentException(
+                    "not a floating type: " + type);
+        return setDouble(slotFor(key), type, value);
+    }
+    
+    /**
+     * Puts a {@code Number} of any supported type, unboxing it if possible.
+     * 
+     * @param key the key
+     * @param value the value
+     * 
+     * @return the slot the value was stored in
+     */
+    int putNumber(String key, Number value) {
+        Contract.nonNull(value, "value");
+        return setNumber(slotFor(key), value);
+    }
+    
+    /**
+     * Puts the textual form of a value, to be parsed on first read.
+     * 
+     * @param key the key
+     * @param type the {@code NumberType} of the value
+     * @param raw the text of the value
+     * 
+     * @return the slot the value was stored in
+     */
+    int putRaw(String key, NumberType type, String raw) {
+        Contract.nonNull(type, "NumberType");
+        Contract.nonNull(raw, "raw");
+        int slot = slotFor(key);
+        if (raws == null)
+            raws = new String[keys.length];
+        types[slot] = type;
+        bits[slot] = 0L;
+        objects[slot] = null;
+        raws[slot] = raw;
+        written(slot);
+        return slot;
+    }
+    
+    /**
+     * Copies all entries of another repository without boxing.
+     * 
+     * @param other the repository to copy from
+     */
+    void putAll(NumberRepository other) {
+        if (other == this)
+            return;
+        for (int i = 0; i < other.limit; ++i) {
+            String key = other.keys[i];
+            if (key == null)
+                continue;
+            int slot = slotFor(key);
+            types[slot] = other.types[i];
+            bits[slot] = other.bits[i];
+            objects[slot] = other.objects[i];
+            String raw = other.raws == null ? null : other.raws[i];
+            if (raw != null && raws == null)
+                raws = new String[keys.length];
+            if (raws != null)
+                raws[slot] = raw;
+            written(slot);
+        }
+    }
+    
+    
+    
+    
+    private int setLong(int slot, NumberType type, long value) {
+        store(slot, type, value, null);
+        written(slot);
+        return slot;
+    }
+    
+    private int setDouble(int slot, NumberType type, double value) {
+        store(slot, type, Double.doubleToRawLongBits(value), null);
+        written(slot);
+        return slot;
+    }
+    
+    private int setNumber(int slot, Number value) {
+        storeNumber(slot, value);
+        written(slot);
+        return slot;
+    }
+    
+    private void storeNumber(int slot, Number value) {
+        NumberType type = Configs.resolveNumberType(value);
+        if (isIntegral(type))
+            store(slot, type, value.longValue(), null);
+        else if (isFloating(type))
+            store(slot, type, Double.doubleToRawLongBits(value.doubleValue()), 
+                    null);
+        else
+            store(slot, type, 0L, value);
+    }
+    
+    private void store(int slot, NumberType type, long value, Object object) {
+        types[slot] = type;
+        bits[slot] = value;
+        objects[slot] = object;
+        if (raws != null)
+            raws[slot] = null;
+    }
+    
+    /**
+     * Parses the text of a slot and caches the result in place. The value 
+     * does not change, so this is not a write.
+     */
+    private void decode(int slot) {
+        try {
+            storeNumber(slot, Configs.parseNumberFromType(raws[slot], 
+                    types[slot]));
+        } catch (NumberFormatException ex) {
+            throw new ConfigException(ex);
+        }
+    }
+    
+    
+    
+    
+    Number valueAt(int slot) {
+        return numberAt(slot);
+    }
+    
+    void resizeValues(int capacity) {
+        types = Arrays.copyOf(types, capacity);
+        bits = Arrays.copyOf(bits, capacity);
+        objects = Arrays.copyOf(objects, capacity);
+        if (raws != null)
+            raws = Arrays.copyOf(raws, capacity);
+    }
+    
+    void clearValues(int from, int to) {
+        Arrays.fill(types, from, to, null);
+        Arrays.fill(objects, from, to, null);
+        if (raws != null)
+            Arrays.fill(raws, from, to, null);
+    }
+    
+    long valueHash(int slot) {
+        ensureDecoded(slot);
+        return hashValue(types[slot], bits[slot], objects[slot]);
+    }
+    
+    @Override
+    public Number put(String key, Number value) {
+        Number old = get(key);
+        putNumber(key, value);
+        return old;
+    }
+    
+    
+    
+    
+    /**
+     * Hashes a value held as its {@code NumberType}, primitive bits and 
+     * object, the way a slot holds it. The type is part of the hash.
+     */
+    static long hashValue(NumberType type, long bits, Object object) {
+        long h = type.name().hashCode();
+        return h * 31L + (object == null ? bits : object.hashCode());
+    }
+    
+    static boolean isIntegral(NumberType type) {
+        return type == NumberType.INT || type == NumberType.LONG ||
+                type == NumberType.BYTE || type == NumberType.SHORT;
+    }
+    
+    static boolean isFloating(NumberType type) {
+        return type == NumberType.DOUBLE || type == NumberType.FLOAT;
+    }
+    
+}
@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright 2014 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package ca.raihan.cfg;
+
+import java.util.Arrays;
+
+/**
+ * The repository of {@code Boolean} and {@code String} values, a 
+ * {@link SlotTable} holding one object per slot.
+ * <p>
+ * A repository constructed with a {@link Decoder} also accepts values in 
+ * their textual form (see {@link #putRaw(String, String)}), which are only 
+ * decoded the first time they are read. Any repository accepts 
+ * {@link Deferred} values (see {@link #putDeferred(String, Deferred)}), 
+ * which are produced the first time they are read.
+ * 
+ * @author Pranjal Raihan
+ * 
+ * @param <V> the type of values
+ */
+final class ObjectRepository<V> extends SlotTable<V> {
+    
+    /**
+     * Decodes {@code Boolean} values
+     */
+    static final Decoder<Boolean> BOOLEAN_DECODER = new Decoder<Boolean>() {
+        public Boolean decode(String raw) {
+            try {
+                return Boolean.valueOf(Configs.parseBoolean(raw));
+            } catch (Configs.BooleanParsingException ex) {
+                throw new ConfigException(ex);
+            }
+        }
+    };
+    
+    
+    /**
+     * The value for each slot
+     */
+    Object[] values;
+    
+    /**
+     * The text of each slot that has not been decoded yet, {@code null} until 
+     * the first raw value is put
+     */
+    String[] raws;
+    
+    /**
+     * Decodes raw values, {@code null} if raw values are not accepted
+     */
+    final Decoder<V> decoder;
+    
+    
+    
+    
+    ObjectRepository() {
+        this(DEFAULT_CAPACITY, null);
+    }
+    
+    ObjectRepository(Decoder<V> decoder) {
+        this(DEFAULT_CAPACITY, decoder);
+    }
+    
+    ObjectRepository(int capacity, Decoder<V> decoder) {
+        super(capacity);
+        values = new Object[capacity];
+        this.decoder = decoder;
+    }
+    
+    
+    
+    
+    @SuppressWarnings("unchecked")
+    V valueAt(int slot) {
+        if (raws != null && raws[slot] != null) {
+            values[slot] = decoder.decode(raws[slot]);
+            raws[slot] = null;
+        }
+        Object value = values[slot];
+        if (value instanceof Deferred) {
+            value = ((Deferred<?>) value).resolve();
+            values[slot] = value;
+        }
+        return (V) value;
+    }
+    
+    /**
+     * Returns the textual form of a slot, without decoding it if it is raw.
+     * 
+     * @param slot the slot
+     * 
+     * @return the text of the value
+     */
+    String textAt(int slot) {
+        if (raws != null && raws[slot] != null)
+            return raws[slot];
+        return String.valueOf(valueAt(slot));
+    }
+    
+    void resizeValues(int capacity) {
+        values = Arrays.copyOf(values, capacity);
+        if (raws != null)
+            raws = Arrays.copyOf(raws, capacity);
+    }
+    
+    void clearValues(int from, int to) {
+        Arrays.fill(values, from, to, null);
+        if (raws != null)
+            Arrays.fill(raws, from, to, null);
+    }
+    
+    long valueHash(int slot) {
+        return hashValue(valueAt(slot));
+    }
+    
+    /**
+     * Puts a value without looking up the previous one.
+     * 
+     * @param key the key
+     * @param value the value
+     * 
+     * @return the slot the value was stored in
+     */
+    int putValue(String key, V value) {
+        int slot = slotFor(key);
+        values[slot] = value;
+        if (raws != null)
+            raws[slot] = null;
+        written(slot);
+        return slot;
+    }
+    
+    /**
+     * Puts the textual form of a value, to be decoded on first read.
+     * 
+     * @param key the key
+     * @param raw the text of the value
+     * 
+     * @return the slot the value was stored in
+     */
+    int putRaw(String key, String raw) {
+        Contract.require(decoder != null, "raw values not accepted");
+        Contract.nonNull(raw, "raw");
+        int slot = slotFor(key);
+        if (raws == null)
+            raws = new String[keys.length];
+        values[slot] = null;
+        raws[slot] = raw;
+        written(slot);
+        return slot;
+    }
+    
+    /**
+     * Puts a value that is produced on first read.
+     * 
+     * @param key the key
+     * @param deferred the producer of the value
+     * 
+     * @return the slot the value was stored in
+     */
+    int putDeferred(String key, Deferred<V> deferred) {
+        Contract.nonNull(deferred, "deferred");
+        int slot = slotFor(key);
+        values[slot] = deferred;
+        if (raws != null)
+            raws[slot] = null;
+        written(slot);
+        return slot;
+    }
+    
+    @Override
+    public V put(String key, V value) {
+        int slot = slotFor(key);
+        V old = valueAt(slot);
+        values[slot] = value;
+        if (raws != null)
+            raws[slot] = null;
+        written(slot);
+        return old;
+    }
+    
+    
+    
+    
+    /**
+     * Hashes a {@code Boolean} or {@code String} value.
+     * 
+     * @param value the value
+     * 
+     * @return the hash of the value
+     */
+    static long hashValue(Object value) {
+        if (value instanceof String)
+            return textHash((String) value);
+        return value.hashCode();
+    }
+    
+    
+    
+    
+    /**
+     * Decodes the textual form of a value.
+     * 
+     * @param <V> the type of values
+     */
+    static interface Decoder<V> {
+        
+        V decode(String raw);
+        
+    }
+    
+    /**
+     * Produces a value on first read, such as a {@code String} still held in 
+     * a mapped file.
+     * 
+     * @param <V> the type of values
+     */
+    static interface Deferred<V> {
+        
+        V resolve();
+        
+    }
+    
+}
@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * Copyright 2014 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package ca.raihan.cfg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A minimal perfect hash over a fixed set of {@code String} keys, built with
+ * the hash and displace algorithm. Every key maps to a distinct position in
+ * {@code [0, size())} with a single probe: one hash picks a bucket, a second
+ * hash seeded with the displacement stored for that bucket picks the
+ * position. Buckets holding a single key are placed last and store the
+ * position itself instead of a displacement, so they always find one of
+ * the positions left free. Should a larger bucket find no displacement,
+ * the keys are spread over buckets again with another seed. A lookup then
+ * compares against the single key stored at that position to reject keys
+ * outside of the set.
+ * <p>
+ * Instances are immutable.
+ * 
+ * @author Pranjal Raihan
+ */
+final class PerfectHash {
+    
+    /**
+     * The average number of keys per bucket
+     */
+    static final int KEYS_PER_BUCKET = 4;
+    
+    /**
+     * The number of displacements tried for a bucket before giving up and
+     * starting over with more buckets, or with another seed
+     */
+    static final int MAX_DISPLACEMENT = 1 << 16;
+    
+    
+    /**
+     * The keys, by position
+     */
+    final String[] keys;
+    
+    /**
+     * The displacement of each bucket, or {@code -1 - position} for a bucket
+     * holding a single key
+     */
+    private final int[] displacements;
+    
+    /**
+     * The seed of the hash that picks the bucket of a key, never positive so
+     * that it differs from every displacement
+     */
+    private final int seed;
+    
+    /**
+     * {@code true} if the hash of a key is computed from its characters rather
+     * than from {@link String#hashCode()}, used only when two keys of the set
+     * share a {@code hashCode()}
+     */
+    private final boolean strong;
+    
+    
+    
+    
+    private PerfectHash(String[] keys, int[] displacements, int seed,
+            boolean strong) {
+        this.keys = keys;
+        this.displacements = displacements;
+        this.seed = seed;
+        this.strong = strong;
+    }
+    
+    
+    
+    
+    /**
+     * Builds a minimal perfect hash over a set of distinct keys. Never fails
+     * for distinct keys; an unlucky set only takes another seed.
+     * 
+     * @param keys the keys
+     * 
+     * @return the minimal perfect hash
+     */
+    static PerfectHash build(Collection<String> keys) {
+        Contract.nonNull(keys, "keys");
+        String[] array = keys.toArray(new String[keys.size()]);
+        
+        Set<Integer> hashCodes = new HashSet<Integer>();
+        boolean strong = false;
+        for (String key : array) {
+            if (!hashCodes.add(Integer.valueOf(
+                    Contract.nonNull(key, "key").hashCode()))) {
+                strong = true;
+                break;
+            }
+        }
+        // a repeated key would never be placed
+        Contract.require(!strong ||
+                new HashSet<String>(keys).size() == array.length,
+                "keys must be distinct");
+        
+        for (int seed = 0; ; --seed) {
+            for (int perBucket = KEYS_PER_BUCKET; perBucket > 0;
+                    perBucket >>= 1) {
+                PerfectHash rv = tryBuild(array, perBucket, seed, strong);
+                if (rv != null)
+                    return rv;
+            }
+        }
+    }
+    
+    private static PerfectHash tryBuild(String[] keys, int perBucket,
+            int seed, boolean strong) {
+        final int n = keys.length;
+        final int bucketCount = Math.max(1, (n + perBucket - 1) / perBucket);
+        
+        List<String>[] buckets = newBuckets(bucketCount);
+        for (String key : keys) {
+            int b = position(hash(key, seed, strong), bucketCount);
+            if (buckets[b] == null)
+                buckets[b] = new ArrayList<String>(perBucket);
+            buckets[b].add(key);
+        }
+        
+        // place the largest buckets first, while most positions are free
+        Integer[] order = new Integer[bucketCount];
+        for (int i = 0; i < bucketCount; ++i)
+            order[i] = Integer.valueOf(i);
+        final List<String>[] sizes = buckets;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return size(sizes[b.intValue()]) - size(sizes[a.intValue()]);
+            }
+        });
+        
+        String[] table = new String[n];
+        int[] displacements = new int[bucketCount];
+        int[] positions = new int[perBucket << 2];
+        int free = 0;
+        for (Integer o : order) {
+            List<String> bucket = buckets[o.intValue()];
+            if (bucket == null)
+                break;
+            if (bucket.size() == 1) {
+                while (table[free] != null)
+                    ++free;
+                displacements[o.intValue()] = -1 - free;
+                table[free] = bucket.get(0);
+                continue;
+            }
+            if (positions.length < bucket.size())
+                positions = new int[bucket.size()];
+            
+            int d = 1;
+            search:
+            for (; d <= MAX_DISPLACEMENT; ++d) {
+                for (int i = 0; i < bucket.size(); ++i) {
+                    int p = position(hash(bucket.get(i), d, strong), n);
+                    if (table[p] != null)
+                        continue search;
+                    for (int j = 0; j < i; ++j)
+                        if (positions[j] == p)
+                            continue search;
+                    positions[i] = p;
+                }
+                break;
+            }
+            if (d > MAX_DISPLACEMENT)
+                return null;
+            
+            displacements[o.intValue()] = d;
+            for (int i = 0; i < bucket.size(); ++i)
+                table[positions[i]] = bucket.get(i);
+        }
+        return new PerfectHash(table, displacements, seed, strong);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static List<String>[] newBuckets(int length) {
+        return (List<String>[]) new List<?>[length];
+    }
+    
+    
+    
+    
+    /**
+     * Returns the number of keys.
+     * 
+     * @return the number of keys
+     */
+    int size() {
+        return keys.length;
+    }
+    
+    /**
+     * Returns the position of a key, or {@code -1} if the key is not part of
+     * the set.
+     * 
+     * @param key the key to look for
+     * 
+     * @return the position of a key, or {@code -1} if the key is absent
+     */
+    int indexOf(String key) {
+        final int n = keys.length;
+        if (key == null || n == 0)
+            return -1;
+        int d = displacements[position(hash(key, seed, strong),
+                displacements.length)];
+        int p = d < 0 ? -1 - d : position(hash(key, d, strong), n);
+        return key.equals(keys[p]) ? p : -1;
+    }
+    
+    
+    
+    
+    private static int size(List<String> bucket) {
+        return bucket == null ? 0 : bucket.size();
+    }
+    
+    private static int position(int hash, int n) {
+        return (int) ((hash & 0xFFFFFFFFL) % n);
+    }
+    
+    /**
+     * Seeded 32-bit hash of a key, finished with the MurmurHash3 mixer.
+     */
+    static int hash(String key, int seed, boolean strong) {
+        int h;
+        if (strong) {
+            h = seed;
+            for (int i = 0; i < key.length(); ++i)
+                h = (h ^ key.charAt(i)) * 0x01000193;
+        } else {
+            h = key.hashCode() ^ (seed * 0x9E3779B9);
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+    
+}
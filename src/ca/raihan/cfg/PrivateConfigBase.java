@@ -16,21 +16,23 @@
 
 package ca.raihan.cfg;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
 
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.w3c.dom.DOMException;
 
@@ -76,28 +78,61 @@ abstract strictfp class PrivateConfigBase implements Config {
      */
     File fileHandle;
     
+    /**
+     * {@code true} if saves end the layout with a {@link ConfigIndex} of 
+     * its entries
+     */
+    boolean indexed;
+    
+    /**
+     * The {@code File} of the last save to a file, {@code null} if there was 
+     * none
+     */
+    private File savedFile;
+    
+    /**
+     * The modification count and fingerprint of the state the last save to 
+     * a file wrote
+     */
+    private long savedModCount;
+    
+    private long savedFingerprint;
+    
+    /**
+     * {@code true} if {@link #savedFingerprint} was captured by the last 
+     * save, any value including 0 is a valid fingerprint
+     */
+    private boolean savedFingerprinted;
+    
+    /**
+     * The length and modification time the last save left its file with
+     */
+    private long savedLength;
+    
+    private long savedLastModified;
+    
     
     /**
      * All serialized {@code Number} elements.
      */
-    Map<String, Number> flushedNumberElements;
+    NumberRepository flushedNumberElements;
     
     /**
      * All {@code Number} elements pending serialization
      */
-    Map<String, Number> pendingNumberElements;
+    NumberRepository pendingNumberElements;
     
     /**
      * All deleted keys for {@code Number}
      */
-    List<String> deletedNumberKeys;
+    Set<String> deletedNumberKeys;
     
     
     
     /**
      * All serialized {@code String} elements.
      */
-    Map<String, String> flushedStringElements;
+    ObjectRepository<String> flushedStringElements;
     
     /**
      * All {@code String} elements pending serialization
@@ -107,7 +142,7 @@ abstract strictfp class PrivateConfigBase implements Config {
     /**
      * All deleted keys for {@code String}
      */
-    List<String> deletedStringKeys;
+    Set<String> deletedStringKeys;
     
     
     
@@ -115,7 +150,7 @@ abstract strictfp class PrivateConfigBase implements Config {
     /**
      * All serialized {@code Boolean} elements.
      */
-    Map<String, Boolean> flushedBooleanElements;
+    ObjectRepository<Boolean> flushedBooleanElements;
     
     /**
      * All {@code Boolean} elements pending serialization
@@ -125,7 +160,7 @@ abstract strictfp class PrivateConfigBase implements Config {
     /**
      * All deleted keys for {@code Boolean}
      */
-    List<String> deletedBooleanKeys;
+    Set<String> deletedBooleanKeys;
     
     
     
@@ -145,6 +180,29 @@ abstract strictfp class PrivateConfigBase implements Config {
      */
     ConfigEvent<BooleanRepoContext> booleanRepoEvent;
     
+    /**
+     * Event for {@code flushState()}
+     */
+    ConfigEvent<ConfigChangeSet> commitEvent;
+    
+    /**
+     * The flushed values of the {@code Number} keys deleted since the last 
+     * flush, {@code null} until the first delete
+     */
+    Map<String, Number> deletedNumberValues;
+    
+    /**
+     * The flushed values of the {@code String} keys deleted since the last 
+     * flush, {@code null} until the first delete
+     */
+    Map<String, String> deletedStringValues;
+    
+    /**
+     * The flushed values of the {@code Boolean} keys deleted since the last 
+     * flush, {@code null} until the first delete
+     */
+    Map<String, Boolean> deletedBooleanValues;
+    
     /**
      * The event key
      */
@@ -161,67 +219,65 @@ abstract strictfp class PrivateConfigBase implements Config {
     }
     
     public byte getByte(String key) throws ConfigException {
-        Number value = Configs.getOrDef(flushedNumberElements, key, null);
-        if (value != null)
-            return value.byteValue();
+        int slot = flushedNumberElements.indexOf(key);
+        if (slot >= 0)
+            return flushedNumberElements.byteAt(slot);
         throw ConfigException.unfoundKey(key);
     }
     
     public short getShort(String key) throws ConfigException {
-        Number value = Configs.getOrDef(flushedNumberElements, key, null);
-        if (value != null)
-            return value.shortValue();
+        int slot = flushedNumberElements.indexOf(key);
+        if (slot >= 0)
+            return flushedNumberElements.shortAt(slot);
         throw ConfigException.unfoundKey(key);
     }
     
     public int getInt(String key) throws ConfigException {
-        Number value = Configs.getOrDef(flushedNumberElements, key, null);
-        if (value != null)
-            return value.intValue();
+        int slot = flushedNumberElements.indexOf(key);
+        if (slot >= 0)
+            return flushedNumberElements.intAt(slot);
         throw ConfigException.unfoundKey(key);
     }
     
     public long getLong(String key) throws ConfigException {
-        Number value = Configs.getOrDef(flushedNumberElements, key, null);
-        if (value != null)
-            return value.longValue();
+        int slot = flushedNumberElements.indexOf(key);
+        if (slot >= 0)
+            return flushedNumberElements.longAt(slot);
         throw ConfigException.unfoundKey(key);
     }
     
     public float getFloat(String key) throws ConfigException {
-        Number value = Configs.getOrDef(flushedNumberElements, key, null);
-        if (value != null)
-            return value.floatValue();
+        int slot = flushedNumberElements.indexOf(key);
+        if (slot >= 0)
+            return flushedNumberElements.floatAt(slot);
         throw ConfigException.unfoundKey(key);
     }
     
     public double getDouble(String key) throws ConfigException {
-        Number value = Configs.getOrDef(flushedNumberElements, key, null);
-        if (value != null)
-            return value.doubleValue();
+        int slot = flushedNumberElements.indexOf(key);
+        if (slot >= 0)
+            return flushedNumberElements.doubleAt(slot);
         throw ConfigException.unfoundKey(key);
     }
     
     public BigInteger getBigInteger(String key) throws ConfigException {
-        Number value = Configs.getOrDef(flushedNumberElements, key, null);
-        if (value != null)
-            return value instanceof BigInteger ? 
-                    (BigInteger) value : 
-                    BigInteger.valueOf(value.longValue());
+        int slot = flushedNumberElements.indexOf(key);
+        if (slot >= 0)
+            return flushedNumberElements.bigIntegerAt(slot);
         throw ConfigException.unfoundKey(key);
     }
     
     public BigDecimal getBigDecimal(String key) throws ConfigException {
-        Number value = Configs.getOrDef(flushedNumberElements, key, null);
-        if (value != null) {
-            if (value instanceof BigDecimal) {
-                return (BigDecimal) value;
-            }
-            if (value instanceof Float || value instanceof Double) {
-                return BigDecimal.valueOf(value.doubleValue());
-            }
-            return BigDecimal.valueOf(value.longValue());
-        }
+        int slot = flushedNumberElements.indexOf(key);
+        if (slot >= 0)
+            return flushedNumberElements.bigDecimalAt(slot);
+        throw ConfigException.unfoundKey(key);
+    }
+    
+    public Number getNumber(String key) throws ConfigException {
+        int slot = flushedNumberElements.indexOf(key);
+        if (slot >= 0)
+            return flushedNumberElements.numberAt(slot);
         throw ConfigException.unfoundKey(key);
     }
     
@@ -245,74 +301,65 @@ abstract strictfp class PrivateConfigBase implements Config {
     
     public byte getOrDefault(String key, byte value) 
             throws ConfigException {
-        Number v = Configs.getOrDef(flushedNumberElements, key, null);
-        if (v != null)
-            return v.byteValue();
+        int slot = flushedNumberElements.indexOf(key);
+        if (slot >= 0)
+            return flushedNumberElements.byteAt(slot);
         return value;
     }
     
     public short getOrDefault(String key, short value) 
             throws ConfigException {
-        Number v = Configs.getOrDef(flushedNumberElements, key, null);
-        if (v != null)
-            return v.shortValue();
+        int slot = flushedNumberElements.indexOf(key);
+        if (slot >= 0)
+            return flushedNumberElements.shortAt(slot);
         return value;
     }
     
     public int getOrDefault(String key, int value) 
             throws ConfigException {
-        Number v = Configs.getOrDef(flushedNumberElements, key, null);
-        if (v != null)
-            return v.intValue();
+        int slot = flushedNumberElements.indexOf(key);
+        if (slot >= 0)
+            return flushedNumberElements.intAt(slot);
         return value;
     }
     
     public long getOrDefault(String key, long value) 
             throws ConfigException {
-        Number v = Configs.getOrDef(flushedNumberElements, key, null);
-        if (v != null)
-            return v.longValue();
+        int slot = flushedNumberElements.indexOf(key);
+        if (slot >= 0)
+            return flushedNumberElements.longAt(slot);
         return value;
     }
     
     public float getOrDefault(String key, float value) 
             throws ConfigException {
-        Number v = Configs.getOrDef(flushedNumberElements, key, null);
-        if (v != null)
-            return v.floatValue();
+        int slot = flushedNumberElements.indexOf(key);
+        if (slot >= 0)
+            return flushedNumberElements.floatAt(slot);
         return value;
     }
     
     public double getOrDefault(String key, double value) 
             throws ConfigException {
-        Number v = Configs.getOrDef(flushedNumberElements, key, null);
-        if (v != null)
-            return v.doubleValue();
+        int slot = flushedNumberElements.indexOf(key);
+        if (slot >= 0)
+            return flushedNumberElements.doubleAt(slot);
         return value;
     }
     
     public BigInteger getOrDefault(String key, BigInteger value) 
             throws ConfigException {
-        Number v = Configs.getOrDef(flushedNumberElements, key, null);
-        if (v != null)
-            return v instanceof BigInteger ? 
-                    (BigInteger) v : 
-                    BigInteger.valueOf(v.longValue());
+        int slot = flushedNumberElements.indexOf(key);
+        if (slot >= 0)
+            return flushedNumberElements.bigIntegerAt(slot);
         return value;
     }
     
     public BigDecimal getOrDefault(String key, BigDecimal value) 
             throws ConfigException {
-        Number v = Configs.getOrDef(flushedNumberElements, key, null);
-        if (v != null) {
-            if (v instanceof BigDecimal) {
-                return (BigDecimal) v;
-            }
-            if (v instanceof Float || v instanceof Double) {
-                return BigDecimal.valueOf(v.doubleValue());
-            }
-            return BigDecimal.valueOf(v.longValue());
-        }
+        int slot = flushedNumberElements.indexOf(key);
+        if (slot >= 0)
+            return flushedNumberElements.bigDecimalAt(slot);
         return value;
     }
     
@@ -350,9 +397,8 @@ abstract strictfp class PrivateConfigBase implements Config {
         pendingBooleanElements.put(key, value);
         deletedBooleanKeys.remove(key);
         ConfigEvent<BooleanRepoContext> evt = booleanEvent();
-        if (evt!= null && evt.hasListeners()) {
-            evt.raise(eventKey, this, new BooleanRepoContext(
-                            key, v, value, ChangeAction.PUT));
+        if (evt!= null && evt.hasListeners(key)) {
+            _raiseBoolean(evt, key, v, value, ChangeAction.PUT);
         }
     }
     
@@ -363,7 +409,7 @@ abstract strictfp class PrivateConfigBase implements Config {
     
     public void putByte(String key, byte value, Put put) 
             throws ConfigException {
-        _putNumber(key, value, put);
+        _putLong(key, NumberType.BYTE, value, put);
     }
     
     public void putShort(final String key, final short value) 
@@ -373,7 +419,7 @@ abstract strictfp class PrivateConfigBase implements Config {
     
     public void putShort(String key, short value, Put put) 
             throws ConfigException {
-        _putNumber(key, value, put);
+        _putLong(key, NumberType.SHORT, value, put);
     }
     
     public void putInt(final String key, final int value) 
@@ -383,7 +429,7 @@ abstract strictfp class PrivateConfigBase implements Config {
     
     public void putInt(String key, int value, Put put) 
             throws ConfigException {
-        _putNumber(key, value, put);
+        _putLong(key, NumberType.INT, value, put);
     }
     
     public void putLong(final String key, final long value) 
@@ -393,7 +439,7 @@ abstract strictfp class PrivateConfigBase implements Config {
     
     public void putLong(String key, long value, Put put) 
             throws ConfigException {
-        _putNumber(key, value, put);
+        _putLong(key, NumberType.LONG, value, put);
     }
     
     public void putFloat(final String key, final float value) 
@@ -403,7 +449,7 @@ abstract strictfp class PrivateConfigBase implements Config {
     
     public void putFloat(String key, float value, Put put) 
             throws ConfigException {
-        _putNumber(key, value, put);
+        _putDouble(key, NumberType.FLOAT, value, put);
     }
     
     public void putDouble(final String key, final double value) 
@@ -413,7 +459,7 @@ abstract strictfp class PrivateConfigBase implements Config {
     
     public void putDouble(String key, double value, Put put) 
             throws ConfigException {
-        _putNumber(key, value, put);
+        _putDouble(key, NumberType.DOUBLE, value, put);
     }
     
     public void putBigInteger(String key, BigInteger value) 
@@ -444,25 +490,131 @@ abstract strictfp class PrivateConfigBase implements Config {
         Contract.nonNull(key, "key");
         Contract.nonNull(put, "put");
         
-        Number v = Configs.getOrDef(flushedNumberElements, key, null);
-        if (v != null) {
-            if (put == Put.RETAIN)
-                return;
+        if (put == Put.RETAIN && _containsNumber(key))
+            return;
+        NumberRepoContext context = _numberContext(key);
+        int slot = pendingNumberElements.putNumber(key, value);
+        _numberPut(key, context, slot);
+    }
+    
+    void _putLong(String key, NumberType type, long value, Put put) {
+        Contract.nonNull(key, "key");
+        Contract.nonNull(put, "put");
+        
+        if (put == Put.RETAIN && _containsNumber(key))
+            return;
+        NumberRepoContext context = _numberContext(key);
+        int slot = pendingNumberElements.putLong(key, type, value);
+        _numberPut(key, context, slot);
+    }
+    
+    void _putDouble(String key, NumberType type, double value, Put put) {
+        Contract.nonNull(key, "key");
+        Contract.nonNull(put, "put");
+        
+        if (put == Put.RETAIN && _containsNumber(key))
+            return;
+        NumberRepoContext context = _numberContext(key);
+        int slot = pendingNumberElements.putDouble(key, type, value);
+        _numberPut(key, context, slot);
+    }
+    
+    /**
+     * Returns {@code true} if the key is either flushed or pending in the 
+     * {@code Number} repository.
+     */
+    boolean _containsNumber(String key) {
+        return flushedNumberElements.indexOf(key) >= 0 || 
+                pendingNumberElements.indexOf(key) >= 0;
+    }
+    
+    /**
+     * Returns a context holding the current value of a key, or {@code null} 
+     * if nobody is listening. The value is copied unboxed from its slot.
+     */
+    NumberRepoContext _numberContext(String key) {
+        ConfigEvent<NumberRepoContext> evt = numberEvent();
+        if (evt == null || !evt.hasListeners(key))
+            return null;
+        NumberRepoContext context = evt.borrowContext();
+        if (context == null)
+            context = new NumberRepoContext();
+        int slot = flushedNumberElements.indexOf(key);
+        if (slot >= 0) {
+            context.setOld(flushedNumberElements, slot);
         } else {
-            v = Configs.getOrDef(pendingNumberElements, key, null);
-            if (v != null)
-                if (put == Put.RETAIN)
-                    return;
+            context.setOld(pendingNumberElements, 
+                    pendingNumberElements.indexOf(key));
         }
-        pendingNumberElements.put(key, value);
+        return context;
+    }
+    
+    private void _numberPut(String key, NumberRepoContext context, int slot) {
         deletedNumberKeys.remove(key);
+        if (context == null)
+            return;
         ConfigEvent<NumberRepoContext> evt = numberEvent();
-        if (evt != null && evt.hasListeners()) {
-            evt.raise(eventKey, this,
-                    new NumberRepoContext(key, v, value, ChangeAction.PUT));
+        context.reset(key, ChangeAction.PUT);
+        context.setNew(pendingNumberElements, slot);
+        try {
+            evt.raise(eventKey, this, context);
+        } finally {
+            evt.returnContext(context);
         }
     }
     
+    /**
+     * Raises a {@code Boolean} event, with a reused context if allowed.
+     */
+    private void _raiseBoolean(ConfigEvent<BooleanRepoContext> evt, 
+            String key, Boolean oldValue, Boolean newValue, 
+            ChangeAction change) {
+        BooleanRepoContext context = evt.borrowContext();
+        if (context == null)
+            context = new BooleanRepoContext();
+        context.reset(key, oldValue, newValue, change);
+        try {
+            evt.raise(eventKey, this, context);
+        } finally {
+            evt.returnContext(context);
+        }
+    }
+    
+    /**
+     * Raises a {@code String} event, with a reused context if allowed.
+     */
+    private void _raiseString(ConfigEvent<StringRepoContext> evt, 
+            String key, String oldValue, String newValue, 
+            ChangeAction change) {
+        StringRepoContext context = evt.borrowContext();
+        if (context == null)
+            context = new StringRepoContext();
+        context.reset(key, oldValue, newValue, change);
+        try {
+            evt.raise(eventKey, this, context);
+        } finally {
+            evt.returnContext(context);
+        }
+    }
+    
+    /**
+     * Raises a {@code Number} event, with a reused context if allowed.
+     */
+    private void _raiseNumber(ConfigEvent<NumberRepoContext> evt, 
+            String key, Number oldValue, Number newValue, 
+            ChangeAction change) {
+        NumberRepoContext context = evt.borrowContext();
+        if (context == null)
+            context = new NumberRepoContext();
+        context.reset(key, oldValue, newValue, change);
+        try {
+            evt.raise(eventKey, this, context);
+        } finally {
+            evt.returnContext(context);
+        }
+    }
+    
+    
     public void putString(final String key, final String value) 
             throws ConfigException {
         putString(key, value, DEFAULT_PUT);
@@ -486,9 +638,8 @@ abstract strictfp class PrivateConfigBase implements Config {
         pendingStringElements.put(key, value);
         deletedStringKeys.remove(key);
         ConfigEvent<StringRepoContext> evt = stringEvent();
-        if (evt != null && evt.hasListeners()) {
-            evt.raise(eventKey, this,
-                    new StringRepoContext(key, v, value, ChangeAction.PUT));
+        if (evt != null && evt.hasListeners(key)) {
+            _raiseString(evt, key, v, value, ChangeAction.PUT);
         }
     }
     
@@ -504,7 +655,7 @@ abstract strictfp class PrivateConfigBase implements Config {
             case STRING:
                 return flushedStringElements.containsKey(key);
             case NUMBER:
-                return flushedNumberElements.containsKey(key);
+                return flushedNumberElements.indexOf(key) >= 0;
             default:
                 throw new InternalError();
         }
@@ -518,39 +669,51 @@ abstract strictfp class PrivateConfigBase implements Config {
         switch (category) {
             case BOOLEAN:
                 deletedBooleanKeys.add(key);
-                Boolean b;
-                b = pendingBooleanElements.remove(key);
+                Boolean b = pendingBooleanElements.remove(key);
+                Boolean flushedB = flushedBooleanElements.remove(key);
+                if (flushedB != null) {
+                    if (deletedBooleanValues == null)
+                        deletedBooleanValues = new HashMap<String, Boolean>();
+                    deletedBooleanValues.put(key, flushedB);
+                }
                 if (b == null) {
-                    b = flushedBooleanElements.remove(key);
+                    b = flushedB;
                 }
                 ConfigEvent<BooleanRepoContext> bEvt = booleanEvent();
-                if (bEvt != null && bEvt.hasListeners())
-                    bEvt.raise(eventKey, this, new BooleanRepoContext(
-                            key, b, null, ChangeAction.DELETE));
+                if (bEvt != null && bEvt.hasListeners(key))
+                    _raiseBoolean(bEvt, key, b, null, ChangeAction.DELETE);
                 break;
             case STRING:
                 deletedStringKeys.add(key);
-                String str;
-                str = pendingStringElements.remove(key);
+                String str = pendingStringElements.remove(key);
+                String flushedStr = flushedStringElements.remove(key);
+                if (flushedStr != null) {
+                    if (deletedStringValues == null)
+                        deletedStringValues = new HashMap<String, String>();
+                    deletedStringValues.put(key, flushedStr);
+                }
                 if (str == null) {
-                    str = flushedStringElements.remove(key);
+                    str = flushedStr;
                 }
                 ConfigEvent<StringRepoContext> strEvt = stringEvent();
-                if (strEvt != null && strEvt.hasListeners())
-                    strEvt.raise(eventKey, this, new StringRepoContext(
-                            key, str, null, ChangeAction.DELETE));
+                if (strEvt != null && strEvt.hasListeners(key))
+                    _raiseString(strEvt, key, str, null, ChangeAction.DELETE);
                 break;
             case NUMBER:
                 deletedNumberKeys.add(key);
-                Number n;
-                n = pendingNumberElements.remove(key);
+                Number n = pendingNumberElements.remove(key);
+                Number flushedN = flushedNumberElements.remove(key);
+                if (flushedN != null) {
+                    if (deletedNumberValues == null)
+                        deletedNumberValues = new HashMap<String, Number>();
+                    deletedNumberValues.put(key, flushedN);
+                }
                 if (n == null) {
-                    n = flushedNumberElements.remove(key);
+                    n = flushedN;
                 }
                 ConfigEvent<NumberRepoContext> nEvt = numberEvent();
-                if (nEvt != null && nEvt.hasListeners())
-                    nEvt.raise(eventKey, this, new NumberRepoContext(
-                            key, n, null, ChangeAction.DELETE));
+                if (nEvt != null && nEvt.hasListeners(key))
+                    _raiseNumber(nEvt, key, n, null, ChangeAction.DELETE);
                 break;
         }
         return true;
@@ -559,6 +722,280 @@ abstract strictfp class PrivateConfigBase implements Config {
     
     
     
+    public long incrementLong(String key) throws ConfigException {
+        Contract.nonNull(key, "key");
+        int slot = flushedNumberElements.indexOf(key);
+        long value = (slot >= 0 ? flushedNumberElements.longAt(slot) : 0L) + 1L;
+        Number old = _committedNumber(slot);
+        _serializeNumber(key, Long.valueOf(value));
+        NumberRepoContext context = _numberContext(key);
+        slot = flushedNumberElements.putLong(key, NumberType.LONG, value);
+        _numberStored(key, old, context, slot);
+        return value;
+    }
+    
+    public double addAndGetDouble(String key, double delta) 
+            throws ConfigException {
+        Contract.nonNull(key, "key");
+        int slot = flushedNumberElements.indexOf(key);
+        double value = 
+                (slot >= 0 ? flushedNumberElements.doubleAt(slot) : 0D) + delta;
+        Number old = _committedNumber(slot);
+        _serializeNumber(key, Double.valueOf(value));
+        NumberRepoContext context = _numberContext(key);
+        slot = flushedNumberElements.putDouble(key, NumberType.DOUBLE, value);
+        _numberStored(key, old, context, slot);
+        return value;
+    }
+    
+    public boolean compareAndSetString(String key, String expect, 
+            String update) throws ConfigException {
+        Contract.nonNull(key, "key");
+        String current = flushedStringElements.get(key);
+        if (current == null ? expect != null : !current.equals(expect))
+            return false;
+        String old = pendingStringElements.remove(key);
+        if (old == null)
+            old = current;
+        deletedStringKeys.remove(key);
+        if (deletedStringValues != null)
+            deletedStringValues.remove(key);
+        if (update != null) {
+            flushedStringElements.put(key, update);
+            _serializeString(key, update);
+        } else if (current != null) {
+            flushedStringElements.remove(key);
+            _deleteString(key);
+        }
+        
+        ConfigEvent<StringRepoContext> evt = stringEvent();
+        if ((old != null || update != null) && evt != null && 
+                evt.hasListeners(key)) {
+            _raiseString(evt, key, old, update, update == null ? 
+                    ChangeAction.DELETE : ChangeAction.PUT);
+        }
+        _raiseCommit(Repository.STRING, key, current, update);
+        return true;
+    }
+    
+    public Number computeNumber(String key, NumberFunction function) 
+            throws ConfigException {
+        Contract.nonNull(key, "key");
+        Contract.nonNull(function, "function");
+        int slot = flushedNumberElements.indexOf(key);
+        Number old = slot >= 0 ? flushedNumberElements.numberAt(slot) : null;
+        Number value = function.apply(key, old);
+        if (value != null)
+            _serializeNumber(key, value);
+        NumberRepoContext context = _numberContext(key);
+        if (value != null) {
+            slot = flushedNumberElements.putNumber(key, value);
+            _numberStored(key, old, context, slot);
+            return value;
+        }
+        
+        boolean existed = flushedNumberElements.delete(key) | 
+                pendingNumberElements.delete(key);
+        _deleteNumber(key);
+        deletedNumberKeys.remove(key);
+        if (deletedNumberValues != null)
+            deletedNumberValues.remove(key);
+        if (context != null) {
+            ConfigEvent<NumberRepoContext> evt = numberEvent();
+            try {
+                if (existed) {
+                    context.reset(key, ChangeAction.DELETE);
+                    context.setNew(flushedNumberElements, -1);
+                    evt.raise(eventKey, this, context);
+                }
+            } finally {
+                evt.returnContext(context);
+            }
+        }
+        _raiseCommit(Repository.NUMBER, key, old, null);
+        return null;
+    }
+    
+    public ConfigBatch beginBatch() throws ConfigException {
+        return new ConfigBatch(new ConfigBatch.Committer() {
+            public void commit(ConfigBatch batch) {
+                _commitBatch(batch);
+            }
+        });
+    }
+    
+    /**
+     * Publishes a committed batch. Every change is stored as flushed and 
+     * serialized before the first event is raised, so listeners see the 
+     * whole batch; then the repository event is raised for each key that 
+     * changed and the commit event once. Numbers are serialized before 
+     * anything is stored, so a number the format rejects fails the commit 
+     * without changing the {@code Config}.
+     */
+    void _commitBatch(ConfigBatch batch) {
+        for (Map.Entry<String, Number> entry : batch.numbers.entrySet())
+            _serializeNumber(entry.getKey(), entry.getValue());
+        ConfigChangeSet changes = new ConfigChangeSet(batch.size());
+        for (String key : batch.deletedBooleans) {
+            _dropPending(key, Repository.BOOLEAN);
+            changes.add(Repository.BOOLEAN, key, 
+                    flushedBooleanElements.remove(key), null);
+            _deleteBool(key);
+        }
+        for (Map.Entry<String, Boolean> entry : batch.booleans.entrySet()) {
+            _dropPending(entry.getKey(), Repository.BOOLEAN);
+            changes.add(Repository.BOOLEAN, entry.getKey(), 
+                    flushedBooleanElements.put(entry.getKey(), 
+                            entry.getValue()), entry.getValue());
+            _serializeBool(entry.getKey(), entry.getValue().booleanValue());
+        }
+        for (String key : batch.deletedStrings) {
+            _dropPending(key, Repository.STRING);
+            changes.add(Repository.STRING, key, 
+                    flushedStringElements.remove(key), null);
+            _deleteString(key);
+        }
+        for (Map.Entry<String, String> entry : batch.strings.entrySet()) {
+            _dropPending(entry.getKey(), Repository.STRING);
+            changes.add(Repository.STRING, entry.getKey(), 
+                    flushedStringElements.put(entry.getKey(), 
+                            entry.getValue()), entry.getValue());
+            _serializeString(entry.getKey(), entry.getValue());
+        }
+        for (String key : batch.deletedNumbers) {
+            _dropPending(key, Repository.NUMBER);
+            changes.add(Repository.NUMBER, key, 
+                    flushedNumberElements.remove(key), null);
+            _deleteNumber(key);
+        }
+        for (Map.Entry<String, Number> entry : batch.numbers.entrySet()) {
+            String key = entry.getKey();
+            _dropPending(key, Repository.NUMBER);
+            int slot = flushedNumberElements.indexOf(key);
+            Number old = slot >= 0 ? 
+                    flushedNumberElements.numberAt(slot) : null;
+            flushedNumberElements.putNumber(key, entry.getValue());
+            changes.add(Repository.NUMBER, key, old, entry.getValue());
+        }
+        
+        for (int i = 0; i < changes.size(); ++i) {
+            String key = changes.getKey(i);
+            ChangeAction action = changes.getChangeAction(i);
+            switch (changes.getRepository(i)) {
+                case BOOLEAN:
+                    ConfigEvent<BooleanRepoContext> bEvt = booleanEvent();
+                    if (bEvt != null && bEvt.hasListeners(key))
+                        _raiseBoolean(bEvt, key, 
+                                (Boolean) changes.getOldValue(i), 
+                                (Boolean) changes.getNewValue(i), action);
+                    break;
+                case STRING:
+                    ConfigEvent<StringRepoContext> strEvt = stringEvent();
+                    if (strEvt != null && strEvt.hasListeners(key))
+                        _raiseString(strEvt, key, 
+                                (String) changes.getOldValue(i), 
+                                (String) changes.getNewValue(i), action);
+                    break;
+                case NUMBER:
+                    ConfigEvent<NumberRepoContext> nEvt = numberEvent();
+                    if (nEvt != null && nEvt.hasListeners(key))
+                        _raiseNumber(nEvt, key, 
+                                (Number) changes.getOldValue(i), 
+                                (Number) changes.getNewValue(i), action);
+                    break;
+            }
+        }
+        ConfigEvent<ConfigChangeSet> evt = commitEvent();
+        if (!changes.isEmpty() && evt != null && evt.hasListeners())
+            evt.raise(eventKey, this, changes);
+    }
+    
+    /**
+     * Forgets the pending put or delete of a key, once a value for it has 
+     * been stored as flushed directly.
+     */
+    private void _dropPending(String key, Repository repository) {
+        switch (repository) {
+            case BOOLEAN:
+                pendingBooleanElements.remove(key);
+                deletedBooleanKeys.remove(key);
+                if (deletedBooleanValues != null)
+                    deletedBooleanValues.remove(key);
+                break;
+            case STRING:
+                pendingStringElements.remove(key);
+                deletedStringKeys.remove(key);
+                if (deletedStringValues != null)
+                    deletedStringValues.remove(key);
+                break;
+            case NUMBER:
+                pendingNumberElements.delete(key);
+                deletedNumberKeys.remove(key);
+                if (deletedNumberValues != null)
+                    deletedNumberValues.remove(key);
+                break;
+        }
+    }
+    
+    /**
+     * Completes an atomic store into the flushed {@code Number} repository, 
+     * serialized like a flushed put before it was stored: the store replaces 
+     * any pending put or delete of the key, the event is raised with the 
+     * stored slot as the new value and then the commit event for the single 
+     * change.
+     */
+    private void _numberStored(String key, Number old, 
+            NumberRepoContext context, int slot) {
+        pendingNumberElements.delete(key);
+        deletedNumberKeys.remove(key);
+        if (deletedNumberValues != null)
+            deletedNumberValues.remove(key);
+        if (context != null) {
+            ConfigEvent<NumberRepoContext> evt = numberEvent();
+            context.reset(key, ChangeAction.PUT);
+            context.setNew(flushedNumberElements, slot);
+            try {
+                evt.raise(eventKey, this, context);
+            } finally {
+                evt.returnContext(context);
+            }
+        }
+        if (_hasCommitListeners())
+            _raiseCommit(Repository.NUMBER, key, old, 
+                    flushedNumberElements.numberAt(slot));
+    }
+    
+    /**
+     * Returns the flushed {@code Number} in a slot for the commit event of an 
+     * atomic update, or {@code null} if nobody listens to it.
+     */
+    private Number _committedNumber(int slot) {
+        return slot >= 0 && _hasCommitListeners() ? 
+                flushedNumberElements.numberAt(slot) : null;
+    }
+    
+    private boolean _hasCommitListeners() {
+        ConfigEvent<ConfigChangeSet> evt = commitEvent();
+        return evt != null && evt.hasListeners();
+    }
+    
+    /**
+     * Raises the commit event for a single change stored as flushed by an 
+     * atomic update, unless the value is unchanged.
+     */
+    private void _raiseCommit(Repository repository, String key, 
+            Object oldValue, Object newValue) {
+        if (!_hasCommitListeners())
+            return;
+        ConfigChangeSet changes = new ConfigChangeSet(1);
+        changes.add(repository, key, oldValue, newValue);
+        if (!changes.isEmpty())
+            commitEvent().raise(eventKey, this, changes);
+    }
+    
+    
+    
+    
     public ConfigEvent<NumberRepoContext> numberEvent() {
         return numberRepoEvent;
     }
@@ -571,6 +1008,10 @@ abstract strictfp class PrivateConfigBase implements Config {
         return stringRepoEvent;
     }
     
+    public ConfigEvent<ConfigChangeSet> commitEvent() {
+        return commitEvent;
+    }
+    
     
     
     
@@ -620,10 +1061,64 @@ abstract strictfp class PrivateConfigBase implements Config {
         return map;
     }
     
+    public ConfigChangeSet diff(Config other) {
+        return Configs.diff(this, other, null);
+    }
+    
+    public void applyPatch(ConfigChangeSet patch) throws ConfigException {
+        Configs.applyPatch(this, patch);
+    }
+    
+    public long getModCount() {
+        return flushedBooleanElements.writeCount + 
+                flushedNumberElements.writeCount + 
+                flushedStringElements.writeCount;
+    }
+    
+    public long getFingerprint() {
+        return Configs.fingerprint(flushedBooleanElements.fingerprint(), 
+                flushedNumberElements.fingerprint(), 
+                flushedStringElements.fingerprint());
+    }
+    
+    /**
+     * Returns {@code true} if the flushed state is the one the last save 
+     * wrote to {@code file} and the file still is as that save left it. 
+     * Equal fingerprints only count once they are kept up to date anyway.
+     */
+    private boolean _isSaved(File file) {
+        if (!file.equals(savedFile) || file.length() != savedLength || 
+                file.lastModified() != savedLastModified)
+            return false;
+        if (getModCount() == savedModCount)
+            return true;
+        return savedFingerprinted && _isFingerprinted() && 
+                getFingerprint() == savedFingerprint;
+    }
+    
+    /**
+     * Returns {@code true} once the fingerprint was asked for and is kept up 
+     * to date by every change.
+     */
+    private boolean _isFingerprinted() {
+        return flushedBooleanElements.hashes != null && 
+                flushedNumberElements.hashes != null && 
+                flushedStringElements.hashes != null;
+    }
+    
     
     
     
     public void flushState() throws ConfigException {
+        ConfigEvent<ConfigChangeSet> evt = commitEvent();
+        ConfigChangeSet changes = null;
+        if (evt != null && evt.hasListeners()) {
+            changes = new ConfigChangeSet(pendingBooleanElements.size() + 
+                    pendingStringElements.size() + 
+                    pendingNumberElements.size() + deletedBooleanKeys.size() + 
+                    deletedStringKeys.size() + deletedNumberKeys.size());
+            _collectChanges(changes);
+        }
         try {
             
             // pendingBooleanElements.entrySet().stream().forEach(
@@ -664,6 +1159,13 @@ abstract strictfp class PrivateConfigBase implements Config {
             }
             deletedNumberKeys.clear();
             
+            if (deletedBooleanValues != null)
+                deletedBooleanValues.clear();
+            if (deletedStringValues != null)
+                deletedStringValues.clear();
+            if (deletedNumberValues != null)
+                deletedNumberValues.clear();
+                
         } catch (DOMException ex) {
             // special case
             throw new ConfigException(ex);
@@ -673,6 +1175,59 @@ abstract strictfp class PrivateConfigBase implements Config {
             throw new ConfigException(ex);
             
         }
+        if (changes != null && !changes.isEmpty())
+            evt.raise(eventKey, this, changes);
+    }
+    
+    /**
+     * Records every pending put and delete with the value it replaces.
+     */
+    private void _collectChanges(ConfigChangeSet changes) {
+        for (Map.Entry<String, Boolean> entry : 
+                pendingBooleanElements.entrySet()) {
+            String key = entry.getKey();
+            Boolean old = flushedBooleanElements.get(key);
+            if (old == null && deletedBooleanValues != null)
+                old = deletedBooleanValues.get(key);
+            changes.add(Repository.BOOLEAN, key, old, entry.getValue());
+        }
+        for (String key : deletedBooleanKeys) {
+            if (deletedBooleanValues != null)
+                changes.add(Repository.BOOLEAN, key, 
+                        deletedBooleanValues.get(key), null);
+        }
+        
+        for (Map.Entry<String, String> entry : 
+                pendingStringElements.entrySet()) {
+            String key = entry.getKey();
+            String old = flushedStringElements.get(key);
+            if (old == null && deletedStringValues != null)
+                old = deletedStringValues.get(key);
+            changes.add(Repository.STRING, key, old, entry.getValue());
+        }
+        for (String key : deletedStringKeys) {
+            if (deletedStringValues != null)
+                changes.add(Repository.STRING, key, 
+                        deletedStringValues.get(key), null);
+        }
+        
+        final NumberRepository pending = pendingNumberElements;
+        for (int slot = 0; slot < pending.limit; ++slot) {
+            String key = pending.keys[slot];
+            if (key == null)
+                continue;
+            int flushed = flushedNumberElements.indexOf(key);
+            Number old = flushed >= 0 ? 
+                    flushedNumberElements.numberAt(flushed) : null;
+            if (old == null && deletedNumberValues != null)
+                old = deletedNumberValues.get(key);
+            changes.add(Repository.NUMBER, key, old, pending.numberAt(slot));
+        }
+        for (String key : deletedNumberKeys) {
+            if (deletedNumberValues != null)
+                changes.add(Repository.NUMBER, key, 
+                        deletedNumberValues.get(key), null);
+        }
     }
     
     /**
@@ -729,11 +1284,34 @@ abstract strictfp class PrivateConfigBase implements Config {
         
         if (file.isDirectory())
             throw new ConfigException(file + " cannot be a directory");
+        if (_isSaved(file))
+            return;
         
+        long modCount = getModCount();
+        _writeFile(file);
+        savedFile = file;
+        savedModCount = modCount;
+        savedFingerprinted = _isFingerprinted();
+        savedFingerprint = savedFingerprinted ? getFingerprint() : 0L;
+        savedLength = file.length();
+        savedLastModified = file.lastModified();
+    }
+    
+    /**
+     * Writes the flushed entries to a file through 
+     * {@link #save(OutputStream)}, overwriting it in place.
+     * 
+     * @param file the file to write
+     * 
+     * @throws ConfigException if the file could not be written
+     */
+    void _writeFile(File file) throws ConfigException {
         FileOutputStream outputStream = null;
         try {
+            
             outputStream = new FileOutputStream(file);
             save(outputStream);
+            outputStream = null;
             
         } catch (FileNotFoundException ex) {
             
@@ -751,30 +1329,61 @@ abstract strictfp class PrivateConfigBase implements Config {
         }
     }
     
+    /**
+     * The implementation to write the flushed entries in the canonical 
+     * format. Entries are written one at a time, straight from the flushed 
+     * repositories.
+     * 
+     * @param writer the {@code Writer} to write to
+     * 
+     * @throws IOException if writing failed
+     */
+    abstract void write(Writer writer) throws IOException;
+    
     public void save(OutputStream outputStream) 
             throws ConfigException, UnsupportedOperationException {
         Contract.nonNull(outputStream);
         
-        PrintStream printStream = null;
+        Writer writer = null;
         try {
             
-            printStream = new PrintStream(outputStream, false, UTF_8);
-            printStream.print(toCanonical());
-            printStream.flush();
+            writer = new BufferedWriter(
+                    new OutputStreamWriter(outputStream, UTF_8));
+            write(indexed ? new ConfigIndex(writer) : writer);
+            writer.flush();
             
         } catch (UnsupportedEncodingException ex) {
             
             throw new InternalError(String.valueOf(ex));
             
+        } catch (IOException ex) {
+            
+            throw new ConfigException(ex);
+            
         } finally {
             
-            if (printStream != null) {
-                printStream.close();
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ex) {
+                }
             }
             
         }
     }
     
+    /**
+     * Drops the flushed entries of all keys but the specified ones, to 
+     * narrow a full read down to the keys that were asked for.
+     * 
+     * @param keys the keys to keep
+     */
+    void _retainKeys(Set<String> keys) {
+        flushedBooleanElements.keySet().retainAll(keys);
+        flushedStringElements.keySet().retainAll(keys);
+        flushedNumberElements.keySet().retainAll(keys);
+    }
+    
     public void save() 
             throws ConfigException, UnsupportedOperationException, IOException {
         if (fileHandle == null)
@@ -0,0 +1,596 @@
+/*******************************************************************************
+ * Copyright 2014 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package ca.raihan.cfg;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Base class of the repositories. Keys are assigned to slots which never move
+ * for as long as the key is present: growing the table copies the slot arrays
+ * as they are and only rebuilds the open addressing index on top of them.
+ * Subclasses keep their values in arrays indexed by slot.
+ * <p>
+ * Every slot carries a version which changes whenever the key occupying it is
+ * removed, so a slot remembered together with its version can later be
+ * checked for validity with two array loads (see {@link ConfigKey}).
+ * <p>
+ * Every change of a key or value is counted in {@link #writeCount}. Once 
+ * {@link #fingerprint()} has been asked for, the table also keeps the hash 
+ * of each entry and their sum, updated with every change, so the 
+ * fingerprint of the whole content costs nothing to read again.
+ * 
+ * @author Pranjal Raihan
+ * 
+ * @param <V> the type of values
+ */
+abstract class SlotTable<V> extends AbstractMap<String, V> {
+    
+    /**
+     * The initial number of slots
+     */
+    static final int DEFAULT_CAPACITY = 16;
+    
+    
+    /**
+     * The key for each slot, {@code null} if the slot is free
+     */
+    String[] keys;
+    
+    /**
+     * The version of each slot
+     */
+    int[] versions;
+    
+    /**
+     * Open addressing index, holds {@code slot + 1} or {@code 0} if empty
+     */
+    int[] index;
+    
+    /**
+     * Free slots below {@link #limit}
+     */
+    int[] freeSlots;
+    
+    /**
+     * The number of free slots below {@link #limit}
+     */
+    int freeCount;
+    
+    /**
+     * The number of slots that have ever been used
+     */
+    int limit;
+    
+    /**
+     * The number of entries
+     */
+    int size;
+    
+    /**
+     * Structural modification count, for iterators
+     */
+    int modCount;
+    
+    /**
+     * The number of changes of keys or values
+     */
+    long writeCount;
+    
+    /**
+     * The hash of the entry in each slot, {@code null} until the fingerprint 
+     * is first asked for
+     */
+    long[] hashes;
+    
+    /**
+     * The sum of the {@link #hashes} of all entries
+     */
+    long fingerprint;
+    
+    
+    
+    
+    SlotTable(int capacity) {
+        Contract.require(capacity > 0, "capacity must be positive");
+        keys = new String[capacity];
+        versions = new int[capacity];
+        freeSlots = new int[capacity];
+        index = new int[tableSizeFor(capacity)];
+    }
+    
+    
+    
+    
+    /**
+     * Returns the value of an occupied slot.
+     * 
+     * @param slot the slot
+     * 
+     * @return the value
+     */
+    abstract V valueAt(int slot);
+    
+    /**
+     * Resizes the value arrays to the specified capacity.
+     * 
+     * @param capacity the new number of slots
+     */
+    abstract void resizeValues(int capacity);
+    
+    /**
+     * Releases any reference held by the value arrays for a slot.
+     * 
+     * @param from the first slot
+     * @param to the slot after the last one
+     */
+    abstract void clearValues(int from, int to);
+    
+    /**
+     * Returns the hash of the value of an occupied slot. Equal values must 
+     * hash equally however they were put, raw or not.
+     * 
+     * @param slot the slot
+     * 
+     * @return the hash of the value
+     */
+    abstract long valueHash(int slot);
+    
+    
+    
+    
+    /**
+     * Returns the slot of a key, or {@code -1} if the key is absent.
+     * 
+     * @param key the key to look for
+     * 
+     * @return the slot of a key, or {@code -1} if the key is absent
+     */
+    final int indexOf(Object key) {
+        if (key == null)
+            return -1;
+        final int[] index = this.index;
+        final int mask = index.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            int slot = index[i] - 1;
+            if (slot < 0)
+                return -1;
+            if (key.equals(keys[slot]))
+                return slot;
+        }
+    }
+    
+    /**
+     * Returns {@code true} if the slot still holds the key it held when it
+     * had the specified version.
+     * 
+     * @param slot the slot
+     * @param version the remembered version of the slot
+     * 
+     * @return {@code true} if the slot is still valid
+     */
+    final boolean isValid(int slot, int version) {
+        return slot >= 0 && slot < limit && versions[slot] == version &&
+                keys[slot] != null;
+    }
+    
+    /**
+     * Removes a key without boxing its value.
+     * 
+     * @param key the key to remove
+     * 
+     * @return {@code true} if the key was present
+     */
+    final boolean delete(Object key) {
+        if (key == null)
+            return false;
+        final int mask = index.length - 1;
+        int i = hash(key) & mask;
+        for (;;) {
+            int slot = index[i] - 1;
+            if (slot < 0)
+                return false;
+            if (key.equals(keys[slot])) {
+                removeAt(i, slot);
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+    
+    
+    
+    
+    /**
+     * Records that the value of a slot was put. Subclasses call this after 
+     * every put, but not after decoding a raw value in place.
+     * 
+     * @param slot the slot
+     */
+    final void written(int slot) {
+        writeCount++;
+        if (hashes != null) {
+            long h = entryHash(keys[slot], valueHash(slot));
+            fingerprint += h - hashes[slot];
+            hashes[slot] = h;
+        }
+    }
+    
+    /**
+     * Returns the fingerprint of the content: the sum of the hashes of all 
+     * entries, so it does not depend on the order of the entries. The first 
+     * call hashes every entry; from then on the fingerprint is kept up to 
+     * date by every change.
+     * 
+     * @return the fingerprint
+     */
+    final long fingerprint() {
+        if (hashes == null) {
+            long[] hs = new long[keys.length];
+            long sum = 0L;
+            for (int slot = 0; slot < limit; ++slot) {
+                if (keys[slot] == null)
+                    continue;
+                hs[slot] = entryHash(keys[slot], valueHash(slot));
+                sum += hs[slot];
+            }
+            hashes = hs;
+            fingerprint = sum;
+        }
+        return fingerprint;
+    }
+    
+    
+    
+    
+    @Override
+    public int size() {
+        return size;
+    }
+    
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+    
+    @Override
+    public V get(Object key) {
+        int slot = indexOf(key);
+        return slot < 0 ? null : valueAt(slot);
+    }
+    
+    @Override
+    public V remove(Object key) {
+        int slot = indexOf(key);
+        if (slot < 0)
+            return null;
+        V old = valueAt(slot);
+        delete(key);
+        return old;
+    }
+    
+    @Override
+    public void clear() {
+        if (limit == 0)
+            return;
+        Arrays.fill(keys, 0, limit, null);
+        clearValues(0, limit);
+        // invalidate every slot handed out so far
+        for (int i = 0; i < limit; ++i)
+            versions[i]++;
+        Arrays.fill(index, 0);
+        if (hashes != null)
+            Arrays.fill(hashes, 0, limit, 0L);
+        fingerprint = 0L;
+        size = 0;
+        limit = 0;
+        freeCount = 0;
+        modCount++;
+        writeCount++;
+    }
+    
+    @Override
+    public Set<Map.Entry<String, V>> entrySet() {
+        return new EntrySet();
+    }
+    
+    
+    
+    
+    /**
+     * Returns the slot for a key, allocating one if the key is absent.
+     * 
+     * @param key the key
+     * 
+     * @return the slot for the key
+     */
+    final int slotFor(String key) {
+        Contract.nonNull(key, "key");
+        int mask = index.length - 1;
+        int i = hash(key) & mask;
+        for (;;) {
+            int slot = index[i] - 1;
+            if (slot < 0)
+                break;
+            if (key.equals(keys[slot]))
+                return slot;
+            i = (i + 1) & mask;
+        }
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (limit == keys.length) {
+                grow();
+                // the index was rebuilt, find the insertion point again
+                mask = index.length - 1;
+                i = hash(key) & mask;
+                while (index[i] != 0)
+                    i = (i + 1) & mask;
+            }
+            slot = limit++;
+        }
+        keys[slot] = key;
+        index[i] = slot + 1;
+        size++;
+        modCount++;
+        return slot;
+    }
+    
+    /**
+     * Frees a slot and closes the gap it leaves in the index
+     * (backward shift deletion).
+     */
+    private void removeAt(int i, int slot) {
+        keys[slot] = null;
+        clearValues(slot, slot + 1);
+        versions[slot]++;
+        freeSlots[freeCount++] = slot;
+        size--;
+        modCount++;
+        writeCount++;
+        if (hashes != null) {
+            fingerprint -= hashes[slot];
+            hashes[slot] = 0L;
+        }
+        
+        final int[] index = this.index;
+        final int mask = index.length - 1;
+        int hole = i;
+        int j = i;
+        for (;;) {
+            j = (j + 1) & mask;
+            int s = index[j] - 1;
+            if (s < 0)
+                break;
+            int home = hash(keys[s]) & mask;
+            // move the entry back if its home is not in (hole, j]
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                index[hole] = index[j];
+                hole = j;
+            }
+        }
+        index[hole] = 0;
+    }
+    
+    private void grow() {
+        int capacity = keys.length << 1;
+        keys = Arrays.copyOf(keys, capacity);
+        versions = Arrays.copyOf(versions, capacity);
+        freeSlots = Arrays.copyOf(freeSlots, capacity);
+        if (hashes != null)
+            hashes = Arrays.copyOf(hashes, capacity);
+        resizeValues(capacity);
+        
+        int[] index = new int[tableSizeFor(capacity)];
+        int mask = index.length - 1;
+        for (int slot = 0; slot < limit; ++slot) {
+            if (keys[slot] == null)
+                continue;
+            int i = hash(keys[slot]) & mask;
+            while (index[i] != 0)
+                i = (i + 1) & mask;
+            index[i] = slot + 1;
+        }
+        this.index = index;
+    }
+    
+    
+    
+    
+    static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+    
+    /**
+     * Hashes a key and the hash of its value into the 64 bit hash of an 
+     * entry.
+     */
+    static long entryHash(String key, long valueHash) {
+        return mix(textHash(key) * 31L + valueHash);
+    }
+    
+    /**
+     * A 64 bit FNV-1a hash of the characters of a {@code String}.
+     */
+    static long textHash(String text) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); ++i) {
+            h ^= text.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+    
+    /**
+     * Spreads the bits of a 64 bit hash (the MurmurHash3 finalizer).
+     */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+    
+    /**
+     * Keeps the index at most half full.
+     */
+    static int tableSizeFor(int capacity) {
+        int n = 1;
+        while (n < capacity << 1)
+            n <<= 1;
+        return n;
+    }
+    
+    
+    
+    
+    final class EntrySet extends AbstractSet<Map.Entry<String, V>> {
+        
+        public Iterator<Map.Entry<String, V>> iterator() {
+            return new EntryIterator();
+        }
+        
+        public int size() {
+            return size;
+        }
+        
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            int slot = indexOf(e.getKey());
+            if (slot < 0)
+                return false;
+            V value = valueAt(slot);
+            return value == null ?
+                    e.getValue() == null :
+                    value.equals(e.getValue());
+        }
+        
+        @Override
+        public void clear() {
+            SlotTable.this.clear();
+        }
+        
+    }
+    
+    final class EntryIterator implements Iterator<Map.Entry<String, V>> {
+        
+        int next = advance(0);
+        
+        int last = -1;
+        
+        int expectedModCount = modCount;
+        
+        
+        
+        
+        private int advance(int from) {
+            while (from < limit && keys[from] == null)
+                from++;
+            return from;
+        }
+        
+        public boolean hasNext() {
+            return next < limit;
+        }
+        
+        public Map.Entry<String, V> next() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (next >= limit)
+                throw new NoSuchElementException("Iterator out of bounds");
+            last = next;
+            next = advance(next + 1);
+            return new Entry<V>(keys[last], valueAt(last));
+        }
+        
+        public void remove() {
+            if (last < 0)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            delete(keys[last]);
+            last = -1;
+            expectedModCount = modCount;
+        }
+        
+    }
+    
+    static final class Entry<V> implements Map.Entry<String, V> {
+        
+        final String key;
+        
+        final V value;
+        
+        
+        
+        
+        Entry(String key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+        
+        
+        
+        
+        public String getKey() {
+            return key;
+        }
+        
+        public V getValue() {
+            return value;
+        }
+        
+        public V setValue(V value) {
+            throw new UnsupportedOperationException("setValue not supported");
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return key.equals(e.getKey()) && (value == null ?
+                    e.getValue() == null :
+                    value.equals(e.getValue()));
+        }
+        
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+        
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+        
+    }
+    
+}
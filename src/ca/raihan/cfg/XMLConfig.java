@@ -16,28 +16,34 @@
 
 package ca.raihan.cfg;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.Writer;
 
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
-import org.w3c.dom.Attr;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
 import org.w3c.dom.DOMException;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 /**
  * XML-based implementation of {@code Config}.
@@ -80,10 +86,39 @@ public final strictfp class XMLConfig extends PrivateConfigBase {
     
     
     /**
-     * The base XML document
+     * The XML declaration of the canonical format
+     */
+    static final String XML_DECLARATION = 
+            "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>";
+    
+    /**
+     * One level of indentation of the canonical format
+     */
+    static final String INDENT = "    ";
+    
+    /**
+     * What follows the {@link ConfigIndex} in the document, which holds it 
+     * in a comment after the root element
+     */
+    static final String INDEX_SUFFIX = "-->\n";
+    
+    /**
+     * Creates the readers used to load configs
+     */
+    static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+    
+    
+    /**
+     * The base XML document, {@code null} until first required (see 
+     * {@link #document()})
      */
     Document xmlDoc;
     
+    /**
+     * The name of the root element
+     */
+    String rootName = ROOT_PREFIX;
+    
     
     /**
      * The XML element corresponding to {@link Repository#NUMBER}
@@ -101,6 +136,22 @@ public final strictfp class XMLConfig extends PrivateConfigBase {
     Element booleanElements;
     
     
+    /**
+     * The entry elements of {@link #numberElements}, by key
+     */
+    Map<String, Element> numberIndex;
+    
+    /**
+     * The entry elements of {@link #stringElements}, by key
+     */
+    Map<String, Element> stringIndex;
+    
+    /**
+     * The entry elements of {@link #booleanElements}, by key
+     */
+    Map<String, Element> booleanIndex;
+    
+    
     
     
     /**
@@ -129,17 +180,22 @@ public final strictfp class XMLConfig extends PrivateConfigBase {
     static XMLConfig naked() {
         XMLConfig rv = uninitialized();
         
-        rv.flushedBooleanElements = new HashMap<String, Boolean>();
+        rv.flushedBooleanElements = 
+                new ObjectRepository<Boolean>(ObjectRepository.BOOLEAN_DECODER);
         rv.pendingBooleanElements = new HashMap<String, Boolean>();
-        rv.deletedBooleanKeys = new ArrayList<String>();
+        rv.deletedBooleanKeys = new HashSet<String>();
         
-        rv.flushedStringElements = new HashMap<String, String>();
+        rv.flushedStringElements = new ObjectRepository<String>();
         rv.pendingStringElements = new HashMap<String, String>();
-        rv.deletedStringKeys = new ArrayList<String>();
+        rv.deletedStringKeys = new HashSet<String>();
+        
+        rv.flushedNumberElements = new NumberRepository();
+        rv.pendingNumberElements = new NumberRepository();
+        rv.deletedNumberKeys = new HashSet<String>();
         
-        rv.flushedNumberElements = new HashMap<String, Number>();
-        rv.pendingNumberElements = new HashMap<String, Number>();
-        rv.deletedNumberKeys = new ArrayList<String>();
+        rv.numberIndex = new HashMap<String, Element>();
+        rv.stringIndex = new HashMap<String, Element>();
+        rv.booleanIndex = new HashMap<String, Element>();
         
         rv.booleanRepoEvent = 
                 new ConfigEvent<BooleanRepoContext>(rv.eventKey);
@@ -147,71 +203,54 @@ public final strictfp class XMLConfig extends PrivateConfigBase {
                 new ConfigEvent<StringRepoContext>(rv.eventKey);
         rv.numberRepoEvent = 
                 new ConfigEvent<NumberRepoContext>(rv.eventKey);
+        rv.commitEvent = new ConfigEvent<ConfigChangeSet>(rv.eventKey);
         
         return rv;
     }
     
     /**
-     * Returns a new {@code XMLConfig} with no entries.
+     * Returns a new {@code XMLConfig} with no entries. The XML document is 
+     * only built when it is first required.
      * 
      * @return a new {@code XMLConfig} with no entries
      */
     static XMLConfig empty() {
-        XMLConfig rv = naked();
-        Document xmlDoc;
-        try {
-            xmlDoc = DocumentBuilderFactory.newInstance()
-                    .newDocumentBuilder().newDocument();
-        } catch (ParserConfigurationException ex) {
-            throw new ConfigException(ex);
-        }
-        
-        Element rootElement = xmlDoc.createElement(ROOT_PREFIX);
-        
-        Element numberElements = xmlDoc.createElement(
-                Repository.NUMBER.getName());
-        rootElement.appendChild(numberElements);
-        
-        Element stringElements = xmlDoc.createElement(
-                Repository.STRING.getName());
-        rootElement.appendChild(stringElements);
-        
-        Element booleanElements = xmlDoc.createElement(
-                Repository.BOOLEAN.getName());
-        rootElement.appendChild(booleanElements);
-        
-        xmlDoc.appendChild(rootElement);
-        xmlDoc.setXmlStandalone(true);
-        
-        rv.stringElements = stringElements;
-        rv.numberElements = numberElements;
-        rv.booleanElements = booleanElements;
-        rv.xmlDoc = xmlDoc;
-        
-        return rv;
+        return naked();
     }
     
     /**
      * Reads and parses XML from a {@code File}.
      * 
      * @param file the {@code File} to parse from
+     * @param mode the {@code LoadMode}
      * 
      * @return the parsed {@code XMLConfig}
      * 
      * @throws ConfigException if the parsing failed
      */
-    static XMLConfig read(File file) throws ConfigException {
-        XMLConfig rv = naked();
+    static XMLConfig read(File file, LoadMode mode) 
+            throws ConfigException {
+        Contract.nonNull(file);
+        InputStream in = null;
         try {
-            Document xmlDoc = DocumentBuilderFactory.newInstance()
-                    .newDocumentBuilder().parse(file);
-            return readAndSetupEntriesImpl(rv, xmlDoc);
-        } catch (SAXException ex) {
-            throw new ConfigException(ex);
-        } catch (ParserConfigurationException ex) {
+            
+            in = new FileInputStream(file);
+            return readAndSetupEntriesImpl(naked(), 
+                    INPUT_FACTORY.createXMLStreamReader(
+                            file.toURI().toString(), in), mode);
+                            
+        } catch (FileNotFoundException ex) {
+            
             throw new ConfigException(ex);
-        } catch (IOException ex) {
+            
+        } catch (XMLStreamException ex) {
+            
             throw new ConfigException(ex);
+            
+        } finally {
+            
+            closeQuietly(in);
+            
         }
     }
     
@@ -219,24 +258,28 @@ public final strictfp class XMLConfig extends PrivateConfigBase {
      * Reads and parses XML from a {@code InputStream}.
      * 
      * @param in the {@code InputStream} to parse from
+     * @param mode the {@code LoadMode}
      * 
      * @return the parsed {@code XMLConfig}
      * 
      * @throws ConfigException if the parsing failed
      */
-    static XMLConfig read(InputStream in) throws ConfigException {
+    static XMLConfig read(InputStream in, LoadMode mode) 
+            throws ConfigException {
         Contract.nonNull(in);
-        XMLConfig rv = naked();
         try {
-            Document xmlDoc = DocumentBuilderFactory.newInstance()
-                    .newDocumentBuilder().parse(in);
-            return readAndSetupEntriesImpl(rv, xmlDoc);
-        } catch (SAXException ex) {
-            throw new ConfigException(ex);
-        } catch (ParserConfigurationException ex) {
-            throw new ConfigException(ex);
-        } catch (IOException ex) {
+            
+            return readAndSetupEntriesImpl(naked(), 
+                    INPUT_FACTORY.createXMLStreamReader(in), mode);
+                    
+        } catch (XMLStreamException ex) {
+            
             throw new ConfigException(ex);
+            
+        } finally {
+            
+            closeQuietly(in);
+            
         }
     }
     
@@ -244,24 +287,28 @@ public final strictfp class XMLConfig extends PrivateConfigBase {
      * Reads and parses XML from a {@code Reader}.
      * 
      * @param reader the {@code Reader} to parse from
+     * @param mode the {@code LoadMode}
      * 
      * @return the parsed {@code XMLConfig}
      * 
      * @throws ConfigException if the parsing failed
      */
-    static XMLConfig read(Reader reader) throws ConfigException {
+    static XMLConfig read(Reader reader, LoadMode mode) 
+            throws ConfigException {
         Contract.nonNull(reader);
-        XMLConfig rv = naked();
         try {
-            Document xmlDoc = DocumentBuilderFactory.newInstance()
-                    .newDocumentBuilder().parse(new InputSource(reader));
-            return readAndSetupEntriesImpl(rv, xmlDoc);
-        } catch (SAXException ex) {
-            throw new ConfigException(ex);
-        } catch (ParserConfigurationException ex) {
-            throw new ConfigException(ex);
-        } catch (IOException ex) {
+            
+            return readAndSetupEntriesImpl(naked(), 
+                    INPUT_FACTORY.createXMLStreamReader(reader), mode);
+                    
+        } catch (XMLStreamException ex) {
+            
             throw new ConfigException(ex);
+            
+        } finally {
+            
+            closeQuietly(reader);
+            
         }
     }
     
@@ -269,114 +316,152 @@ public final strictfp class XMLConfig extends PrivateConfigBase {
      * Reads and parses XML from a {@code String}.
      * 
      * @param strXML the {@code String} to parse from
+     * @param mode the {@code LoadMode}
      * 
      * @return the parsed {@code XMLConfig}
      * 
      * @throws ConfigException if the parsing failed
      */
-    static XMLConfig parse(String strXML) throws ConfigException {
+    static XMLConfig parse(String strXML, LoadMode mode) 
+            throws ConfigException {
         Contract.nonNull(strXML);
-        return read((Reader) new StringReader(strXML));
+        return read((Reader) new StringReader(strXML), mode);
     }
     
     /**
-     * Sets up the document for use.
+     * Reads the entries of some keys from a file. Only the entries are read 
+     * from a file that ends with a {@link ConfigIndex}, other files are read 
+     * in full.
+     * 
+     * @param file the {@code File} to read from
+     * @param keys the keys to read
+     * @param mode the {@code LoadMode}
+     * 
+     * @return an {@code XMLConfig} holding the entries of the keys
+     * 
+     * @throws ConfigException if the reading failed
+     */
+    static XMLConfig readKeys(File file, Set<String> keys, 
+            final LoadMode mode) throws ConfigException {
+        Contract.nonNull(file);
+        final XMLConfig rv = naked();
+        boolean found = ConfigIndex.find(file, INDEX_SUFFIX, keys, 
+                new ConfigIndex.EntryHandler() {
+                    public void entry(Repository repository, String text) {
+                        rv.readIndexedEntry(text, repository, mode);
+                    }
+                });
+        XMLConfig result = found ? rv : read(file, mode);
+        result._retainKeys(keys);
+        return result;
+    }
+    
+    /**
+     * Reads an entry element on its own into a flushed repository.
+     */
+    private void readIndexedEntry(String text, Repository repository, 
+            LoadMode mode) {
+        XMLStreamReader reader = null;
+        try {
+            
+            reader = INPUT_FACTORY.createXMLStreamReader(
+                    new StringReader(text));
+            if (reader.nextTag() != XMLStreamConstants.START_ELEMENT ||
+                    !ENTRY_FLAG.equals(reader.getLocalName())) {
+                throw new ConfigException("Index does not point at an entry");
+            }
+            readEntry(reader, repository, mode == LoadMode.LAZY);
+            
+        } catch (Configs.BooleanParsingException ex) {
+            
+            throw new ConfigException(ex);
+            
+        } catch (NumberFormatException ex) {
+            
+            throw new ConfigException(ex);
+            
+        } catch (XMLStreamException ex) {
+            
+            throw new ConfigException(ex);
+            
+        } finally {
+            
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException ex) {
+                }
+            }
+            
+        }
+    }
+    
+    /**
+     * Fills the flushed repositories in a single pass over the XML, no 
+     * document is built.
      * 
      * @param rv the {@code XMLConfig} to set up
-     * @param xmlDoc
+     * @param reader the XML to read, closed when done
+     * @param mode the {@code LoadMode}
      * 
-     * @return 
+     * @return {@code rv}
      */
     static XMLConfig readAndSetupEntriesImpl(final XMLConfig rv, 
-            final Document xmlDoc) {
+            final XMLStreamReader reader, final LoadMode mode) {
+        final boolean lazy = mode == LoadMode.LAZY;
         try {
             
-            xmlDoc.setXmlStandalone(true);
-            rv.xmlDoc = xmlDoc;
-            Element root = xmlDoc.getDocumentElement();
-            
-            if (root == null) {
+            if (reader.nextTag() != XMLStreamConstants.START_ELEMENT) {
                 throw new ConfigException("missing root element");
             }
+            rv.rootName = reader.getLocalName();
             
-            NodeList nodeList;
-            Element repoElement;
-            Node repoNode;
-            NodeList elementNodes;
-            int len;
-            
-            for (Repository repository : Repository.values()) {
-                nodeList = root.getElementsByTagName(
-                        repository.getName());
-                len = nodeList.getLength();
-                if (len == 0) {
-                    throw Configs.newMissingRepoException(repository);
-                } else if (len > 1) {
-                    throw Configs.newDuplicateRepoException(repository);
+            final Repository[] repositories = Repository.values();
+            final boolean[] found = new boolean[repositories.length];
+            Repository repository = null;
+            int repoDepth = 0;
+            int depth = 1;
+            
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (depth-- == repoDepth) {
+                        repository = null;
+                    }
+                    continue;
                 }
-                repoNode = nodeList.item(0);
-                if (!(repoNode instanceof Element)) {
-                    throw newInvalidNodeClassException(Element.class);
+                if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
                 }
-                repoElement = (Element) repoNode;
+                depth++;
+                String name = reader.getLocalName();
                 
-                switch (repository) {
-                    case NUMBER:
-                        rv.numberElements = repoElement;
-                        break;
-                    case BOOLEAN:
-                        rv.booleanElements = repoElement;
-                        break;
-                    case STRING:
-                        rv.stringElements = repoElement;
-                        break;
+                if (repository != null) {
+                    if (ENTRY_FLAG.equals(name)) {
+                        rv.readEntry(reader, repository, lazy);
+                    }
+                    continue;
                 }
                 
-                elementNodes = repoElement.getElementsByTagName(ENTRY_FLAG);
-                len = elementNodes.getLength();
-                for (int j = 0; j < len; ++j) {
-                    Node n = elementNodes.item(j);
-                    if (n instanceof Element) {
-                        Element e = (Element) n;
-                        Attr nameAttr = e.getAttributeNode(KEY_FLAG);
-                        if (nameAttr == null) {
-                            throw newMalformedKeyAttrException(repository);
-                        }
-                        String key = nameAttr.getValue();
-                        Attr valueAttr = e.getAttributeNode(VALUE_FLAG);
-                        if (valueAttr == null) {
-                            throw newMalformedValueAttrException(
-                                    key, repository);
-                        }
-                        String value = valueAttr.getValue();
-                        // Number uses a different format
-                        if (repository == Repository.NUMBER) {
-                            Attr typeAttr = e.getAttributeNode(
-                                    TYPE_FLAG);
-                            if (typeAttr == null) {
-                                throw newMalformedValueAttrException(
-                                        key, repository);
-                            }
-                            rv.flushedNumberElements.put(
-                                    key, 
-                                    Configs.parseNumberFromType(
-                                            value, 
-                                            Configs.numberTypeValueOf(
-                                                    typeAttr.getValue())));
-                            continue;
-                        }
-                        
-                        if (repository == Repository.BOOLEAN) {
-                            rv.flushedBooleanElements.put(
-                                    key, Configs.parseBoolean(value));
-                        } else {
-                            rv.flushedStringElements.put(key, value);
+                for (Repository r : repositories) {
+                    if (r.getName().equals(name)) {
+                        if (found[r.ordinal()]) {
+                            throw Configs.newDuplicateRepoException(r);
                         }
-                        
+                        found[r.ordinal()] = true;
+                        repository = r;
+                        repoDepth = depth;
+                        break;
                     }
                 }
             }
             
+            for (Repository r : repositories) {
+                if (!found[r.ordinal()]) {
+                    throw Configs.newMissingRepoException(r);
+                }
+            }
+            
         } catch (Configs.BooleanParsingException ex) {
             
             throw new ConfigException(ex);
@@ -385,164 +470,370 @@ public final strictfp class XMLConfig extends PrivateConfigBase {
             
             throw new ConfigException(ex);
             
-        } catch (DOMException ex) {
+        } catch (XMLStreamException ex) {
             
             throw new ConfigException(ex);
             
+        } finally {
+            
+            try {
+                reader.close();
+            } catch (XMLStreamException ex) {
+            }
+            
         }
         return rv;
     }
     
-    
-    
-    
-    void _serializeBool(String key, boolean value) {
-        NodeList elements = booleanElements.getElementsByTagName(ENTRY_FLAG);
-        
-        final int size = elements.getLength();
+    /**
+     * Reads the entry the reader is positioned on into a flushed repository.
+     */
+    private void readEntry(XMLStreamReader reader, Repository repository, 
+            boolean lazy) {
+        String key = reader.getAttributeValue(null, KEY_FLAG);
+        if (key == null) {
+            throw newMalformedKeyAttrException(repository);
+        }
+        String value = reader.getAttributeValue(null, VALUE_FLAG);
+        if (value == null) {
+            throw newMalformedValueAttrException(key, repository);
+        }
         
-        for (int i = 0; i < size; ++i) {
-            Element e = (Element) elements.item(i);
-            Attr nameAttr = e.getAttributeNode(KEY_FLAG);
-            if (nameAttr == null) {
-                throw newMalformedKeyAttrException(Repository.BOOLEAN);
-            }
-            if (key.equals(nameAttr.getValue())) {
-                Attr valueAttr = e.getAttributeNode(VALUE_FLAG);
-                if (valueAttr == null) {
-                    throw newMalformedValueAttrException(key, 
-                            Repository.BOOLEAN);
+        switch (repository) {
+            case NUMBER:
+                // Number uses a different format
+                String typeName = reader.getAttributeValue(null, TYPE_FLAG);
+                if (typeName == null) {
+                    throw newMalformedTypeAttrException(key, repository);
                 }
-                valueAttr.setValue(Boolean.toString(value));
-                return;
-            }
+                NumberType type = Configs.numberTypeValueOf(typeName);
+                if (lazy) {
+                    flushedNumberElements.putRaw(key, type, value);
+                } else {
+                    flushedNumberElements.putNumber(key, 
+                            Configs.parseNumberFromType(value, type));
+                }
+                break;
+            case BOOLEAN:
+                if (lazy) {
+                    flushedBooleanElements.putRaw(key, value);
+                } else {
+                    flushedBooleanElements.put(key, 
+                            Configs.parseBoolean(value));
+                }
+                break;
+            case STRING:
+                flushedStringElements.put(key, value);
+                break;
         }
-        
-        // no existing element found
-        Element element = xmlDoc.createElement(ENTRY_FLAG);
-        element.setAttribute(KEY_FLAG, key);
-        element.setAttribute(VALUE_FLAG, Boolean.toString(value));
-        booleanElements.appendChild(element);
     }
     
-    void _deleteBool(String key) {
-        NodeList elements = booleanElements.getElementsByTagName(ENTRY_FLAG);
+    /**
+     * Returns the XML document, building it from the flushed entries the 
+     * first time it is required.
+     * 
+     * @return the XML document
+     */
+    Document document() {
+        if (xmlDoc != null)
+            return xmlDoc;
+        
+        Document doc;
         try {
-            final int len = elements.getLength();
-            for (int i = 0; i < len; ++i) {
-                Element e = (Element) elements.item(i);
-                String actualKey = e.getAttribute(KEY_FLAG);
-                if (key.equals(actualKey)) {
-                    booleanElements.removeChild(e);
-                }
-            }
-        } catch (DOMException ex) {
+            doc = DocumentBuilderFactory.newInstance()
+                    .newDocumentBuilder().newDocument();
+        } catch (ParserConfigurationException ex) {
             throw new ConfigException(ex);
         }
+        
+        Element rootElement = doc.createElement(rootName);
+        
+        numberElements = doc.createElement(Repository.NUMBER.getName());
+        rootElement.appendChild(numberElements);
+        
+        stringElements = doc.createElement(Repository.STRING.getName());
+        rootElement.appendChild(stringElements);
+        
+        booleanElements = doc.createElement(Repository.BOOLEAN.getName());
+        rootElement.appendChild(booleanElements);
+        
+        doc.appendChild(rootElement);
+        doc.setXmlStandalone(true);
+        xmlDoc = doc;
+        
+        final NumberRepository numbers = flushedNumberElements;
+        for (int slot = 0; slot < numbers.limit; ++slot) {
+            String key = numbers.keys[slot];
+            if (key == null)
+                continue;
+            Element e = newEntry(key, numberElements, numberIndex);
+            e.setAttribute(VALUE_FLAG, numbers.textAt(slot));
+            e.setAttribute(TYPE_FLAG, numbers.typeAt(slot).name());
+        }
+        
+        final ObjectRepository<String> strings = flushedStringElements;
+        for (int slot = 0; slot < strings.limit; ++slot) {
+            String key = strings.keys[slot];
+            if (key == null)
+                continue;
+            newEntry(key, stringElements, stringIndex)
+                    .setAttribute(VALUE_FLAG, strings.textAt(slot));
+        }
+        
+        final ObjectRepository<Boolean> booleans = flushedBooleanElements;
+        for (int slot = 0; slot < booleans.limit; ++slot) {
+            String key = booleans.keys[slot];
+            if (key == null)
+                continue;
+            newEntry(key, booleanElements, booleanIndex)
+                    .setAttribute(VALUE_FLAG, booleans.textAt(slot));
+        }
+        
+        return doc;
+    }
+    
+    
+    
+    
+    void _serializeBool(String key, boolean value) {
+        if (xmlDoc == null)
+            return; // built from the flushed entries when required
+        Element e = booleanIndex.get(key);
+        if (e == null) {
+            // no existing element found
+            e = newEntry(key, booleanElements, booleanIndex);
+        } else if (e.getAttributeNode(VALUE_FLAG) == null) {
+            throw newMalformedValueAttrException(key, Repository.BOOLEAN);
+        }
+        e.setAttribute(VALUE_FLAG, Boolean.toString(value));
+    }
+    
+    void _deleteBool(String key) {
+        deleteEntry(key, booleanElements, booleanIndex);
     }
     
     void _serializeString(String key, String value) {
-        NodeList elements = stringElements.getElementsByTagName(ENTRY_FLAG);    
-        
-        final int size = elements.getLength();
-        
-        for (int i = 0; i < size; ++i) {
-            Element e = (Element) elements.item(i);
-            Attr nameAttr = e.getAttributeNode(KEY_FLAG);
-            if (nameAttr == null) {
-                throw newMalformedKeyAttrException(Repository.STRING);
+        if (xmlDoc == null)
+            return; // built from the flushed entries when required
+        Element e = stringIndex.get(key);
+        if (e == null) {
+            // no existing element found
+            e = newEntry(key, stringElements, stringIndex);
+        } else if (e.getAttributeNode(VALUE_FLAG) == null) {
+            throw newMalformedValueAttrException(key, Repository.STRING);
+        }
+        e.setAttribute(VALUE_FLAG, value);
+    }
+    
+    void _deleteString(String key) {
+        deleteEntry(key, stringElements, stringIndex);
+    }
+    
+    void _serializeNumber(String key, Number value) {
+        if (xmlDoc == null)
+            return; // built from the flushed entries when required
+        Element e = numberIndex.get(key);
+        if (e == null) {
+            // no existing element found
+            e = newEntry(key, numberElements, numberIndex);
+        } else {
+            if (e.getAttributeNode(VALUE_FLAG) == null) {
+                throw newMalformedValueAttrException(key, 
+                        Repository.NUMBER);
             }
-            if (key.equals(nameAttr.getValue())) {
-                Attr valueAttr = e.getAttributeNode(VALUE_FLAG);
-                if (valueAttr == null) {
-                    throw newMalformedValueAttrException(key, 
-                            Repository.STRING);
-                }
-                valueAttr.setValue(value);
-                return;
+            if (e.getAttributeNode(TYPE_FLAG) == null) {
+                throw newMalformedTypeAttrException(key, Repository.NUMBER);
             }
         }
-        
-        // no existing element found
+        e.setAttribute(VALUE_FLAG, value.toString());
+        e.setAttribute(TYPE_FLAG, Configs.resolveNumberType(value).name());
+    }
+    
+    void _deleteNumber(String key) {
+        deleteEntry(key, numberElements, numberIndex);
+    }
+    
+    /**
+     * Returns the index of the entry elements of a {@code Repository}.
+     * 
+     * @param repository the {@code Repository}
+     * 
+     * @return the index of the entry elements of {@code repository}
+     */
+    Map<String, Element> indexFor(Repository repository) {
+        switch (repository) {
+            case NUMBER:
+                return numberIndex;
+            case BOOLEAN:
+                return booleanIndex;
+            case STRING:
+                return stringIndex;
+            default:
+                throw new InternalError();
+        }
+    }
+    
+    private Element newEntry(String key, Element parent, 
+            Map<String, Element> index) {
         Element element = xmlDoc.createElement(ENTRY_FLAG);
         element.setAttribute(KEY_FLAG, key);
-        element.setAttribute(VALUE_FLAG, value);
-        stringElements.appendChild(element);
+        parent.appendChild(element);
+        index.put(key, element);
+        return element;
     }
     
-    void _deleteString(String key) {
-        NodeList elements = stringElements.getElementsByTagName(ENTRY_FLAG);
+    private static void deleteEntry(String key, Element parent, 
+            Map<String, Element> index) {
+        Element e = index.remove(key);
+        if (e == null)
+            return;
         try {
-            final int len = elements.getLength();
-            for (int i = 0; i < len; ++i) {
-                Element e = (Element) elements.item(i);
-                String actualKey = e.getAttribute(KEY_FLAG);
-                if (key.equals(actualKey)) {
-                    stringElements.removeChild(e);
-                }
-            }
+            parent.removeChild(e);
         } catch (DOMException ex) {
             throw new ConfigException(ex);
         }
     }
     
-    void _serializeNumber(String key, Number value) {
-        NodeList elements = numberElements.getElementsByTagName(ENTRY_FLAG);    
+    
+    
+    
+    void write(Writer writer) throws IOException {
+        // same layout as XMLUtils.toPrettifiedXML(document())
+        writer.write(XML_DECLARATION);
+        writer.write("\n<");
+        writer.write(rootName);
+        writer.write(">\n");
         
-        final int size = elements.getLength();
+        final NumberRepository numbers = flushedNumberElements;
+        openRepository(writer, Repository.NUMBER, numbers.size());
+        for (int slot = 0; slot < numbers.limit; ++slot) {
+            String key = numbers.keys[slot];
+            if (key == null)
+                continue;
+            openEntry(writer, key);
+            writeAttribute(writer, TYPE_FLAG, numbers.typeAt(slot).name());
+            writeAttribute(writer, VALUE_FLAG, numbers.textAt(slot));
+            writer.write("/>\n");
+            ConfigIndex.endEntry(writer, Repository.NUMBER, key);
+        }
+        closeRepository(writer, Repository.NUMBER, numbers.size());
         
-        for (int i = 0; i < size; ++i) {
-            Element e = (Element) elements.item(i);
-            Attr nameAttr = e.getAttributeNode(KEY_FLAG);
-            if (nameAttr == null) {
-                throw newMalformedKeyAttrException(Repository.NUMBER);
-            }
-            if (key.equals(nameAttr.getValue())) {
-                Attr valueAttr = e.getAttributeNode(VALUE_FLAG);
-                if (valueAttr == null) {
-                    throw newMalformedValueAttrException(key, 
-                            Repository.NUMBER);
-                }
-                Attr typeAttr = e.getAttributeNode(TYPE_FLAG);
-                if (typeAttr == null) {
-                    throw newMalformedTypeAttrException(key, Repository.NUMBER);
-                }
-                typeAttr.setValue(Configs.resolveNumberType(value).name());
-                valueAttr.setValue(value.toString());
-                return;
-            }
+        final ObjectRepository<String> strings = flushedStringElements;
+        openRepository(writer, Repository.STRING, strings.size());
+        for (int slot = 0; slot < strings.limit; ++slot) {
+            String key = strings.keys[slot];
+            if (key == null)
+                continue;
+            openEntry(writer, key);
+            writeAttribute(writer, VALUE_FLAG, strings.textAt(slot));
+            writer.write("/>\n");
+            ConfigIndex.endEntry(writer, Repository.STRING, key);
         }
-        // no existing element found
-        Element element = xmlDoc.createElement(ENTRY_FLAG);
-        element.setAttribute(KEY_FLAG, key);
-        element.setAttribute(VALUE_FLAG, value.toString());
-        element.setAttribute(TYPE_FLAG, 
-                Configs.resolveNumberType(value).name());
-        numberElements.appendChild(element);
+        closeRepository(writer, Repository.STRING, strings.size());
         
+        final ObjectRepository<Boolean> booleans = flushedBooleanElements;
+        openRepository(writer, Repository.BOOLEAN, booleans.size());
+        for (int slot = 0; slot < booleans.limit; ++slot) {
+            String key = booleans.keys[slot];
+            if (key == null)
+                continue;
+            openEntry(writer, key);
+            writeAttribute(writer, VALUE_FLAG, booleans.textAt(slot));
+            writer.write("/>\n");
+            ConfigIndex.endEntry(writer, Repository.BOOLEAN, key);
+        }
+        closeRepository(writer, Repository.BOOLEAN, booleans.size());
+        
+        writer.write("</");
+        writer.write(rootName);
+        writer.write(">\n");
+        
+        if (writer instanceof ConfigIndex) {
+            writer.write("<!--");
+            ((ConfigIndex) writer).writeIndex();
+            writer.write(INDEX_SUFFIX);
+        }
     }
     
-    void _deleteNumber(String key) {
-        NodeList elements = numberElements.getElementsByTagName(ENTRY_FLAG);
-        try {
-            final int len = elements.getLength();
-            for (int i = 0; i < len; ++i) {
-                Element e = (Element) elements.item(i);
-                String actualKey = e.getAttribute(KEY_FLAG);
-                if (key.equals(actualKey)) {
-                    numberElements.removeChild(e);
-                }
+    private static void openRepository(Writer writer, Repository repository, 
+            int count) throws IOException {
+        writer.write(INDENT);
+        writer.write('<');
+        writer.write(repository.getName());
+        writer.write(count == 0 ? "/>\n" : ">\n");
+    }
+    
+    private static void closeRepository(Writer writer, Repository repository, 
+            int count) throws IOException {
+        if (count == 0)
+            return;
+        writer.write(INDENT);
+        writer.write("</");
+        writer.write(repository.getName());
+        writer.write(">\n");
+    }
+    
+    private static void openEntry(Writer writer, String key) 
+            throws IOException {
+        writer.write(INDENT);
+        writer.write(INDENT);
+        ConfigIndex.beginEntry(writer);
+        writer.write('<');
+        writer.write(ENTRY_FLAG);
+        writeAttribute(writer, KEY_FLAG, key);
+    }
+    
+    /**
+     * Writes an attribute, escaping its value the way the DOM serializer 
+     * does so that whitespace survives a round trip.
+     */
+    private static void writeAttribute(Writer writer, String name, 
+            String value) throws IOException {
+        writer.write(' ');
+        writer.write(name);
+        writer.write("=\"");
+        final int len = value.length();
+        int start = 0;
+        for (int i = 0; i < len; ++i) {
+            String escape;
+            switch (value.charAt(i)) {
+                case '&':
+                    escape = "&amp;";
+                    break;
+                case '<':
+                    escape = "&lt;";
+                    break;
+                case '>':
+                    escape = "&gt;";
+                    break;
+                case '"':
+                    escape = "&quot;";
+                    break;
+                case '\n':
+                    escape = "&#10;";
+                    break;
+                case '\r':
+                    escape = "&#13;";
+                    break;
+                case '\t':
+                    escape = "&#9;";
+                    break;
+                default:
+                    continue;
             }
-        } catch (DOMException ex) {
-            throw new ConfigException(ex);
+            writer.write(value, start, i - start);
+            writer.write(escape);
+            start = i + 1;
         }
+        writer.write(value, start, len - start);
+        writer.write('"');
     }
     
     
     
     
     public String toCanonical() {
-        return XMLUtils.toPrettifiedXML(xmlDoc);
+        return XMLUtils.toPrettifiedXML(document());
     }
     
     
@@ -565,6 +856,15 @@ public final strictfp class XMLConfig extends PrivateConfigBase {
                 MALFORMED_TYPE_ATTR_FORMAT, key, r.getName()));
     }
     
+    static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+    
     static ConfigException newInvalidNodeClassException(
             Class<? extends Node> nodeType) {
         return new ConfigException("Expected node of type: " + nodeType);
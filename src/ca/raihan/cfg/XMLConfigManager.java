@@ -21,6 +21,11 @@ import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.Reader;
 
+import java.util.Arrays;
+import java.util.HashSet;
+
+import ca.raihan.cfg.Config.LoadMode;
+
 /**
  * XML-based implementation of a {@link ConfigManager}. Churns out instances of 
  * {@link XMLConfig}.
@@ -29,31 +34,94 @@ import java.io.Reader;
  */
 public final class XMLConfigManager implements ConfigManager<XMLConfig> {
     
+    /**
+     * The {@code LoadMode} of the {@code Config}s read by this manager
+     */
+    private final LoadMode loadMode;
+    
+    /**
+     * {@code true} if the {@code Config}s of this manager save an index of 
+     * their keys
+     */
+    private final boolean indexed;
+    
+    
+    
+    
+    /**
+     * Constructs a manager that reads {@code Config}s with 
+     * {@link LoadMode#EAGER}.
+     */
+    public XMLConfigManager() {
+        this(LoadMode.EAGER);
+    }
+    
+    /**
+     * Constructs a manager that reads {@code Config}s with the specified 
+     * {@code LoadMode}.
+     * 
+     * @param loadMode the {@code LoadMode}
+     */
+    public XMLConfigManager(LoadMode loadMode) {
+        this(loadMode, false);
+    }
+    
+    /**
+     * Constructs a manager that reads {@code Config}s with the specified 
+     * {@code LoadMode}. If {@code indexed} is {@code true}, the 
+     * {@code Config}s it constructs end their saves with an index of their 
+     * keys for {@link #readKeys(File, String...)}; the index is ignored when 
+     * the whole file is read.
+     * 
+     * @param loadMode the {@code LoadMode}
+     * @param indexed whether saves are indexed
+     */
+    public XMLConfigManager(LoadMode loadMode, boolean indexed) {
+        this.loadMode = Contract.nonNull(loadMode, "loadMode");
+        this.indexed = indexed;
+    }
+    
+    
+    
+    
     public XMLConfig newConfig() {
-        return XMLConfig.empty();
+        return index(XMLConfig.empty());
     }
     
     public XMLConfig read(File file) {
         verifyFileIntegrity(file);
         verifyFileExistence(file);
-        return XMLConfig.read(file);
+        return index(XMLConfig.read(file, loadMode));
+    }
+    
+    public XMLConfig readKeys(File file, String... keys) {
+        verifyFileIntegrity(file);
+        verifyFileExistence(file);
+        return index(XMLConfig.readKeys(file, 
+                new HashSet<String>(Arrays.asList(
+                        Contract.nonNull(keys, "keys"))), loadMode));
     }
     
     public XMLConfig read(InputStream inputStream) {
-        return XMLConfig.read(inputStream);
+        return index(XMLConfig.read(inputStream, loadMode));
     }
     
     public XMLConfig read(Reader reader) {
-        return XMLConfig.read(reader);
+        return index(XMLConfig.read(reader, loadMode));
     }
     
     public XMLConfig parse(String strXML) {
-        return XMLConfig.parse(strXML);
+        return index(XMLConfig.parse(strXML, loadMode));
     }
     
     
     
     
+    private XMLConfig index(XMLConfig config) {
+        config.indexed = indexed;
+        return config;
+    }
+    
     static void verifyFileIntegrity(File file) {
         Contract.nonNull(file, "file");
         if (file != null && file.isDirectory())
@@ -16,8 +16,8 @@
 
 package ca.raihan.cfg;
 
-import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
+import java.io.StringWriter;
 
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
@@ -65,9 +65,9 @@ final class XMLUtils {
             tf.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", 
                     Integer.toString(indent));
             tf.setOutputProperty(OutputKeys.STANDALONE, "yes");
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            StringWriter out = new StringWriter();
             tf.transform(new DOMSource(document), new StreamResult(out));
-            return new String(out.toByteArray());
+            return out.toString();
         } catch (TransformerException ex) {
             throw new ConfigException(ex);
         }
@@ -16,6 +16,22 @@
 
 package ca.raihan.cfg.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
 import ca.raihan.cfg.*;
 
 /**
@@ -40,7 +56,711 @@ public class Main {
         
         System.out.println("\n" + config.toCanonical() + "\n");
         
+        testFrozenConfig(10);
+        testFrozenConfig(100000);
+        testNonFiniteNumber();
+        testBinaryConfig();
+        testKeyIndex(new JSONConfigManager(Config.LoadMode.EAGER, true), 
+                new JSONConfigManager());
+        testKeyIndex(new XMLConfigManager(Config.LoadMode.EAGER, true), 
+                new XMLConfigManager());
+        testJournal();
+        testChangeRing(ConfigChangeRing.Backpressure.BLOCK, 
+                ConfigChangeRing.WaitStrategy.BLOCKING);
+        testChangeRing(ConfigChangeRing.Backpressure.DROP_OLDEST, 
+                ConfigChangeRing.WaitStrategy.SLEEPING);
+        testChangeRing(ConfigChangeRing.Backpressure.COALESCE_BY_KEY, 
+                ConfigChangeRing.WaitStrategy.YIELDING);
+        testAtomics();
+        testBatch();
+        testWatcher();
+        testLazyLoad(new JSONConfigManager(Config.LoadMode.LAZY), 
+                new JSONConfigManager());
+        testLazyLoad(new XMLConfigManager(Config.LoadMode.LAZY), 
+                new XMLConfigManager());
+        
         System.out.println("Testing Ended");
     }
     
+    
+    
+    
+    /**
+     * Freezes a {@code Config} with the specified number of keys in every 
+     * repository, plus two keys that share a {@code hashCode()}.
+     */
+    static void testFrozenConfig(int count) {
+        Config config = new JSONConfigManager().newConfig();
+        for (int i = 0; i < count; ++i) {
+            config.putInt("n" + i, i);
+            config.putString("s" + i, "v" + i);
+            config.putBoolean("b" + i, i % 2 == 0);
+        }
+        config.putString("Aa", "Aa");
+        config.putString("BB", "BB");
+        config.flushState();
+        
+        Config frozen = Configs.frozenConfig(config);
+        for (int i = 0; i < count; ++i)
+            check(frozen.getInt("n" + i) == i && 
+                    frozen.getString("s" + i).equals("v" + i) && 
+                    frozen.getBoolean("b" + i) == (i % 2 == 0), 
+                    "frozen key " + i);
+        check(frozen.getString("Aa").equals("Aa") && 
+                frozen.getString("BB").equals("BB"), "frozen hashCode clash");
+        check(!frozen.containsKey("n" + count, Config.Repository.NUMBER) && 
+                !frozen.containsKey("s0", Config.Repository.NUMBER), 
+                "frozen missing key");
+        check(frozen.getFingerprint() == config.getFingerprint(), 
+                "frozen fingerprint");
+    }
+    
+    
+    
+    
+    /**
+     * JSON cannot hold a non-finite number, so storing one fails at once and 
+     * leaves the {@code Config} as it was, rather than failing every save.
+     */
+    static void testNonFiniteNumber() throws IOException {
+        Config config = new JSONConfigManager().newConfig();
+        config.putDouble("d", 1.0);
+        config.flushState();
+        config.putDouble("nan", Double.NaN);
+        try {
+            config.flushState();
+            check(false, "flushed NaN");
+        } catch (ConfigException ex) {
+        }
+        config.putDouble("nan", 0.5);
+        config.flushState();
+        try {
+            config.addAndGetDouble("d", Double.POSITIVE_INFINITY);
+            check(false, "stored infinity");
+        } catch (ConfigException ex) {
+        }
+        try {
+            config.beginBatch().putInt("i", 1).putFloat("f", Float.NaN)
+                    .commit();
+            check(false, "committed NaN");
+        } catch (ConfigException ex) {
+        }
+        check(config.getDouble("d") == 1.0 && 
+                !config.containsKey("i", Config.Repository.NUMBER), 
+                "non-finite number stored");
+        config.save(tempFile(".json"), 
+                Config.WriteAccess.OVERWRITE_IF_NECESSARY);
+    }
+    
+    
+    
+    
+    /**
+     * Round trips every kind of entry through the binary layout, saves over 
+     * a file that is still mapped and reads damaged files.
+     */
+    static void testBinaryConfig() throws IOException {
+        BinaryConfigManager manager = new BinaryConfigManager();
+        Config config = manager.newConfig();
+        config.putByte("byte", (byte) -128);
+        config.putShort("short", Short.MAX_VALUE);
+        config.putInt("int", Integer.MIN_VALUE);
+        config.putLong("long", Long.MAX_VALUE);
+        config.putFloat("float", -1.5f);
+        config.putDouble("double", Math.PI);
+        config.putBigInteger("bigInteger", 
+                new BigInteger("-123456789012345678901234567890"));
+        config.putBigDecimal("bigDecimal", 
+                new BigDecimal("3.141592653589793238462643383279"));
+        // 130 booleans span three words of the bitset
+        for (int i = 0; i < 130; ++i)
+            config.putBoolean("bool" + i, i % 3 == 0 || i == 63 || i == 64);
+        config.putString("caf\u00e9", "\u00fcber \u4e2d\u6587 \ud83d\ude00");
+        config.putString("empty", "");
+        // the same key in every repository
+        config.putString("shared", "text");
+        config.putInt("shared", 7);
+        config.putBoolean("shared", true);
+        config.flushState();
+        
+        File file = tempFile(".bin");
+        config.save(file, Config.WriteAccess.OVERWRITE_IF_NECESSARY);
+        Config read = manager.read(file);
+        check(read.getFingerprint() == config.getFingerprint(), 
+                "binary round trip");
+        checkNumber(read, "byte", Byte.valueOf((byte) -128));
+        checkNumber(read, "short", Short.valueOf(Short.MAX_VALUE));
+        checkNumber(read, "int", Integer.valueOf(Integer.MIN_VALUE));
+        checkNumber(read, "long", Long.valueOf(Long.MAX_VALUE));
+        checkNumber(read, "float", Float.valueOf(-1.5f));
+        checkNumber(read, "double", Double.valueOf(Math.PI));
+        checkNumber(read, "bigInteger", 
+                new BigInteger("-123456789012345678901234567890"));
+        checkNumber(read, "bigDecimal", 
+                new BigDecimal("3.141592653589793238462643383279"));
+        for (int i = 0; i < 130; ++i)
+            check(read.getBoolean("bool" + i) == 
+                    (i % 3 == 0 || i == 63 || i == 64), "boolean " + i);
+        check(read.getString("caf\u00e9").equals(
+                "\u00fcber \u4e2d\u6587 \ud83d\ude00"), "non-ASCII string");
+        check(read.getString("empty").isEmpty(), "empty string");
+        check(read.getString("shared").equals("text") && 
+                read.getInt("shared") == 7 && read.getBoolean("shared"), 
+                "same key in every repository");
+        check(manager.read(new FileInputStream(file)).getFingerprint() == 
+                config.getFingerprint(), "binary stream round trip");
+        
+        // replacing the file leaves the mapping of a reader intact
+        Config mapped = manager.read(file);
+        config.putString("caf\u00e9", "changed");
+        config.flushState();
+        config.save(file, Config.WriteAccess.OVERWRITE_IF_NECESSARY);
+        check(mapped.getString("caf\u00e9").equals(
+                "\u00fcber \u4e2d\u6587 \ud83d\ude00"), "old mapping");
+        check(manager.read(file).getString("caf\u00e9").equals("changed"), 
+                "resaved file");
+        
+        byte[] contents = readAll(file);
+        byte[] truncated = new byte[10];
+        System.arraycopy(contents, 0, truncated, 0, truncated.length);
+        checkCorrupt(manager, truncated, "truncated header");
+        byte[] badMagic = contents.clone();
+        badMagic[0] ^= 1;
+        checkCorrupt(manager, badMagic, "bad magic");
+        byte[] badLength = contents.clone();
+        // the heap length, last int of the header
+        badLength[20] = 0x7f;
+        checkCorrupt(manager, badLength, "heap past the end");
+        byte[] shortFile = new byte[contents.length - 1];
+        System.arraycopy(contents, 0, shortFile, 0, shortFile.length);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(shortFile);
+        } finally {
+            out.close();
+        }
+        try {
+            manager.read(file);
+            check(false, "truncated file");
+        } catch (ConfigException ex) {
+        }
+    }
+    
+    
+    
+    
+    /**
+     * Reads single keys from a file saved with an index and from one saved 
+     * without, which falls back to reading the whole file.
+     */
+    static void testKeyIndex(ConfigManager<?> indexed, ConfigManager<?> plain) 
+            throws IOException {
+        Config config = fillKeys(indexed.newConfig());
+        File file = tempFile(".cfg");
+        config.save(file, Config.WriteAccess.OVERWRITE_IF_NECESSARY);
+        check(indexed.read(file).getFingerprint() == config.getFingerprint(), 
+                "indexed file reads whole");
+        check(new String(readAll(file), "UTF-8").contains("jcfg-index:"), 
+                "index written");
+        checkKeys(indexed.readKeys(file, "s49", "n7", "b3", "\u00fcber", 
+                "shared", "missing"), "indexed");
+        
+        fillKeys(plain.newConfig()).save(file, 
+                Config.WriteAccess.OVERWRITE_IF_NECESSARY);
+        check(!new String(readAll(file), "UTF-8").contains("jcfg-index:"), 
+                "no index written");
+        checkKeys(plain.readKeys(file, "s49", "n7", "b3", "\u00fcber", 
+                "shared", "missing"), "without index");
+    }
+    
+    
+    
+    
+    /**
+     * Replays a journal, drops a record torn by a crash and compacts while 
+     * another thread keeps appending.
+     */
+    static void testJournal() throws IOException, InterruptedException {
+        JSONConfigManager manager = new JSONConfigManager();
+        File file = tempFile(".json");
+        file.delete();
+        File log = new File(file.getPath() + ConfigJournal.SUFFIX);
+        log.deleteOnExit();
+        
+        ConfigJournal journal = new ConfigJournal(
+                Configs.synchronizedConfig(manager.newConfig()), file, manager, 
+                0L);
+        Config config = journal.getConfig();
+        config.putInt("a", 1);
+        config.putString("s", "\u00e9\ud83d\ude00");
+        config.flushState();
+        config.putBoolean("b", true);
+        config.delete("a", Config.Repository.NUMBER);
+        config.flushState();
+        journal.close();
+        long whole = log.length();
+        check(whole > 0 && whole == journal.getLogLength(), "log appended");
+        
+        FileOutputStream out = new FileOutputStream(log, true);
+        try {
+            out.write("[[\"S\",\"torn\",\"v".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        journal = new ConfigJournal(manager.newConfig(), file, manager, 0L);
+        config = journal.getConfig();
+        check(!config.containsKey("a", Config.Repository.NUMBER) && 
+                config.getString("s").equals("\u00e9\ud83d\ude00") && 
+                config.getBoolean("b"), "replay");
+        check(!config.containsKey("torn", Config.Repository.STRING), 
+                "torn record applied");
+        check(log.length() == whole, "torn record kept");
+        journal.close();
+        
+        journal = new ConfigJournal(
+                Configs.synchronizedConfig(manager.newConfig()), file, manager, 
+                0L);
+        final Config shared = journal.getConfig();
+        final int count = 2000;
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < count; ++i) {
+                    shared.putInt("last", i);
+                    shared.putInt("w" + i, i);
+                    shared.flushState();
+                }
+            }
+        });
+        writer.start();
+        while (writer.isAlive())
+            journal.compact();
+        writer.join();
+        journal.close();
+        
+        journal = new ConfigJournal(manager.newConfig(), file, manager, 0L);
+        config = journal.getConfig();
+        check(config.getInt("last") == count - 1, "last append");
+        for (int i = 0; i < count; ++i)
+            check(config.getInt("w" + i) == i, "append " + i);
+        check(config.getBoolean("b"), "compacted snapshot");
+        journal.close();
+    }
+    
+    
+    
+    
+    /**
+     * Runs one writer against one handler that is held back until the ring 
+     * is full, so the backpressure policy has to act.
+     */
+    static void testChangeRing(ConfigChangeRing.Backpressure backpressure, 
+            ConfigChangeRing.WaitStrategy waitStrategy) 
+            throws InterruptedException {
+        final int keys = 8;
+        final int count = 1000;
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicLong received = new AtomicLong();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final AtomicLongArray last = new AtomicLongArray(keys);
+        for (int i = 0; i < keys; ++i)
+            last.set(i, -1L);
+        ConfigChangeRing ring = new ConfigChangeRing(16, waitStrategy, 
+                backpressure);
+        ring.addHandler(new ConfigChangeRing.Handler() {
+            long sequence = -1L;
+            public void onChange(ConfigChangeRing.Change change, 
+                    long sequence, boolean endOfBatch) {
+                try {
+                    gate.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                int key = Integer.parseInt(change.getKey().substring(1));
+                long value = ((Number) change.getNewValue()).longValue();
+                if (sequence <= this.sequence || value <= last.get(key))
+                    failure.compareAndSet(null, "out of order at " + value);
+                this.sequence = sequence;
+                last.set(key, value);
+                received.incrementAndGet();
+            }
+        });
+        ring.start();
+        final Config config = new JSONConfigManager().newConfig();
+        ring.attach(config);
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < count; ++i) {
+                    config.putLong("k" + i % keys, i);
+                    config.flushState();
+                }
+            }
+        });
+        writer.setDaemon(true);
+        writer.start();
+        try {
+            if (backpressure == ConfigChangeRing.Backpressure.BLOCK) {
+                writer.join(200L);
+                check(writer.isAlive() && received.get() == 0, 
+                        "writer blocked by a full ring");
+            } else {
+                writer.join();
+            }
+        } finally {
+            gate.countDown();
+        }
+        writer.join();
+        
+        long deadline = System.currentTimeMillis() + 10000L;
+        // the newest change of a key is never dropped or merged away
+        while (ring.getBacklog() > 0 || last.get(keys - 1) < count - 1) {
+            check(System.currentTimeMillis() < deadline, 
+                    backpressure + " handler stalled");
+            Thread.sleep(1L);
+        }
+        ring.halt();
+        ring.detach(config);
+        
+        check(failure.get() == null, backpressure + " " + failure.get());
+        for (int i = 0; i < keys; ++i)
+            check(last.get(i) == count - keys + i, 
+                    backpressure + " last value");
+        switch (backpressure) {
+            case BLOCK:
+                check(received.get() == count && ring.getDroppedCount() == 0, 
+                        "BLOCK lost changes");
+                break;
+            case DROP_OLDEST:
+                check(ring.getDroppedCount() > 0 && 
+                        received.get() + ring.getDroppedCount() == count, 
+                        "DROP_OLDEST dropped " + ring.getDroppedCount() + 
+                        " received " + received.get());
+                break;
+            case COALESCE_BY_KEY:
+                check(ring.getDroppedCount() == 0 && received.get() < count, 
+                        "COALESCE_BY_KEY received " + received.get());
+                break;
+        }
+    }
+    
+    
+    
+    
+    /**
+     * Stores the results of the atomic operations at once, each with its own 
+     * commit event, and increments one key of a concurrent {@code Config} 
+     * from several threads.
+     */
+    static void testAtomics() throws InterruptedException {
+        final AtomicLong commits = new AtomicLong();
+        ConfigEventListener<ConfigChangeSet> listener = 
+                new ConfigEventListener<ConfigChangeSet>() {
+                    public void onEvent(Object sender, 
+                            ConfigChangeSet changes) {
+                        commits.addAndGet(changes.size());
+                    }
+                };
+        Config config = new JSONConfigManager().newConfig();
+        config.commitEvent().addListener(listener);
+        // acts on the flushed value and replaces the pending put
+        config.putInt("n", 100);
+        check(config.incrementLong("n") == 1L && 
+                config.incrementLong("n") == 2L, "incrementLong");
+        check(config.addAndGetDouble("d", 0.5) == 0.5 && 
+                config.addAndGetDouble("d", 1.0) == 1.5, "addAndGetDouble");
+        check(config.compareAndSetString("s", null, "a") && 
+                !config.compareAndSetString("s", "b", "c") && 
+                config.getString("s").equals("a"), "compareAndSetString");
+        check(config.compareAndSetString("s", "a", null) && 
+                !config.containsKey("s", Config.Repository.STRING), 
+                "compareAndSetString delete");
+        Number product = config.computeNumber("n", 
+                new Config.NumberFunction() {
+                    public Number apply(String key, Number value) {
+                        return Long.valueOf(value.longValue() * 10L);
+                    }
+                });
+        check(product.longValue() == 20L && config.getLong("n") == 20L, 
+                "computeNumber");
+        check(commits.get() == 7L, "atomic commits " + commits.get());
+        config.flushState();
+        check(config.getLong("n") == 20L, "pending put replaced");
+        
+        final Config backing = new JSONConfigManager().newConfig();
+        final Config concurrent = Configs.concurrentConfig(backing);
+        final int threads = 4;
+        final int count = 5000;
+        commits.set(0L);
+        concurrent.commitEvent().addListener(listener);
+        Thread[] writers = new Thread[threads];
+        for (int i = 0; i < threads; ++i) {
+            writers[i] = new Thread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < count; ++j)
+                        concurrent.incrementLong("hits");
+                }
+            });
+            writers[i].start();
+        }
+        for (Thread writer : writers)
+            writer.join();
+        check(concurrent.getLong("hits") == threads * count && 
+                backing.getLong("hits") == threads * count, 
+                "concurrent increments");
+        check(commits.get() == threads * count, 
+                "concurrent atomic commits " + commits.get());
+    }
+    
+    
+    
+    
+    /**
+     * Publishes a batch with a single commit event, throws one away and 
+     * rejects a batch that is used again.
+     */
+    static void testBatch() {
+        final AtomicLong events = new AtomicLong();
+        final AtomicReference<ConfigChangeSet> committed = 
+                new AtomicReference<ConfigChangeSet>();
+        Config config = new JSONConfigManager().newConfig();
+        config.putInt("old", 1);
+        config.flushState();
+        config.commitEvent().addListener(
+                new ConfigEventListener<ConfigChangeSet>() {
+                    public void onEvent(Object sender, 
+                            ConfigChangeSet changes) {
+                        events.incrementAndGet();
+                        committed.set(changes);
+                    }
+                });
+        config.putInt("pending", 2);
+        config.putString("s", "pending");
+        
+        ConfigBatch batch = config.beginBatch().putInt("a", 1)
+                .putString("s", "batch").delete("old", 
+                        Config.Repository.NUMBER);
+        check(batch.size() == 3 && 
+                !config.containsKey("a", Config.Repository.NUMBER) && 
+                config.getInt("old") == 1, "batch visible before commit");
+        batch.commit();
+        check(events.get() == 1L && committed.get().size() == 3, 
+                "batch commit events " + events.get());
+        check(config.getInt("a") == 1 && 
+                config.getString("s").equals("batch") && 
+                !config.containsKey("old", Config.Repository.NUMBER), 
+                "batch committed");
+        try {
+            batch.commit();
+            check(false, "batch committed twice");
+        } catch (IllegalStateException ex) {
+        }
+        
+        batch = config.beginBatch().putInt("a", 2).putBoolean("b", true);
+        batch.rollback();
+        check(events.get() == 1L && config.getInt("a") == 1 && 
+                !config.containsKey("b", Config.Repository.BOOLEAN), 
+                "batch rolled back");
+        try {
+            batch.putInt("a", 3);
+            check(false, "batch used after rollback");
+        } catch (IllegalStateException ex) {
+        }
+        
+        // the batch replaced the pending put of its key only
+        config.flushState();
+        check(config.getInt("pending") == 2 && 
+                config.getString("s").equals("batch"), 
+                "pending changes after batch");
+    }
+    
+    
+    
+    
+    /**
+     * Reconciles a watched {@code Config} with its file: the keys the file 
+     * changed are committed, pending changes of other keys stay pending.
+     */
+    static void testWatcher() throws IOException, InterruptedException {
+        JSONConfigManager manager = new JSONConfigManager();
+        File file = tempFile(".json");
+        Config disk = manager.newConfig();
+        disk.putInt("a", 1);
+        disk.putInt("b", 2);
+        disk.putString("s", "x");
+        disk.flushState();
+        disk.save(file, Config.WriteAccess.OVERWRITE_IF_NECESSARY);
+        
+        final AtomicLong events = new AtomicLong();
+        final AtomicReference<ConfigChangeSet> committed = 
+                new AtomicReference<ConfigChangeSet>();
+        // read by this thread while the watcher thread reloads it
+        Config config = Configs.synchronizedConfig(manager.read(file));
+        config.commitEvent().addListener(
+                new ConfigEventListener<ConfigChangeSet>() {
+                    public void onEvent(Object sender, 
+                            ConfigChangeSet changes) {
+                        events.incrementAndGet();
+                        committed.set(changes);
+                    }
+                });
+        ConfigWatcher watcher = new ConfigWatcher();
+        try {
+            watcher.watch(config, file, manager);
+            check(watcher.reload(config) == 0 && events.get() == 0L, 
+                    "unchanged file reloaded");
+            config.putInt("pending", 5);
+            config.putInt("b", 20);
+            
+            disk.putInt("b", 3);
+            disk.putInt("n", 4);
+            disk.delete("s", Config.Repository.STRING);
+            disk.flushState();
+            disk.save(file, Config.WriteAccess.OVERWRITE_IF_NECESSARY);
+            check(watcher.reload(config) == 3, "reloaded keys");
+            check(events.get() == 1L && committed.get().size() == 3, 
+                    "reload commit events " + events.get());
+            for (int i = 0; i < committed.get().size(); ++i)
+                check(!committed.get().getKey(i).equals("pending"), 
+                        "pending key published");
+            check(config.getInt("a") == 1 && config.getInt("b") == 3 && 
+                    config.getInt("n") == 4 && 
+                    !config.containsKey("s", Config.Repository.STRING), 
+                    "reloaded values");
+            check(!config.containsKey("pending", Config.Repository.NUMBER), 
+                    "pending key flushed by reload");
+            config.flushState();
+            check(config.getInt("pending") == 5 && config.getInt("b") == 3, 
+                    "pending changes after reload");
+            
+            // a change on disk is picked up by the watcher thread
+            disk.putInt("a", 7);
+            disk.flushState();
+            disk.save(file, Config.WriteAccess.OVERWRITE_IF_NECESSARY);
+            long deadline = System.currentTimeMillis() + 10000L;
+            while (config.getInt("a") != 7) {
+                check(System.currentTimeMillis() < deadline, 
+                        "file change not reloaded");
+                Thread.sleep(10L);
+            }
+        } finally {
+            watcher.close();
+        }
+    }
+    
+    
+    
+    
+    /**
+     * Reads a file with malformed values: an eager read fails, a lazy read 
+     * succeeds and fails only the first read of each malformed value.
+     */
+    static void testLazyLoad(ConfigManager<?> lazy, ConfigManager<?> eager) 
+            throws IOException {
+        Config config = eager.newConfig();
+        config.putInt("bad", 1234567);
+        config.putBoolean("flag", true);
+        config.putInt("good", 3);
+        config.putString("s", "text");
+        config.flushState();
+        File file = tempFile(".cfg");
+        config.save(file, Config.WriteAccess.OVERWRITE_IF_NECESSARY);
+        // XML quotes every value already, JSON only strings
+        String quote = lazy instanceof XMLConfigManager ? "" : "\"";
+        String text = new String(readAll(file), "UTF-8")
+                .replace("1234567", quote + "12x" + quote)
+                .replace("true", quote + "maybe" + quote);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        
+        try {
+            eager.read(file);
+            check(false, "eager read of malformed values");
+        } catch (ConfigException ex) {
+        }
+        Config read = lazy.read(file);
+        check(read.getInt("good") == 3 && read.getString("s").equals("text"), 
+                "lazy values");
+        try {
+            read.getInt("bad");
+            check(false, "lazy malformed number");
+        } catch (ConfigException ex) {
+        }
+        try {
+            read.getBoolean("flag");
+            check(false, "lazy malformed boolean");
+        } catch (ConfigException ex) {
+        }
+        check(read.containsKey("bad", Config.Repository.NUMBER), 
+                "lazy malformed key");
+    }
+    
+    
+    
+    
+    static Config fillKeys(Config config) {
+        // multi-byte values ahead of the keys move every later offset
+        for (int i = 0; i < 50; ++i) {
+            config.putString("s" + i, "\u00e9\u4e2d\ud83d\ude00 " + i);
+            config.putInt("n" + i, i);
+            config.putBoolean("b" + i, i % 2 == 0);
+        }
+        config.putString("\u00fcber", "\u00fc\ud83d\ude00\u00fc");
+        config.putString("shared", "text");
+        config.putDouble("shared", 2.5);
+        config.flushState();
+        return config;
+    }
+    
+    static void checkKeys(Config read, String what) {
+        check(read.getString("s49").equals("\u00e9\u4e2d\ud83d\ude00 49") && 
+                read.getInt("n7") == 7 && !read.getBoolean("b3") && 
+                read.getString("\u00fcber").equals(
+                        "\u00fc\ud83d\ude00\u00fc"), what + " values");
+        check(read.getString("shared").equals("text") && 
+                read.getDouble("shared") == 2.5, what + " shared key");
+        check(!read.containsKey("missing", Config.Repository.STRING) && 
+                !read.containsKey("s48", Config.Repository.STRING) && 
+                !read.containsKey("n49", Config.Repository.NUMBER), 
+                what + " missing keys");
+    }
+    
+    static void check(boolean condition, String what) {
+        if (!condition)
+            throw new AssertionError(what);
+    }
+    
+    static void checkNumber(Config config, String key, Number expected) {
+        Number actual = config.getNumber(key);
+        check(expected.equals(actual), key + ": " + actual);
+    }
+    
+    static void checkCorrupt(ConfigManager<?> manager, byte[] contents, 
+            String what) {
+        try {
+            manager.read(new ByteArrayInputStream(contents));
+            check(false, what);
+        } catch (ConfigException ex) {
+        }
+    }
+    
+    static File tempFile(String suffix) throws IOException {
+        File file = File.createTempFile("jconfig", suffix);
+        file.deleteOnExit();
+        return file;
+    }
+    
+    static byte[] readAll(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] contents = new byte[(int) raf.length()];
+            raf.readFully(contents);
+            return contents;
+        } finally {
+            raf.close();
+        }
+    }
+    
 }
\ No newline at end of file